@@ -17,21 +17,16 @@
 package edu.gatech.kanalyze.comp.countfilecustomwriter;
 
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
 
 /**
  * Formats output as sequences and writes.
  */
 public class ANLFormatWriter extends CountFormatWriter {
 	
-	/**
-	 * Maximum buffer capacity before forcing <code>flush()</code>. This capacity
-	 * prevents buffer overrun while writing records.
-	 */
-	private int maxCapacity;
-
 	/** Tab character as a byte. */
 	private static final byte tabByte = (byte) '\t';
 	
@@ -47,21 +42,25 @@ public class ANLFormatWriter extends CountFormatWriter {
 	/** K-mer count as a byte array. */
 	private byte[] countBytes;
 	
+	/** Last k-mer written in the current batch without its last base, or -1. */
+	private long preKmer;
+	
 	/**
 	 * Create a new format writer.
 	 * 
-	 * @param fc File channel output is written to.
+	 * @param fc Channel output is written to.
 	 * @param kSize K-mer size.
 	 * 
 	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
 	 * @throws IllegalArgumentException If <code>kSize</code> is invalid.
 	 */
-	public ANLFormatWriter(FileChannel fc, int kSize)
+	public ANLFormatWriter(WritableByteChannel fc, int kSize)
 			throws NullPointerException, IllegalArgumentException {
 		
 		super (fc, kSize); // throws NullPointerException, IllegalArgumentException
 		
-		maxCapacity = bufSize - (kSize + 10);
+		// Longest line: newline, k-mer, two tabs, slash, count, tab
+		maxRecordSize = kSize + 5 + ((int) Math.log10(Integer.MAX_VALUE)) + 1;
 		
 		kmerBytes = new byte[kSize+2];
 		countBytes = new byte[((int) Math.log10(Integer.MAX_VALUE)) + 1];
@@ -80,72 +79,54 @@ public class ANLFormatWriter extends CountFormatWriter {
 	public void write(CounterPair[] kmerCount)
 			throws IOException {
 		
-		int countIndex;
+		preKmer = -1;
 		
-		long preKmer = -1;
-		//int[] ca = new int[4];
+		for (CounterPair pair : kmerCount)
+			writeRecord(pair.kmer, pair.count);
 		
-		for (int index = 0; index < kmerCount.length; ++index) {
-			
-			if (buf.position() >= maxCapacity)
-				flush();
-			if((kmerCount[index].kmer>>2) != preKmer)
-			{
-				preKmer=(kmerCount[index].kmer>>2);
-				for (int baseIndex = kSize + 1; baseIndex >= 0; --baseIndex) {
-					switch((int) kmerCount[index].kmer & 0x3) {
-					case 0:
-						kmerBytes[baseIndex] = (byte) 'A';
-						break;
-						
-					case 1:
-						kmerBytes[baseIndex] = (byte) 'C';
-						break;
-						
-					case 2:
-						kmerBytes[baseIndex] = (byte) 'G';
-						break;
-						
-					default:
-						kmerBytes[baseIndex] = (byte) 'T';
-					}
-					
-					if(baseIndex == kSize + 1)
-					{
-						--baseIndex;
-						kmerBytes[baseIndex] = tabByte;
-					}
-					
-					if(baseIndex == kSize/2+1)
-					{
-						--baseIndex;
-						kmerBytes[baseIndex] = tabByte;
-					}
-					
-					kmerCount[index].kmer >>= 2;
-				}
-				
-				countIndex = countBytes.length - 1;
-				while (kmerCount[index].count > 0) {
-					countBytes[countIndex--] = (byte) ('0' + kmerCount[index].count % 10);
-					kmerCount[index].count /= 10;
-				}
-				
-				if (countIndex == countBytes.length - 1) {
-					countBytes[countIndex--] = '0';
-				}
-			
-				buf.put(nlByte);
-				buf.put(kmerBytes);
-				buf.put(slByte);
-				buf.put(countBytes, countIndex + 1, countBytes.length - countIndex - 1);
-				buf.put(tabByte);
-				
-			}
-			else
-			{
-				int baseIndex = kSize + 1;
-				switch((int) kmerCount[index].kmer & 0x3) {
+		return;
+	}
+	
+	/**
+	 * Format and write a batch of k-mers. The batch is not modified.
+	 * 
+	 * @param batch K-mer counts.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	@Override
+	public void write(KmerBatch batch)
+			throws IOException {
+		
+		preKmer = -1;
+		
+		for (int index = 0; index < batch.length; ++index)
+			writeRecord(batch.kmer[index], batch.count[index]);
+		
+		return;
+	}
+	
+	/**
+	 * Format and write one k-mer. K-mers that share all bases except the last
+	 * base with the previous k-mer of the batch are appended to its line.
+	 * 
+	 * @param kmer K-mer.
+	 * @param count Count.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void writeRecord(long kmer, int count)
+			throws IOException {
+		
+		int countIndex;
+		
+		if (buf.remaining() < maxRecordSize)
+			flush();
+		if((kmer>>2) != preKmer)
+		{
+			preKmer=(kmer>>2);
+			for (int baseIndex = kSize + 1; baseIndex >= 0; --baseIndex) {
+				switch((int) kmer & 0x3) {
 				case 0:
 					kmerBytes[baseIndex] = (byte) 'A';
 					break;
@@ -162,26 +143,76 @@ public class ANLFormatWriter extends CountFormatWriter {
 					kmerBytes[baseIndex] = (byte) 'T';
 				}
 				
-				
-				kmerCount[index].kmer >>= 2;
-
-				
-				countIndex = countBytes.length - 1;
-				while (kmerCount[index].count > 0) {
-					countBytes[countIndex--] = (byte) ('0' + kmerCount[index].count % 10);
-					kmerCount[index].count /= 10;
+				if(baseIndex == kSize + 1)
+				{
+					--baseIndex;
+					kmerBytes[baseIndex] = tabByte;
 				}
 				
-				if (countIndex == countBytes.length - 1) {
-					countBytes[countIndex--] = '0';
+				if(baseIndex == kSize/2+1)
+				{
+					--baseIndex;
+					kmerBytes[baseIndex] = tabByte;
 				}
+				
+				kmer >>= 2;
+			}
 			
-				buf.put(kmerBytes[baseIndex]);
-				buf.put(slByte);
-				buf.put(countBytes, countIndex + 1, countBytes.length - countIndex - 1);
-				buf.put(tabByte);
+			countIndex = countBytes.length - 1;
+			while (count > 0) {
+				countBytes[countIndex--] = (byte) ('0' + count % 10);
+				count /= 10;
 			}
 			
+			if (countIndex == countBytes.length - 1) {
+				countBytes[countIndex--] = '0';
+			}
+		
+			buf.put(nlByte);
+			buf.put(kmerBytes);
+			buf.put(slByte);
+			buf.put(countBytes, countIndex + 1, countBytes.length - countIndex - 1);
+			buf.put(tabByte);
+			
+		}
+		else
+		{
+			int baseIndex = kSize + 1;
+			switch((int) kmer & 0x3) {
+			case 0:
+				kmerBytes[baseIndex] = (byte) 'A';
+				break;
+				
+			case 1:
+				kmerBytes[baseIndex] = (byte) 'C';
+				break;
+				
+			case 2:
+				kmerBytes[baseIndex] = (byte) 'G';
+				break;
+				
+			default:
+				kmerBytes[baseIndex] = (byte) 'T';
+			}
+			
+			
+			kmer >>= 2;
+
+			
+			countIndex = countBytes.length - 1;
+			while (count > 0) {
+				countBytes[countIndex--] = (byte) ('0' + count % 10);
+				count /= 10;
+			}
+			
+			if (countIndex == countBytes.length - 1) {
+				countBytes[countIndex--] = '0';
+			}
+		
+			buf.put(kmerBytes[baseIndex]);
+			buf.put(slByte);
+			buf.put(countBytes, countIndex + 1, countBytes.length - countIndex - 1);
+			buf.put(tabByte);
 		}
 		
 		return;
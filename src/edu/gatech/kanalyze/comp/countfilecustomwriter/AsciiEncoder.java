@@ -0,0 +1,227 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lookup tables and routines that write k-mers and numbers as ASCII directly
+ * into an output buffer. No objects are created while writing.
+ */
+final class AsciiEncoder {
+
+	/** ASCII base of each 2-bit base value. */
+	public static final byte[] BASE = {(byte) 'A', (byte) 'C', (byte) 'G', (byte) 'T'};
+
+	/** ASCII bases of the four 2-bit bases in each byte, packed big-endian into an int. */
+	private static final int[] BASE4 = new int[256];
+
+	/** ASCII digits of 00 to 99. */
+	private static final byte[] DIGIT_PAIRS = new byte[200];
+
+	/** Upper-case ASCII hex digits. */
+	private static final byte[] HEX_DIGITS = {
+		(byte) '0', (byte) '1', (byte) '2', (byte) '3', (byte) '4', (byte) '5', (byte) '6', (byte) '7',
+		(byte) '8', (byte) '9', (byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F'
+	};
+
+	/** Upper-case ASCII hex digits of each byte. */
+	private static final byte[] HEX_PAIRS = new byte[512];
+
+	/** Powers of ten that fit in a <code>long</code>. */
+	private static final long[] POW10 = new long[19];
+
+	static {
+		for (int index = 0; index < BASE4.length; ++index) {
+			BASE4[index] =
+					BASE[(index >> 6) & 0x3] << 24 |
+					BASE[(index >> 4) & 0x3] << 16 |
+					BASE[(index >> 2) & 0x3] << 8 |
+					BASE[index & 0x3];
+		}
+
+		for (int index = 0; index < 100; ++index) {
+			DIGIT_PAIRS[index * 2] = (byte) ('0' + index / 10);
+			DIGIT_PAIRS[index * 2 + 1] = (byte) ('0' + index % 10);
+		}
+
+		for (int index = 0; index < 256; ++index) {
+			HEX_PAIRS[index * 2] = HEX_DIGITS[index >> 4];
+			HEX_PAIRS[index * 2 + 1] = HEX_DIGITS[index & 0xF];
+		}
+
+		POW10[0] = 1;
+
+		for (int index = 1; index < POW10.length; ++index)
+			POW10[index] = POW10[index - 1] * 10;
+	}
+
+	/**
+	 * Hidden constructor.
+	 */
+	private AsciiEncoder() {
+		return;
+	}
+
+	/**
+	 * Write the lowest bases of a k-mer, most significant base first. Whole bytes
+	 * of the k-mer are written four bases at a time.
+	 *
+	 * @param buf Buffer to write to. Its byte order must be big-endian.
+	 * @param kmer K-mer.
+	 * @param size Number of bases to write.
+	 */
+	public static void putBases(ByteBuffer buf, long kmer, int size) {
+
+		int shift = size * 2;
+
+		// Bases above the highest whole byte
+		for (int lead = size & 0x3; lead > 0; --lead) {
+			shift -= 2;
+			buf.put(BASE[(int) (kmer >>> shift) & 0x3]);
+		}
+
+		while (shift > 0) {
+			shift -= 8;
+			buf.putInt(BASE4[(int) (kmer >>> shift) & 0xFF]);
+		}
+
+		return;
+	}
+
+	/**
+	 * Write a number in decimal.
+	 *
+	 * @param buf Buffer to write to.
+	 * @param value Number to write. Must be greater than <code>Long.MIN_VALUE</code>.
+	 */
+	public static void putDecimal(ByteBuffer buf, long value) {
+		putDecimal(buf, value, 1);
+
+		return;
+	}
+
+	/**
+	 * Write a number in decimal padded with zeros. Like <code>String.format</code>,
+	 * the sign is counted in the width.
+	 *
+	 * @param buf Buffer to write to.
+	 * @param value Number to write. Must be greater than <code>Long.MIN_VALUE</code>.
+	 * @param width Minimum number of characters.
+	 */
+	public static void putDecimal(ByteBuffer buf, long value, int width) {
+
+		int position;
+		int index;
+		int pair;
+
+		if (value < 0) {
+			buf.put((byte) '-');
+			value = -value;
+			--width;
+		}
+
+		position = buf.position();
+		index = position + Math.max(width, decimalLength(value));
+
+		buf.position(index);
+
+		// Write digits backwards two at a time
+		while (value >= 100) {
+			pair = (int) (value % 100) * 2;
+			value /= 100;
+
+			buf.put(--index, DIGIT_PAIRS[pair + 1]);
+			buf.put(--index, DIGIT_PAIRS[pair]);
+		}
+
+		if (value >= 10) {
+			pair = (int) value * 2;
+
+			buf.put(--index, DIGIT_PAIRS[pair + 1]);
+			buf.put(--index, DIGIT_PAIRS[pair]);
+
+		} else {
+			buf.put(--index, (byte) ('0' + value));
+		}
+
+		while (index > position)
+			buf.put(--index, (byte) '0');
+
+		return;
+	}
+
+	/**
+	 * Write a number in upper-case hex padded with zeros. Negative numbers are
+	 * written as unsigned two's complement.
+	 *
+	 * @param buf Buffer to write to.
+	 * @param value Number to write.
+	 * @param width Minimum number of digits.
+	 */
+	public static void putHex(ByteBuffer buf, long value, int width) {
+
+		int position = buf.position();
+		int index = position + Math.max(width, hexLength(value));
+		int pair;
+
+		buf.position(index);
+
+		// Write digits backwards one byte at a time
+		while (index - position >= 2) {
+			pair = ((int) value & 0xFF) * 2;
+			value >>>= 8;
+
+			buf.put(--index, HEX_PAIRS[pair + 1]);
+			buf.put(--index, HEX_PAIRS[pair]);
+		}
+
+		if (index > position)
+			buf.put(--index, HEX_DIGITS[(int) value & 0xF]);
+
+		return;
+	}
+
+	/**
+	 * Get the number of decimal digits of a non-negative number.
+	 *
+	 * @param value Number.
+	 *
+	 * @return Number of digits.
+	 */
+	public static int decimalLength(long value) {
+
+		int length = 1;
+
+		while (length < POW10.length && value >= POW10[length])
+			++length;
+
+		return length;
+	}
+
+	/**
+	 * Get the number of hex digits of a number written as unsigned.
+	 *
+	 * @param value Number.
+	 *
+	 * @return Number of digits.
+	 */
+	public static int hexLength(long value) {
+		return Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 3) / 4);
+	}
+}
@@ -0,0 +1,493 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A channel that compresses output to BGZF, the blocked gzip format of bgzip and
+ * samtools. Bytes are cut into blocks of at most <code>BLOCK_DATA_SIZE</code>
+ * bytes, and each block is deflated on a pool of threads as an independent gzip
+ * member. Blocks are written in order, so the output can be read by any gzip
+ * reader. When the channel is closed, an empty end-of-file block is written, and
+ * an optional index of the compressed and uncompressed offset of each block is
+ * written in the .gzi format of bgzip.
+ */
+class BgzfChannel implements WritableByteChannel {
+	
+	/** Channel compressed blocks are written to. */
+	private final WritableByteChannel out;
+	
+	/** Pool blocks are deflated on. */
+	private final ExecutorService deflatePool;
+	
+	/** Deflate compression level. */
+	private final int level;
+	
+	/** Maximum number of blocks deflating before the writer waits for one. */
+	private final int maxPending;
+	
+	/** Name of the index file, or <code>null</code> if no index is written. */
+	private final String indexFileName;
+	
+	/** Deflaters that are not in use. */
+	private final LinkedBlockingQueue<Deflater> deflaterQueue;
+	
+	/** All deflaters of this channel. They are ended when the channel is closed. */
+	private final List<Deflater> deflaterList;
+	
+	/** Block being filled. */
+	private byte[] block;
+	
+	/** Number of bytes in <code>block</code>. */
+	private int blockLength;
+	
+	/** Blocks deflating in the order they were filled. */
+	private final ArrayDeque<Future<ByteBuffer>> pendingQueue;
+	
+	/** Block arrays that may be filled again. */
+	private final LinkedBlockingQueue<byte[]> freeQueue;
+	
+	/** Compressed offset of each block after the first. Set when the block is written. */
+	private long[] compressedOffset;
+	
+	/** Uncompressed offset of each block after the first. */
+	private long[] uncompressedOffset;
+	
+	/** Number of index entries. */
+	private int indexLength;
+	
+	/** Number of blocks written. */
+	private int blockCount;
+	
+	/** Number of compressed bytes written. */
+	private long compressedSize;
+	
+	/** Number of uncompressed bytes in blocks that were filled. */
+	private long uncompressedSize;
+	
+	/** Set when the channel is closed. */
+	private boolean closed;
+	
+	/** Maximum number of uncompressed bytes in a block. Same as bgzip, so the deflated block always fits. */
+	public static final int BLOCK_DATA_SIZE = 0xff00;
+	
+	/** Maximum size of a compressed block. */
+	public static final int MAX_BLOCK_SIZE = 0x10000;
+	
+	/** Size of the block header. */
+	private static final int HEADER_SIZE = 18;
+	
+	/** Size of the block trailer (CRC32 and uncompressed size). */
+	private static final int TRAILER_SIZE = 8;
+	
+	/** Empty block that marks the end of a BGZF file. */
+	private static final byte[] EOF_BLOCK = {
+		0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+		0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+	};
+	
+	/** Initial number of index entries. */
+	private static final int DEFAULT_INDEX_SIZE = 1024;
+	
+	/**
+	 * Create a new BGZF channel.
+	 * 
+	 * @param out Channel compressed blocks are written to. It is closed when this
+	 *   channel is closed.
+	 * @param deflatePool Pool blocks are deflated on. It is not shut down by this channel.
+	 * @param level Deflate compression level (0 to 9).
+	 * @param maxPending Maximum number of blocks deflating before the writer waits for one.
+	 * @param indexFileName Name of the index file, or <code>null</code> to not write an index.
+	 * 
+	 * @throws NullPointerException If <code>out</code> or <code>deflatePool</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>level</code> is not between 0 and 9 or
+	 *   <code>maxPending</code> is less than 1.
+	 */
+	public BgzfChannel(WritableByteChannel out, ExecutorService deflatePool, int level, int maxPending, String indexFileName)
+			throws NullPointerException, IllegalArgumentException {
+		
+		if (out == null)
+			throw new NullPointerException("Cannot create BGZF channel with output channel: null");
+		
+		if (deflatePool == null)
+			throw new NullPointerException("Cannot create BGZF channel with deflate pool: null");
+		
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Cannot create BGZF channel: Compression level is not between " + Deflater.NO_COMPRESSION + " and " + Deflater.BEST_COMPRESSION + ": " + level);
+		
+		if (maxPending < 1)
+			throw new IllegalArgumentException("Cannot create BGZF channel: Maximum number of pending blocks is less than 1: " + maxPending);
+		
+		this.out = out;
+		this.deflatePool = deflatePool;
+		this.level = level;
+		this.maxPending = maxPending;
+		this.indexFileName = indexFileName;
+		
+		deflaterQueue = new LinkedBlockingQueue<Deflater>();
+		deflaterList = new ArrayList<Deflater>();
+		
+		block = new byte[BLOCK_DATA_SIZE];
+		blockLength = 0;
+		
+		pendingQueue = new ArrayDeque<Future<ByteBuffer>>();
+		freeQueue = new LinkedBlockingQueue<byte[]>();
+		
+		compressedOffset = new long[DEFAULT_INDEX_SIZE];
+		uncompressedOffset = new long[DEFAULT_INDEX_SIZE];
+		indexLength = 0;
+		blockCount = 0;
+		
+		compressedSize = 0;
+		uncompressedSize = 0;
+		
+		closed = false;
+		
+		return;
+	}
+	
+	/**
+	 * Add bytes to blocks. Full blocks are deflated in the background.
+	 * 
+	 * @param src Bytes to write. All remaining bytes are consumed.
+	 * 
+	 * @return Number of bytes written.
+	 * 
+	 * @throws IOException If the channel is closed or an IO error occurs while
+	 *   deflating or writing a block.
+	 */
+	@Override
+	public int write(ByteBuffer src)
+			throws IOException {
+		
+		int size = src.remaining();
+		int copySize;
+		
+		if (closed)
+			throw new ClosedChannelException();
+		
+		while (src.hasRemaining()) {
+			copySize = Math.min(src.remaining(), BLOCK_DATA_SIZE - blockLength);
+			
+			src.get(block, blockLength, copySize);
+			blockLength += copySize;
+			
+			if (blockLength == BLOCK_DATA_SIZE)
+				submitBlock();
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Determine if this channel is open.
+	 * 
+	 * @return <code>true</code> if this channel is open.
+	 */
+	@Override
+	public boolean isOpen() {
+		return ! closed;
+	}
+	
+	/**
+	 * Write the last block, the end-of-file block, and the index, and close the
+	 * output channel. Native memory of the deflaters is released.
+	 * 
+	 * @throws IOException If an IO error occurs while deflating or writing.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		
+		if (closed)
+			return;
+		
+		closed = true;
+		
+		try {
+			if (blockLength > 0)
+				submitBlock();
+			
+			while (! pendingQueue.isEmpty())
+				writeBlock(waitBlock(pendingQueue.poll()));
+			
+			ByteBuffer eofBuf = ByteBuffer.wrap(EOF_BLOCK);
+			
+			while (eofBuf.hasRemaining())
+				out.write(eofBuf);
+			
+			if (indexFileName != null)
+				writeIndex();
+			
+		} finally {
+			
+			// Let blocks that are still deflating finish before the output is closed
+			for (Future<ByteBuffer> future : pendingQueue) {
+				try {
+					waitBlock(future);
+					
+				} catch (IOException ex) {
+					// Ignore - the first error is reported
+				}
+			}
+			
+			// No task uses a deflater after all tasks are done
+			synchronized (deflaterList) {
+				for (Deflater blockDeflater : deflaterList)
+					blockDeflater.end();
+				
+				deflaterList.clear();
+			}
+			
+			deflaterQueue.clear();
+			
+			out.close();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get a deflater that is not in use. A new one is created if all are in use, so
+	 * there are at most as many as blocks deflating at once.
+	 * 
+	 * @return A deflater. Return it with <code>deflaterQueue.add()</code> after it is reset.
+	 */
+	private Deflater getDeflater() {
+		
+		Deflater blockDeflater = deflaterQueue.poll();
+		
+		if (blockDeflater == null) {
+			blockDeflater = new Deflater(level, true);
+			
+			synchronized (deflaterList) {
+				deflaterList.add(blockDeflater);
+			}
+		}
+		
+		return blockDeflater;
+	}
+	
+	/**
+	 * Deflate the block being filled in the background, and write blocks that are
+	 * done. If too many blocks are deflating, wait for the oldest.
+	 * 
+	 * @throws IOException If an IO error occurs while deflating or writing a block.
+	 */
+	private void submitBlock()
+			throws IOException {
+		
+		// Index the start of each block after the first
+		if (uncompressedSize > 0 && indexFileName != null) {
+			if (indexLength == compressedOffset.length) {
+				long[] newCompressed = new long[indexLength * 2];
+				long[] newUncompressed = new long[indexLength * 2];
+				
+				System.arraycopy(compressedOffset, 0, newCompressed, 0, indexLength);
+				System.arraycopy(uncompressedOffset, 0, newUncompressed, 0, indexLength);
+				
+				compressedOffset = newCompressed;
+				uncompressedOffset = newUncompressed;
+			}
+			
+			// Compressed offset is set when the block is written
+			uncompressedOffset[indexLength] = uncompressedSize;
+			++indexLength;
+		}
+		
+		pendingQueue.add(deflatePool.submit(new DeflateTask(block, blockLength)));
+		uncompressedSize += blockLength;
+		
+		if ((block = freeQueue.poll()) == null)
+			block = new byte[BLOCK_DATA_SIZE];
+		
+		blockLength = 0;
+		
+		// Write blocks that are done, and wait if too many are pending
+		while (! pendingQueue.isEmpty() && (pendingQueue.peek().isDone() || pendingQueue.size() >= maxPending))
+			writeBlock(waitBlock(pendingQueue.poll()));
+		
+		return;
+	}
+	
+	/**
+	 * Write a compressed block.
+	 * 
+	 * @param blockBuf Compressed block.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void writeBlock(ByteBuffer blockBuf)
+			throws IOException {
+		
+		if (blockCount > 0 && indexFileName != null)
+			compressedOffset[blockCount - 1] = compressedSize;
+		
+		++blockCount;
+		compressedSize += blockBuf.remaining();
+		
+		while (blockBuf.hasRemaining())
+			out.write(blockBuf);
+		
+		return;
+	}
+	
+	/**
+	 * Wait for a block to be deflated.
+	 * 
+	 * @param future Result of the deflate task.
+	 * 
+	 * @return Compressed block ready to be written.
+	 * 
+	 * @throws IOException If an error occurred while deflating.
+	 */
+	private static ByteBuffer waitBlock(Future<ByteBuffer> future)
+			throws IOException {
+		
+		while (true) {
+			try {
+				return future.get();
+				
+			} catch (InterruptedException ex) {
+				// Try again
+				
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+				
+				throw new IOException("Error deflating block: " + ex.getCause(), ex.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Write the index. It holds the number of entries followed by the compressed
+	 * and uncompressed offset of each block after the first, all as little-endian
+	 * 64-bit integers.
+	 * 
+	 * @throws IOException If an IO error occurs while writing the index.
+	 */
+	private void writeIndex()
+			throws IOException {
+		
+		ByteBuffer indexBuf = ByteBuffer.allocate(8 + indexLength * 16).order(ByteOrder.LITTLE_ENDIAN);
+		
+		indexBuf.putLong(indexLength);
+		
+		for (int index = 0; index < indexLength; ++index) {
+			indexBuf.putLong(compressedOffset[index]);
+			indexBuf.putLong(uncompressedOffset[index]);
+		}
+		
+		indexBuf.flip();
+		
+		try (FileOutputStream fos = new FileOutputStream(indexFileName)) {
+			while (indexBuf.hasRemaining())
+				fos.getChannel().write(indexBuf);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Deflates one block into a gzip member with the BGZF extra field.
+	 */
+	private class DeflateTask implements Callable<ByteBuffer> {
+		
+		/** Uncompressed bytes. Returned to the free queue when deflated. */
+		private final byte[] data;
+		
+		/** Number of bytes in <code>data</code>. */
+		private final int length;
+		
+		/**
+		 * Create a new deflate task.
+		 * 
+		 * @param data Uncompressed bytes.
+		 * @param length Number of bytes in <code>data</code>.
+		 */
+		public DeflateTask(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+			
+			return;
+		}
+		
+		@Override
+		public ByteBuffer call()
+				throws IOException {
+			
+			byte[] blockData = new byte[MAX_BLOCK_SIZE];
+			Deflater blockDeflater = getDeflater();
+			CRC32 crc = new CRC32();
+			int cSize;
+			
+			try {
+				blockDeflater.setInput(data, 0, length);
+				blockDeflater.finish();
+				
+				cSize = blockDeflater.deflate(blockData, HEADER_SIZE, MAX_BLOCK_SIZE - HEADER_SIZE - TRAILER_SIZE);
+				
+				if (! blockDeflater.finished())
+					throw new IOException("Deflated block is larger than the maximum BGZF block size: " + MAX_BLOCK_SIZE);
+				
+			} finally {
+				blockDeflater.reset();
+				deflaterQueue.add(blockDeflater);
+			}
+			
+			crc.update(data, 0, length);
+			freeQueue.add(data);
+			
+			ByteBuffer blockBuf = ByteBuffer.wrap(blockData, 0, HEADER_SIZE + cSize + TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			
+			// Header: gzip magic, deflate, FEXTRA, no time, unknown OS, and the BC subfield with the block size
+			blockBuf.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4);
+			blockBuf.putInt(0);
+			blockBuf.put((byte) 0).put((byte) 0xff);
+			blockBuf.putShort((short) 6);
+			blockBuf.put((byte) 'B').put((byte) 'C').putShort((short) 2);
+			blockBuf.putShort((short) (HEADER_SIZE + cSize + TRAILER_SIZE - 1));
+			
+			// Trailer
+			blockBuf.position(HEADER_SIZE + cSize);
+			blockBuf.putInt((int) crc.getValue());
+			blockBuf.putInt(length);
+			
+			blockBuf.position(0);
+			
+			return blockBuf;
+		}
+	}
+}
@@ -17,176 +17,930 @@
 package edu.gatech.kanalyze.comp.countfilecustomwriter;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.gatech.khet.Constants;
 import edu.gatech.khet.merger.CountMergeComponent;
+import edu.gatech.khet.merger.DaemonThreadFactory;
 import edu.gatech.kanalyze.io.OutputFormat;
-import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
+import edu.gatech.kanalyze.util.KmerBatchPool;
 
 /**
- * Writes k-mers to a file.
+ * Writes k-mers to one or more files. With more than one output, each output is
+ * written by its own thread from the same stream of batches. Outputs may be split
+ * into shard files by the top bits of the k-mer, and each shard is written by its
+ * own thread.
  */
 public class CountFileWriterComponent implements Runnable {
 
 	/** Queue k-mers are read from. */
-	private LinkedBlockingQueue<CounterPair[]> countQueue;
+	private LinkedBlockingQueue<KmerBatch> countQueue;
 	
-	/** Name of the output file. */
-	private final String fileName;
+	/** Pool batches are recycled to after they are written. */
+	private final KmerBatchPool batchPool;
+	
+	/** Output files and their formats. */
+	private final List<OutputSpec> outputList;
 	
 	/** K-mer size. */
 	private final int kSize;
 	
 	/** K-mer write counter. */
 	private int writeCount;
-
-	/** Output format. */
-	private OutputFormat outFmt;
 	
+	/** Set if an output could not be written. Read after the writer thread ends. */
+	private volatile boolean failed;
+	
+	/** Set after <code>CountMergeComponent.END_OF_MERGE</code> was taken from the count queue. */
+	private boolean mergeDone;
+
 	private CountMergeComponent mergeComponent;
 	
 	private int lowerThreshold;
 	
+	/** Number of threads formatting batches. */
+	private int formatThreads;
+	
+	/** Number of output buffers rotating between formatting and writing. */
+	private int flushBuffers;
+	
+	/** Number of shard files each output is split into. */
+	private int shardCount;
+	
+	/** Shift that moves the shard bits of a k-mer to the lowest bits. */
+	private int shardShift;
+	
+	/** Concatenate shard files into the output file. */
+	private boolean concatShards;
+	
+	/** Compress output to BGZF. */
+	private boolean bgzf;
+	
+	/** Deflate compression level of BGZF blocks. */
+	private int bgzfLevel;
+	
+	/** Number of threads deflating BGZF blocks. */
+	private int bgzfThreads;
+	
+	/** Write a .gzi index of BGZF blocks next to each output. */
+	private boolean bgzfIndex;
+	
+	/** Pool BGZF blocks of all outputs are deflated on, or <code>null</code> if output is not compressed. */
+	private ExecutorService deflatePool;
+	
+	/** Format writers that are not formatting a batch. */
+	private final LinkedBlockingQueue<CountFormatWriter> writerQueue;
+	
+	/** Buffers of formatted batches that were written. */
+	private final LinkedBlockingQueue<ByteBuffer> bufferQueue;
+	
+	/** Default number of threads formatting batches. */
+	public static final int DEFAULT_FORMAT_THREADS = 1;
+	
+	/** Property: Number of threads formatting batches. If 1, batches are formatted by the writer thread. */
+	public static final String PROP_FORMAT_THREADS = "comp.write.threads";
+	
+	/** Default number of output buffers. */
+	public static final int DEFAULT_FLUSH_BUFFERS = 2;
+	
+	/** Property: Number of output buffers rotating between formatting and writing. If 1, the writer thread writes full buffers. */
+	public static final String PROP_FLUSH_BUFFERS = "comp.write.buffers";
+	
+	/** Default number of shard files of an output. */
+	public static final int DEFAULT_SHARDS = 1;
+	
+	/** Maximum number of shard files of an output. */
+	public static final int MAX_SHARDS = 256;
+	
+	/** Smallest output buffer of a shard. */
+	public static final int MIN_SHARD_BUFFER_SIZE = 1048576;
 	
 	/**
-	 * Create a new count file writer component.
+	 * Output file name that writes to standard output. Files that are not regular
+	 * files, such as named pipes, are written as they are opened.
+	 */
+	public static final String STDOUT_FILE_NAME = "-";
+	
+	/** Property: Number of shard files an output is split into by the top bits of the k-mer. Must be a power of 2 and at most the number of flank groups (4^(k - 1)). */
+	public static final String PROP_SHARDS = "comp.write.shards";
+	
+	/** Property: "true" to concatenate shard files into the output file when they are written. */
+	public static final String PROP_CONCAT_SHARDS = "comp.write.concat";
+	
+	/** Default deflate compression level of BGZF blocks. */
+	public static final int DEFAULT_BGZF_LEVEL = 6;
+	
+	/** Extension of the BGZF index file. */
+	public static final String BGZF_INDEX_EXTENSION = ".gzi";
+	
+	/** Property: "true" to compress output to BGZF (blocked gzip) with blocks deflated in parallel. */
+	public static final String PROP_BGZF = "comp.write.bgzf";
+	
+	/** Property: Deflate compression level of BGZF blocks (0 to 9). */
+	public static final String PROP_BGZF_LEVEL = "comp.write.bgzf.level";
+	
+	/** Property: Number of threads deflating BGZF blocks. Defaults to the number of processors. */
+	public static final String PROP_BGZF_THREADS = "comp.write.bgzf.threads";
+	
+	/** Property: "true" to write a .gzi index of BGZF block offsets next to each output. */
+	public static final String PROP_BGZF_INDEX = "comp.write.bgzf.index";
+	
+	/** Number of formatted batches per format thread that may wait to be written. */
+	private static final int PENDING_PER_THREAD = 4;
+	
+	/** Marks the end of the batches of an output. */
+	private static final SharedBatch END_OF_OUTPUT = new SharedBatch(null, 0);
+	
+	/**
+	 * Create a new count file writer component with one output. The format is
+	 * set by <code>Constants.PROP_OUTFMT</code> in <code>compProp</code>.
 	 * 
 	 * @param countQueue Queue to read k-mer counts from.
+	 * @param batchPool Pool batches are recycled to after they are written.
 	 * @param fileName Name of the file to output.
 	 * @param kSize K-mer size.
 	 * @param compProp Properties given to components
 	 * @param wf 
 	 * 
-	 * @throws NullPointerException If <code>kmerQueue</code> or <code>fileName</code>
-	 *   is <code>null</code>.
+	 * @throws NullPointerException If <code>kmerQueue</code>, <code>batchPool</code>, or
+	 *   <code>fileName</code> is <code>null</code>.
 	 * @throws IllegalArgumentException If <code>kSize</code> is not a valid k-mer size or
 	 *   if an invalid option is found in <code>compProp</code>.
 	 */
-	public CountFileWriterComponent(LinkedBlockingQueue<CounterPair[]> countQueue, CountMergeComponent mergeComponent, String fileName, int kSize, int lowerThreshold, Properties compProp)
+	public CountFileWriterComponent(LinkedBlockingQueue<KmerBatch> countQueue, KmerBatchPool batchPool, CountMergeComponent mergeComponent, String fileName, int kSize, int lowerThreshold, Properties compProp)
+			throws NullPointerException, IllegalArgumentException {
+		
+		this(countQueue, batchPool, mergeComponent, getOutputList(fileName, compProp), kSize, lowerThreshold, compProp);
+		
+		return;
+	}
+	
+	/**
+	 * Create a new count file writer component.
+	 * 
+	 * @param countQueue Queue to read k-mer counts from.
+	 * @param batchPool Pool batches are recycled to after all outputs wrote them.
+	 * @param outputList Output files and their formats.
+	 * @param kSize K-mer size.
+	 * @param compProp Properties given to components
+	 * 
+	 * @throws NullPointerException If <code>kmerQueue</code>, <code>batchPool</code>, or
+	 *   <code>outputList</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> is not a valid k-mer size, if
+	 *   <code>outputList</code> is empty or names a file more than once, or if an invalid
+	 *   option is found in <code>compProp</code>.
+	 */
+	public CountFileWriterComponent(LinkedBlockingQueue<KmerBatch> countQueue, KmerBatchPool batchPool, CountMergeComponent mergeComponent, List<OutputSpec> outputList, int kSize, int lowerThreshold, Properties compProp)
 			throws NullPointerException, IllegalArgumentException {
 		
 		String value; // Value buffer for processing properties
+		Set<String> fileNameSet;
 
 		// Check arguments
 		if (countQueue == null)
 			throw new NullPointerException("Cannot create count file writer with count queue: null");
 		
-		if (fileName == null)
-			throw new NullPointerException("Cannot create count file writer with file name: null");
+		if (batchPool == null)
+			throw new NullPointerException("Cannot create count file writer with batch pool: null");
+		
+		if (outputList == null)
+			throw new NullPointerException("Cannot create count file writer with output list: null");
+		
+		if (outputList.isEmpty())
+			throw new IllegalArgumentException("Cannot create count file writer without outputs");
+		
+		fileNameSet = new HashSet<String>();
+		
+		for (OutputSpec spec : outputList) {
+			if (spec == null)
+				throw new NullPointerException("Cannot create count file writer with output: null");
+			
+			if (! fileNameSet.add(new File(spec.fileName).getAbsolutePath()))
+				throw new IllegalArgumentException("Cannot create count file writer: Output file is given more than once: " + spec.fileName);
+		}
 		
 		if (kSize < 0 || kSize > Constants.LIMIT_KSIZE)
 			throw new IllegalArgumentException("k-mer size is out of bounds (1 <= size <= " + Constants.LIMIT_KSIZE + "): " + kSize);
 		
 		// Set fields
 		this.countQueue = countQueue;
-		this.fileName = fileName;
+		this.batchPool = batchPool;
+		this.outputList = new ArrayList<OutputSpec>(outputList);
 		this.kSize = kSize;
-		this.outFmt = OutputFormat.SEQ;
 		this.mergeComponent = mergeComponent;
 		this.lowerThreshold = lowerThreshold;
 		
 		// Process properties
+		formatThreads = DEFAULT_FORMAT_THREADS;
+		
+		if ((value = compProp.getProperty(PROP_FORMAT_THREADS)) != null) {
+			try {
+				formatThreads = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of format threads in properties (" + PROP_FORMAT_THREADS + ") is not an integer: " + value);
+			}
+			
+			if (formatThreads < 1)
+				throw new IllegalArgumentException("Number of format threads in properties (" + PROP_FORMAT_THREADS + ") is less than 1: " + formatThreads);
+		}
+		
+		flushBuffers = DEFAULT_FLUSH_BUFFERS;
+		
+		if ((value = compProp.getProperty(PROP_FLUSH_BUFFERS)) != null) {
+			try {
+				flushBuffers = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of output buffers in properties (" + PROP_FLUSH_BUFFERS + ") is not an integer: " + value);
+			}
+			
+			if (flushBuffers < 1)
+				throw new IllegalArgumentException("Number of output buffers in properties (" + PROP_FLUSH_BUFFERS + ") is less than 1: " + flushBuffers);
+		}
+		
+		shardCount = DEFAULT_SHARDS;
+		
+		if ((value = compProp.getProperty(PROP_SHARDS)) != null) {
+			try {
+				shardCount = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of shards in properties (" + PROP_SHARDS + ") is not an integer: " + value);
+			}
+			
+			if (shardCount < 1 || shardCount > MAX_SHARDS || Integer.bitCount(shardCount) != 1)
+				throw new IllegalArgumentException("Number of shards in properties (" + PROP_SHARDS + ") is not a power of 2 between 1 and " + MAX_SHARDS + ": " + shardCount);
+			
+			// The lowest base is the middle base of a rotated k-mer, and a flank group must not be split
+			if (Integer.numberOfTrailingZeros(shardCount) > kSize * 2 - 2)
+				throw new IllegalArgumentException("Number of shards in properties (" + PROP_SHARDS + ") is greater than the number of flank groups (" + (1L << (kSize * 2 - 2)) + "): " + shardCount);
+		}
+		
+		shardShift = kSize * 2 - Integer.numberOfTrailingZeros(shardCount);
+		
+		concatShards = getBoolean(compProp, PROP_CONCAT_SHARDS, "Shard concatenation");
+		
+		bgzf = getBoolean(compProp, PROP_BGZF, "BGZF compression");
+		bgzfIndex = getBoolean(compProp, PROP_BGZF_INDEX, "BGZF index");
+		bgzfLevel = DEFAULT_BGZF_LEVEL;
+		bgzfThreads = Runtime.getRuntime().availableProcessors();
+		
+		if ((value = compProp.getProperty(PROP_BGZF_LEVEL)) != null) {
+			try {
+				bgzfLevel = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("BGZF compression level in properties (" + PROP_BGZF_LEVEL + ") is not an integer: " + value);
+			}
+			
+			if (bgzfLevel < 0 || bgzfLevel > 9)
+				throw new IllegalArgumentException("BGZF compression level in properties (" + PROP_BGZF_LEVEL + ") is not between 0 and 9: " + bgzfLevel);
+		}
+		
+		if ((value = compProp.getProperty(PROP_BGZF_THREADS)) != null) {
+			try {
+				bgzfThreads = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of BGZF threads in properties (" + PROP_BGZF_THREADS + ") is not an integer: " + value);
+			}
+			
+			if (bgzfThreads < 1)
+				throw new IllegalArgumentException("Number of BGZF threads in properties (" + PROP_BGZF_THREADS + ") is less than 1: " + bgzfThreads);
+		}
+		
+		if (bgzfIndex && ! bgzf)
+			throw new IllegalArgumentException("BGZF index (" + PROP_BGZF_INDEX + ") is set without BGZF compression (" + PROP_BGZF + ")");
+		
+		if (bgzf) {
+			for (OutputSpec spec : this.outputList) {
+				if (spec.format == OutputFormat.KHB)
+					throw new IllegalArgumentException("Cannot compress " + OutputFormat.KHB + " output (" + PROP_BGZF + "): Its block index refers to uncompressed offsets: " + spec.fileName);
+				
+				if (bgzfIndex && spec.fileName.equals(STDOUT_FILE_NAME))
+					throw new IllegalArgumentException("Cannot write a BGZF index (" + PROP_BGZF_INDEX + ") for standard output");
+			}
+			
+			if (bgzfIndex && concatShards && shardCount > 1)
+				throw new IllegalArgumentException("Cannot write a BGZF index (" + PROP_BGZF_INDEX + ") for concatenated shards (" + PROP_CONCAT_SHARDS + ")");
+		}
+		
+		if (shardCount > 1) {
+			for (OutputSpec spec : this.outputList)
+				if (spec.fileName.equals(STDOUT_FILE_NAME))
+					throw new IllegalArgumentException("Cannot write shards (" + PROP_SHARDS + ") to standard output");
+		}
+		
+		if (concatShards && shardCount > 1) {
+			for (OutputSpec spec : this.outputList)
+				if (spec.format == OutputFormat.KHB)
+					throw new IllegalArgumentException("Cannot concatenate shards of " + OutputFormat.KHB + " output (" + PROP_CONCAT_SHARDS + "): Each shard has its own header and index: " + spec.fileName);
+		}
+		
+		writerQueue = new LinkedBlockingQueue<CountFormatWriter>();
+		bufferQueue = new LinkedBlockingQueue<ByteBuffer>();
+		
+		writeCount = 0;
+		failed = false;
+		mergeDone = false;
+		
+		return;
+	}
+	
+	/**
+	 * Get a "true" or "false" property.
+	 * 
+	 * @param compProp Component properties.
+	 * @param prop Property name.
+	 * @param description Description of the property for error messages.
+	 * 
+	 * @return Value of the property, or <code>false</code> if it is not set.
+	 * 
+	 * @throws IllegalArgumentException If the property is not "true" or "false".
+	 */
+	private static boolean getBoolean(Properties compProp, String prop, String description)
+			throws IllegalArgumentException {
+		
+		String value = compProp.getProperty(prop);
+		
+		if (value == null)
+			return false;
+		
+		value = value.trim().toLowerCase();
+		
+		if (value.equals("true"))
+			return true;
+		
+		if (! value.equals("false"))
+			throw new IllegalArgumentException(description + " in properties (" + prop + ") is not \"true\" or \"false\": " + value);
+		
+		return false;
+	}
+	
+	/**
+	 * Get the output of the single-output constructor.
+	 * 
+	 * @param fileName Name of the file to output.
+	 * @param compProp Properties given to components.
+	 * 
+	 * @return A list with one output.
+	 * 
+	 * @throws NullPointerException If <code>fileName</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If the output format in <code>compProp</code> is not recognized.
+	 */
+	private static List<OutputSpec> getOutputList(String fileName, Properties compProp)
+			throws NullPointerException, IllegalArgumentException {
+		
+		List<OutputSpec> outputList = new ArrayList<OutputSpec>();
+		OutputFormat outFmt = OutputFormat.SEQ;
+		String value;
+		
+		if (fileName == null)
+			throw new NullPointerException("Cannot create count file writer with file name: null");
+		
 		if ((value = compProp.getProperty(Constants.PROP_OUTFMT)) != null)
 			outFmt = OutputFormat.getFormat(value);
 		
 		if (outFmt == null)
 			throw new IllegalArgumentException("Unrecognized output format in properties (" + Constants.PROP_OUTFMT + "): " + value);
 		
-		writeCount = 0;
+		outputList.add(new OutputSpec(outFmt, fileName));
 		
-		return;
+		return outputList;
 	}
 	
-	
 	/**
 	 * Run this component.
 	 */
 	@Override
 	public void run() {
 		
-		File outFile;
+		if (bgzf)
+			deflatePool = Executors.newFixedThreadPool(bgzfThreads, new DaemonThreadFactory("khet_deflate_"));
+		
+		try {
+			if (outputList.size() > 1 || shardCount > 1)
+				writeFanOut();
+			else
+				writeSingle(outputList.get(0));
+			
+		} finally {
+			if (deflatePool != null)
+				deflatePool.shutdown();
+		}
+		
+		System.out.println("writer done");
+		return;
+	}
+	
+	/**
+	 * Write the count queue to one output.
+	 * 
+	 * @param spec Output file and format.
+	 */
+	private void writeSingle(OutputSpec spec) {
+		
 		CountFormatWriter formatWriter = null;
-		CounterPair[] countBatch;
+		KmerBatch countBatch;
 		
-		// Output file
-		outFile = new File(fileName);
-
 		// Read each k-mer and write
-		try (FileOutputStream fos = new FileOutputStream(outFile)) {
-			FileChannel fc = fos.getChannel();
+		try (WritableByteChannel fc = openOutput(spec.fileName)) {
 			
-			System.out.println("writer: "+outFmt);
+			System.out.println("writer: "+spec.format);
 			
-			// Set writer
-			switch(outFmt) {
-			case SEQ:
-				formatWriter = new SEQFormatWriter(fc, kSize, lowerThreshold);
-				break;
+			// Binary groups and blocks span batches, so batches are not formatted independently
+			if (formatThreads > 1 && spec.format != OutputFormat.KHB) {
+				writeParallel(fc, spec.format);
 				
-			case INT:
-				formatWriter = new INTFormatWriter(fc, kSize);
-				break;
+			} else {
 				
-			case HEX:
-				formatWriter = new HEXFormatWriter(fc, kSize);
-				break;
+				// Set writer
+				formatWriter = newFormatWriter(spec.format, fc, CountFormatWriter.DEFAULT_BUFFER_SIZE);
+				formatWriter.startFlusher(flushBuffers);
+				
+				while ((countBatch = nextBatch()) != null) {
+					
+					// Write
+					formatWriter.write(countBatch);
+					batchPool.recycle(countBatch);
+				}
+				
+				formatWriter.finish();
+				
+				System.out.println("writer flush: " + formatWriter.getFlushCount() + " buffers in " + formatWriter.getFlushTime() + " ms (max " + formatWriter.getMaxFlushTime() + " ms), buffer wait: " + formatWriter.getBufferWaitTime() + " ms");
+				
+				// Clean up
+				try {
+					formatWriter.postExec();
+					
+				} catch (Throwable ex) {
+					// Ignore
+				}
+			}
+			
+		} catch (IOException ex) {
+			//error("IO error writing output file: " + fileName + ": " + ex.getMessage(), Constants.ERR_IO, ex);
+			System.out.println("IO error writing output file: " + spec.fileName + ": " + ex.getMessage());
+			ex.printStackTrace();
+			failed = true;
+			
+			// The count queue is bounded, so keep taking batches until the merge is done
+			while ((countBatch = nextBatch()) != null)
+				batchPool.recycle(countBatch);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Write the count queue to all outputs. Each output and shard is written by its
+	 * own thread, and a batch is recycled after every output wrote it. Batches that
+	 * cross a shard boundary are split.
+	 */
+	private void writeFanOut() {
+		
+		OutputWriter[][] writerTable;  // Writers by output and shard
+		List<Thread> threadList = new ArrayList<Thread>();
+		KmerBatch countBatch;
+		
+		int bufSize = CountFormatWriter.DEFAULT_BUFFER_SIZE;
+		int shard;
+		int start;
+		
+		// Shards share the memory of one output buffer
+		if (shardCount > 1)
+			bufSize = Math.max(MIN_SHARD_BUFFER_SIZE, bufSize / shardCount);
+		
+		// Start output threads
+		writerTable = new OutputWriter[outputList.size()][shardCount];
+		
+		for (int output = 0; output < outputList.size(); ++output) {
+			for (shard = 0; shard < shardCount; ++shard) {
+				OutputWriter outputWriter = new OutputWriter(getShardSpec(outputList.get(output), shard), bufSize);
+				Thread thread = new Thread(outputWriter);
 				
-			default:
-				assert(false) :
-					"Unrecognized output format: " + outFmt.toString();
+				thread.setDaemon(true);
+				thread.setName("khet_write_" + threadList.size());
+				thread.start();
 				
-				//error("Unrecognized output format: " + outFmt.toString(), Constants.ERR_SYSTEM);
+				writerTable[output][shard] = outputWriter;
+				threadList.add(thread);
+			}
+		}
+		
+		// Hand each batch to all outputs
+		while ((countBatch = nextBatch()) != null) {
+			
+			if (countBatch.length == 0) {
+				batchPool.recycle(countBatch);
+				continue;
+			}
+			
+			shard = getShard(countBatch.kmer[0]);
+			
+			if (shard == getShard(countBatch.kmer[countBatch.length - 1])) {
+				addBatch(writerTable, shard, countBatch);
+				continue;
+			}
+			
+			// Split at shard boundaries
+			start = 0;
+			
+			for (int index = 1; index <= countBatch.length; ++index) {
 				
-				return;
+				if (index == countBatch.length || getShard(countBatch.kmer[index]) != shard) {
+					KmerBatch part = batchPool.get();
+					
+					if (part.capacity() < index - start)
+						part = new KmerBatch(index - start);
+					
+					System.arraycopy(countBatch.kmer, start, part.kmer, 0, index - start);
+					System.arraycopy(countBatch.count, start, part.count, 0, index - start);
+					part.length = index - start;
+					
+					addBatch(writerTable, shard, part);
+					
+					if (index < countBatch.length)
+						shard = getShard(countBatch.kmer[index]);
+					
+					start = index;
+				}
 			}
 			
-			//int index=0;
-			//while (isActive) {
-			while (!mergeComponent.getFlag() || !countQueue.isEmpty()) {
-				// Get batch
+			batchPool.recycle(countBatch);
+		}
+		
+		for (OutputWriter[] shardWriters : writerTable)
+			for (OutputWriter outputWriter : shardWriters)
+				outputWriter.add(END_OF_OUTPUT);
+		
+		// Wait for outputs
+		for (Thread thread : threadList) {
+			while (thread.isAlive()) {
 				try {
-					countBatch =countQueue.poll(10, TimeUnit.SECONDS);
-					Thread.sleep(1);
-					//index++;
-					//System.out.println(index);
+					thread.join();
 					
 				} catch (InterruptedException ex) {
-					continue;
+					// Try again
 				}
+			}
+		}
+		
+		for (OutputWriter[] shardWriters : writerTable)
+			for (OutputWriter outputWriter : shardWriters)
+				if (outputWriter.failed)
+					failed = true;
+		
+		// Concatenate shards
+		if (concatShards && shardCount > 1) {
+			for (int output = 0; output < outputList.size(); ++output) {
+				try {
+					concatenate(outputList.get(output), writerTable[output]);
+					
+				} catch (IOException ex) {
+					System.out.println("IO error concatenating shards: " + outputList.get(output).fileName + ": " + ex.getMessage());
+					ex.printStackTrace();
+					failed = true;
+				}
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Give a batch to one shard of all outputs.
+	 * 
+	 * @param writerTable Writers by output and shard.
+	 * @param shard Shard of all k-mers in <code>batch</code>.
+	 * @param batch Batch.
+	 */
+	private void addBatch(OutputWriter[][] writerTable, int shard, KmerBatch batch) {
+		
+		SharedBatch sharedBatch = new SharedBatch(batch, writerTable.length);
+		
+		for (OutputWriter[] shardWriters : writerTable)
+			shardWriters[shard].add(sharedBatch);
+		
+		return;
+	}
+	
+	/**
+	 * Get the shard of a k-mer.
+	 * 
+	 * @param kmer K-mer.
+	 * 
+	 * @return Shard.
+	 */
+	private int getShard(long kmer) {
+		
+		if (shardCount == 1)
+			return 0;
+		
+		return (int) (kmer >>> shardShift);
+	}
+	
+	/**
+	 * Get the output of a shard.
+	 * 
+	 * @param spec Output.
+	 * @param shard Shard.
+	 * 
+	 * @return <code>spec</code> if the output is not sharded, and the output with
+	 *   the shard number appended to its file name otherwise.
+	 */
+	private OutputSpec getShardSpec(OutputSpec spec, int shard) {
+		
+		String shardName;
+		
+		if (shardCount == 1)
+			return spec;
+		
+		shardName = Integer.toString(shard);
+		
+		while (shardName.length() < Integer.toString(shardCount - 1).length())
+			shardName = "0" + shardName;
+		
+		return new OutputSpec(spec.format, spec.fileName + "." + shardName);
+	}
+	
+	/**
+	 * Concatenate the shard files of an output into the output file and remove
+	 * them. The files are copied by the file system with <code>transferTo()</code>.
+	 * 
+	 * @param spec Output.
+	 * @param shardWriters Writers of each shard.
+	 * 
+	 * @throws IOException If a shard could not be written or if an IO error occurs
+	 *   while concatenating.
+	 */
+	private void concatenate(OutputSpec spec, OutputWriter[] shardWriters)
+			throws IOException {
+		
+		long position;
+		long size;
+		
+		for (OutputWriter outputWriter : shardWriters)
+			if (outputWriter.failed)
+				throw new IOException("Shard was not written, shards are kept: " + outputWriter.spec.fileName);
+		
+		try (FileOutputStream fos = new FileOutputStream(spec.fileName)) {
+			FileChannel outFc = fos.getChannel();
+			
+			for (OutputWriter outputWriter : shardWriters) {
+				try (FileInputStream fis = new FileInputStream(outputWriter.spec.fileName)) {
+					FileChannel inFc = fis.getChannel();
+					
+					size = inFc.size();
+					position = 0;
+					
+					while (position < size)
+						position += inFc.transferTo(position, size - position, outFc);
+				}
+			}
+		}
+		
+		for (OutputWriter outputWriter : shardWriters) {
+			try {
+				if (! new File(outputWriter.spec.fileName).delete())
+					System.out.println("Cannot delete concatenated shard: " + outputWriter.spec.fileName);
 				
-				// Termination signal
-				if (countBatch == null)
-					break;
-				
-				// Write
-				formatWriter.write(countBatch);
+			} catch (SecurityException ex) {
+				System.out.println("Cannot delete concatenated shard: " + outputWriter.spec.fileName + ": " + ex.getMessage());
 			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Open an output channel. Writes block while the reader of a pipe is behind,
+	 * so the merge is held back through the count queue. If output is compressed,
+	 * the channel deflates BGZF blocks on the deflate pool.
+	 * 
+	 * @param fileName Output file name, or <code>STDOUT_FILE_NAME</code> to write
+	 *   to standard output.
+	 * 
+	 * @return Channel output is written to.
+	 * 
+	 * @throws IOException If the file cannot be opened.
+	 */
+	private WritableByteChannel openOutput(String fileName)
+			throws IOException {
+		
+		WritableByteChannel fc;
+		
+		if (fileName.equals(STDOUT_FILE_NAME))
+			fc = new FileOutputStream(FileDescriptor.out).getChannel();
+		else
+			fc = new FileOutputStream(fileName).getChannel();
+		
+		if (bgzf)
+			fc = new BgzfChannel(fc, deflatePool, bgzfLevel, bgzfThreads * PENDING_PER_THREAD, bgzfIndex ? fileName + BGZF_INDEX_EXTENSION : null);
+		
+		return fc;
+	}
+	
+	/**
+	 * Create a format writer.
+	 * 
+	 * @param outFmt Output format.
+	 * @param fc Channel output is written to.
+	 * @param bufSize Size of the output buffer.
+	 * 
+	 * @return A new format writer.
+	 */
+	private CountFormatWriter newFormatWriter(OutputFormat outFmt, WritableByteChannel fc, int bufSize) {
+		
+		switch(outFmt) {
+		case INT:
+			return new INTFormatWriter(fc, kSize, bufSize);
 			
-			formatWriter.flush();
-
-			// Clean up
+		case HEX:
+			return new HEXFormatWriter(fc, kSize, bufSize);
+			
+		case KHB:
+			return new KHBFormatWriter(fc, kSize, bufSize, KHBFormatWriter.DEFAULT_BLOCK_SIZE);
+			
+		default:
+			return new SEQFormatWriter(fc, kSize, lowerThreshold, bufSize);
+		}
+	}
+	
+	/**
+	 * Get the next batch from the count queue. Waits until the merge puts a batch
+	 * or <code>CountMergeComponent.END_OF_MERGE</code>.
+	 * 
+	 * @return The next batch, or <code>null</code> if the merge is done and all
+	 *   batches were read.
+	 */
+	private KmerBatch nextBatch() {
+		
+		KmerBatch countBatch;
+		
+		if (mergeDone)
+			return null;
+		
+		while (true) {
 			try {
-				formatWriter.postExec();
+				countBatch = countQueue.take();
+				break;
+				
+			} catch (InterruptedException ex) {
+				// Try again
+			}
+		}
+		
+		if (countBatch == CountMergeComponent.END_OF_MERGE) {
+			mergeDone = true;
+			return null;
+		}
+		
+		return countBatch;
+	}
+	
+	/**
+	 * Format batches on a pool of threads and write them in the order they were
+	 * read from the count queue. Output is identical to formatting batches on the
+	 * writer thread.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param outFmt Output format.
+	 * 
+	 * @throws IOException If an IO error occurs while formatting or writing.
+	 */
+	private void writeParallel(WritableByteChannel fc, OutputFormat outFmt)
+			throws IOException {
+		
+		ExecutorService formatPool;
+		ArrayDeque<Future<ByteBuffer>> pendingQueue;  // Batches in read order
+		ByteBuffer[] gatherBuf;
+		KmerBatch countBatch;
+		
+		int maxPending = formatThreads * PENDING_PER_THREAD;
+		
+		formatPool = Executors.newFixedThreadPool(formatThreads, new DaemonThreadFactory("khet_format_"));
+		pendingQueue = new ArrayDeque<Future<ByteBuffer>>();
+		gatherBuf = new ByteBuffer[maxPending];
+		
+		try {
+			while ((countBatch = nextBatch()) != null) {
+				pendingQueue.add(formatPool.submit(new FormatTask(fc, outFmt, countBatch)));
 				
-			} catch (Throwable ex) {
-				// Ignore
+				// Write formatted batches, and wait if too many are pending
+				writePending(fc, pendingQueue, gatherBuf, pendingQueue.size() >= maxPending);
 			}
 			
-		} catch (IOException ex) {
-			//error("IO error writing output file: " + fileName + ": " + ex.getMessage(), Constants.ERR_IO, ex);
-			ex.printStackTrace();
+			while (! pendingQueue.isEmpty())
+				writePending(fc, pendingQueue, gatherBuf, true);
+			
+		} finally {
+			formatPool.shutdown();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Write formatted batches at the head of the pending queue with one gathering
+	 * write if the channel supports it.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param pendingQueue Batches in read order.
+	 * @param gatherBuf Array of buffers written at once.
+	 * @param wait If <code>true</code>, wait for the first batch to be formatted.
+	 * 
+	 * @throws IOException If an IO error occurs while formatting or writing.
+	 */
+	private void writePending(WritableByteChannel fc, ArrayDeque<Future<ByteBuffer>> pendingQueue, ByteBuffer[] gatherBuf, boolean wait)
+			throws IOException {
+		
+		int bufCount = 0;
+		long remaining = 0;
+		
+		while (! pendingQueue.isEmpty() && bufCount < gatherBuf.length && (pendingQueue.peek().isDone() || (wait && bufCount == 0))) {
+			gatherBuf[bufCount] = waitFormat(pendingQueue.poll());
+			remaining += gatherBuf[bufCount].remaining();
+			++bufCount;
+		}
+		
+		if (fc instanceof GatheringByteChannel) {
+			while (remaining > 0)
+				remaining -= ((GatheringByteChannel) fc).write(gatherBuf, 0, bufCount);
+			
+		} else {
+			for (int index = 0; index < bufCount; ++index)
+				while (gatherBuf[index].hasRemaining())
+					fc.write(gatherBuf[index]);
+		}
+		
+		for (int index = 0; index < bufCount; ++index) {
+			bufferQueue.add(gatherBuf[index]);
+			gatherBuf[index] = null;
 		}
 		
-		System.out.println("writer done");
 		return;
 	}
 	
+	/**
+	 * Wait for a batch to be formatted.
+	 * 
+	 * @param future Result of the format task.
+	 * 
+	 * @return Formatted batch ready to be written.
+	 * 
+	 * @throws IOException If an IO error occurred while formatting.
+	 */
+	private static ByteBuffer waitFormat(Future<ByteBuffer> future)
+			throws IOException {
+		
+		while (true) {
+			try {
+				return future.get();
+				
+			} catch (InterruptedException ex) {
+				// Try again
+				
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+				
+				throw new IOException("Error formatting batch: " + ex.getCause(), ex.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Determine if an output could not be written. Call after the writer thread ended.
+	 * 
+	 * @return <code>true</code> if an IO error occurred on any output.
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+	
 	/**
 	 * Get the number of k-mers written to the database.
 	 * 
@@ -195,6 +949,229 @@ public class CountFileWriterComponent implements Runnable {
 	public long getWriteCount() {
 		return writeCount;
 	}
+	
+	/**
+	 * Formats one batch into its own buffer and recycles the batch.
+	 */
+	private class FormatTask implements Callable<ByteBuffer> {
+		
+		/** Channel of the format writers. Formatted batches are not written by this task. */
+		private final WritableByteChannel fc;
+		
+		/** Output format. */
+		private final OutputFormat outFmt;
+		
+		/** Batch to format. */
+		private final KmerBatch batch;
+		
+		/**
+		 * Create a new format task.
+		 * 
+		 * @param fc Channel of the format writers.
+		 * @param outFmt Output format.
+		 * @param batch Batch to format.
+		 */
+		public FormatTask(WritableByteChannel fc, OutputFormat outFmt, KmerBatch batch) {
+			this.fc = fc;
+			this.outFmt = outFmt;
+			this.batch = batch;
+			
+			return;
+		}
+		
+		@Override
+		public ByteBuffer call()
+				throws IOException {
+			
+			CountFormatWriter formatWriter;
+			ByteBuffer outBuf;
+			
+			// Writers only format, so they have no buffer of their own
+			if ((formatWriter = writerQueue.poll()) == null)
+				formatWriter = newFormatWriter(outFmt, fc, 0);
+			
+			outBuf = bufferQueue.poll();
+			
+			if (outBuf == null || outBuf.capacity() < formatWriter.getFormatSize(batch.length))
+				outBuf = ByteBuffer.allocateDirect(formatWriter.getFormatSize(Math.max(batch.length, batchPool.batchSize)));
+			
+			outBuf.clear();
+			
+			try {
+				formatWriter.format(batch, outBuf);
+				
+			} finally {
+				writerQueue.add(formatWriter);
+			}
+			
+			batchPool.recycle(batch);
+			
+			return outBuf;
+		}
+	}
 
 
+	
+	/**
+	 * A batch written by several outputs. The batch is recycled when the last
+	 * output releases it.
+	 */
+	private static class SharedBatch {
+		
+		/** Batch. Outputs must not modify it. */
+		public final KmerBatch batch;
+		
+		/** Number of outputs that did not release the batch. */
+		private final AtomicInteger refCount;
+		
+		/**
+		 * Create a new shared batch.
+		 * 
+		 * @param batch Batch.
+		 * @param refCount Number of outputs the batch is given to.
+		 */
+		public SharedBatch(KmerBatch batch, int refCount) {
+			this.batch = batch;
+			this.refCount = new AtomicInteger(refCount);
+			
+			return;
+		}
+		
+		/**
+		 * Release this batch for one output.
+		 * 
+		 * @param batchPool Pool the batch is recycled to after the last output released it.
+		 */
+		public void release(KmerBatchPool batchPool) {
+			
+			if (refCount.decrementAndGet() == 0)
+				batchPool.recycle(batch);
+			
+			return;
+		}
+	}
+	
+	/**
+	 * Writes shared batches to one output. After an IO error, batches are
+	 * released without writing them so the other outputs are not blocked.
+	 */
+	private class OutputWriter implements Runnable {
+		
+		/** Output file and format. */
+		private final OutputSpec spec;
+		
+		/** Size of the output buffer. */
+		private final int bufSize;
+		
+		/** Batches to write. */
+		private final LinkedBlockingQueue<SharedBatch> batchQueue;
+		
+		/** Set if an IO error occurred. Read after the thread ends. */
+		public volatile boolean failed;
+		
+		/**
+		 * Create a new output writer.
+		 * 
+		 * @param spec Output file and format.
+		 * @param bufSize Size of the output buffer.
+		 */
+		public OutputWriter(OutputSpec spec, int bufSize) {
+			this.spec = spec;
+			this.bufSize = bufSize;
+			failed = false;
+			batchQueue = new LinkedBlockingQueue<SharedBatch>(Constants.DEFAULT_QUEUE_SIZE);
+			
+			return;
+		}
+		
+		/**
+		 * Add a batch to write.
+		 * 
+		 * @param sharedBatch Batch, or <code>END_OF_OUTPUT</code> after the last batch.
+		 */
+		public void add(SharedBatch sharedBatch) {
+			
+			while (true) {
+				try {
+					batchQueue.put(sharedBatch);
+					return;
+					
+				} catch (InterruptedException ex) {
+					// Try again
+				}
+			}
+		}
+		
+		@Override
+		public void run() {
+			
+			CountFormatWriter formatWriter = null;
+			WritableByteChannel fc = null;
+			SharedBatch sharedBatch;
+			
+			System.out.println("writer: " + spec);
+			
+			try {
+				fc = openOutput(spec.fileName);
+				formatWriter = newFormatWriter(spec.format, fc, bufSize);
+				formatWriter.startFlusher(flushBuffers);
+				
+			} catch (IOException ex) {
+				System.out.println("IO error opening output file: " + spec.fileName + ": " + ex.getMessage());
+				ex.printStackTrace();
+				failed = true;
+			}
+			
+			while ((sharedBatch = take()) != END_OF_OUTPUT) {
+				
+				if (! failed) {
+					try {
+						formatWriter.write(sharedBatch.batch);
+						
+					} catch (IOException ex) {
+						System.out.println("IO error writing output file: " + spec.fileName + ": " + ex.getMessage());
+						ex.printStackTrace();
+						failed = true;
+					}
+				}
+				
+				sharedBatch.release(batchPool);
+			}
+			
+			try {
+				if (! failed) {
+					formatWriter.finish();
+					
+					System.out.println("writer flush (" + spec.format + "): " + formatWriter.getFlushCount() + " buffers in " + formatWriter.getFlushTime() + " ms (max " + formatWriter.getMaxFlushTime() + " ms), buffer wait: " + formatWriter.getBufferWaitTime() + " ms");
+				}
+				
+				if (fc != null)
+					fc.close();
+				
+			} catch (IOException ex) {
+				System.out.println("IO error closing output file: " + spec.fileName + ": " + ex.getMessage());
+				ex.printStackTrace();
+				failed = true;
+			}
+			
+			return;
+		}
+		
+		/**
+		 * Get the next batch.
+		 * 
+		 * @return The next batch or <code>END_OF_OUTPUT</code>.
+		 */
+		private SharedBatch take() {
+			
+			while (true) {
+				try {
+					return batchQueue.take();
+					
+				} catch (InterruptedException ex) {
+					// Try again
+				}
+			}
+		}
+	}
 }
@@ -18,10 +18,19 @@ package edu.gatech.kanalyze.comp.countfilecustomwriter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
 import edu.gatech.kanalyze.util.KmerUtil;
+import edu.gatech.khet.merger.DaemonThreadFactory;
 
 /**
  * Parent class of all count format writers.
@@ -29,7 +38,7 @@ import edu.gatech.kanalyze.util.KmerUtil;
 public abstract class CountFormatWriter {
 
 	/** Writer output it sent to. */
-	protected FileChannel fc;
+	protected WritableByteChannel fc;
 	
 	/** K-mer size. */
 	protected int kSize;
@@ -43,30 +52,114 @@ public abstract class CountFormatWriter {
 	/** Buffer size. */
 	protected int bufSize;
 	
+	/**
+	 * Maximum number of bytes one record is formatted to. Subclasses set it, and
+	 * flush the buffer before a record when less is left.
+	 */
+	protected int maxRecordSize;
+	
+	/** Writes full buffers in the background, or <code>null</code> if buffers are written by <code>flush()</code>. */
+	private ExecutorService flusher;
+	
+	/** Buffers that were written and may be filled again. */
+	private LinkedBlockingQueue<ByteBuffer> freeQueue;
+	
+	/** Writes in progress in the order they were started. */
+	private ArrayDeque<Future<Void>> flushQueue;
+	
+	/** Number of buffers written. */
+	private long flushCount;
+	
+	/** Time in nanoseconds spent writing buffers. */
+	private long flushTime;
+	
+	/** Longest time in nanoseconds spent writing one buffer. */
+	private long maxFlushTime;
+	
+	/** Time in nanoseconds the formatter waited for a written buffer. */
+	private long bufferWaitTime;
+	
 	/**
 	 * Create a new count format writer.
 	 * 
-	 * @param fc File channel output is written to.
+	 * @param fc Channel output is written to.
 	 * @param kSize K-mer size.
 	 * 
 	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
 	 * @throws IllegalArgumentException If <code>kSize</code> is invalid.
 	 */
-	public CountFormatWriter(FileChannel fc, int kSize)
+	public CountFormatWriter(WritableByteChannel fc, int kSize)
+			throws NullPointerException, IllegalArgumentException {
+		
+		this(fc, kSize, DEFAULT_BUFFER_SIZE); // throws NullPointerException, IllegalArgumentException
+		
+		return;
+	}
+	
+	/**
+	 * Create a new count format writer.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param kSize K-mer size.
+	 * @param bufSize Size of the output buffer. Writers that only <code>format()</code>
+	 *   batches into their own buffers may use <code>0</code>.
+	 * 
+	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> is invalid or if <code>bufSize</code>
+	 *   is negative.
+	 */
+	public CountFormatWriter(WritableByteChannel fc, int kSize, int bufSize)
 			throws NullPointerException, IllegalArgumentException {
 		
 		if (fc == null)
-			throw new NullPointerException("Cannot create format writer with file channel: null");
+			throw new NullPointerException("Cannot create format writer with channel: null");
 		
 		if (! KmerUtil.isValidSize(kSize))
 			throw new IllegalArgumentException("Cannot create format writer: K-mer size is not valid: " + kSize);
 		
-		bufSize = DEFAULT_BUFFER_SIZE;
+		if (bufSize < 0)
+			throw new IllegalArgumentException("Cannot create format writer: Buffer size is negative: " + bufSize);
+		
+		this.bufSize = bufSize;
 		buf = ByteBuffer.allocateDirect(bufSize);
 		
 		this.fc = fc;
 		this.kSize = kSize;
 		
+		flusher = null;
+		freeQueue = null;
+		flushQueue = null;
+		
+		flushCount = 0;
+		flushTime = 0;
+		maxFlushTime = 0;
+		bufferWaitTime = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Write full buffers on a background thread so that formatting continues
+	 * while they are written. Buffers rotate between this writer and the
+	 * background thread, and this writer waits for a written buffer only if all
+	 * are full. Call <code>finish()</code> after the last batch.
+	 * 
+	 * @param bufCount Number of buffers. Each buffer has the size of the output
+	 *   buffer. If less than 2, buffers are written by <code>flush()</code>.
+	 */
+	public void startFlusher(int bufCount) {
+		
+		if (bufCount < 2 || flusher != null)
+			return;
+		
+		freeQueue = new LinkedBlockingQueue<ByteBuffer>();
+		flushQueue = new ArrayDeque<Future<Void>>();
+		
+		for (int count = 1; count < bufCount; ++count)
+			freeQueue.add(ByteBuffer.allocateDirect(bufSize));
+		
+		flusher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("khet_flush_"));
+		
 		return;
 	}
 
@@ -81,16 +174,220 @@ public abstract class CountFormatWriter {
 			throws IOException;
 	
 	/**
-	 * Flushes the buffer and writes to disk.
+	 * Format and write a batch of k-mers. The batch is not modified.
+	 * 
+	 * @param batch K-mer counts.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	public abstract void write(KmerBatch batch)
+			throws IOException;
+	
+	/**
+	 * Format a batch of k-mers into a buffer instead of the output file. Batches
+	 * formatted this way are independent, so they may be formatted by several
+	 * writers at the same time and written in their original order.
+	 * 
+	 * @param batch K-mer counts. The batch is not modified.
+	 * @param out Buffer to format into. It is flipped and ready to be written
+	 *   when this method returns.
+	 * 
+	 * @return <code>out</code>.
+	 * 
+	 * @throws IOException If an IO error occurs while formatting.
+	 * @throws IllegalArgumentException If <code>out</code> has less than
+	 *   <code>getFormatSize(batch.length)</code> bytes remaining.
+	 */
+	public ByteBuffer format(KmerBatch batch, ByteBuffer out)
+			throws IOException, IllegalArgumentException {
+		
+		ByteBuffer fileBuf = buf;
+		
+		// With room for every record, the writer never flushes
+		if (out.remaining() < getFormatSize(batch.length))
+			throw new IllegalArgumentException("Cannot format batch of " + batch.length + " k-mers into a buffer of " + out.remaining() + " bytes");
+		
+		buf = out;
+		
+		try {
+			write(batch);
+			
+		} finally {
+			buf = fileBuf;
+		}
+		
+		out.flip();
+		
+		return out;
+	}
+	
+	/**
+	 * Get the number of bytes a buffer must have to format a batch.
+	 * 
+	 * @param length Number of k-mers in the batch.
+	 * 
+	 * @return Buffer size in bytes.
+	 */
+	public int getFormatSize(int length) {
+		return length * maxRecordSize + 1;
+	}
+	
+	/**
+	 * Flushes the buffer and writes to disk. With a background flusher, the buffer
+	 * is handed to the flusher and writing continues in the next free buffer.
 	 * 
 	 * @throws IOException If an IO error occurs flushing the buffer.
 	 */
 	public void flush()
 			throws IOException {
 		
+		long startTime;
+		
 		buf.flip();
-		fc.write(buf);
-		buf.clear();
+		
+		if (flusher == null) {
+			writeBuffer(buf);
+			buf.clear();
+			
+			return;
+		}
+		
+		// Report errors of finished writes
+		while (! flushQueue.isEmpty() && flushQueue.peek().isDone())
+			waitFlush(flushQueue.poll());
+		
+		flushQueue.add(flusher.submit(new FlushTask(buf)));
+		
+		// Continue in a written buffer
+		startTime = System.nanoTime();
+		buf = null;
+		
+		while (buf == null) {
+			try {
+				buf = freeQueue.take();
+				
+			} catch (InterruptedException ex) {
+				// Try again
+			}
+		}
+		
+		bufferWaitTime += System.nanoTime() - startTime;
+		
+		return;
+	}
+	
+	/**
+	 * Flush the buffer and wait until all buffers are written. The background
+	 * flusher, if any, is stopped.
+	 * 
+	 * @throws IOException If an IO error occurs writing a buffer.
+	 */
+	public void finish()
+			throws IOException {
+		
+		flush();
+		
+		if (flusher == null)
+			return;
+		
+		try {
+			while (! flushQueue.isEmpty())
+				waitFlush(flushQueue.poll());
+			
+		} finally {
+			flusher.shutdown();
+			flusher = null;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Write a buffer to the channel and update flush metrics.
+	 * 
+	 * @param outBuf Buffer ready to be written.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void writeBuffer(ByteBuffer outBuf)
+			throws IOException {
+		
+		long startTime = System.nanoTime();
+		long time;
+		
+		while (outBuf.hasRemaining())
+			fc.write(outBuf);
+		
+		time = System.nanoTime() - startTime;
+		
+		++flushCount;
+		flushTime += time;
+		maxFlushTime = Math.max(maxFlushTime, time);
+		
+		return;
+	}
+	
+	/**
+	 * Wait for a background write.
+	 * 
+	 * @param future Result of the write.
+	 * 
+	 * @throws IOException If an IO error occurred while writing.
+	 */
+	private static void waitFlush(Future<Void> future)
+			throws IOException {
+		
+		while (true) {
+			try {
+				future.get();
+				return;
+				
+			} catch (InterruptedException ex) {
+				// Try again
+				
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+				
+				throw new IOException("Error writing output buffer: " + ex.getCause(), ex.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of buffers written.
+	 * 
+	 * @return Number of buffers written.
+	 */
+	public long getFlushCount() {
+		return flushCount;
+	}
+	
+	/**
+	 * Get the time spent writing buffers. Call after <code>finish()</code>.
+	 * 
+	 * @return Time in milliseconds.
+	 */
+	public long getFlushTime() {
+		return flushTime / 1000000;
+	}
+	
+	/**
+	 * Get the longest time spent writing one buffer. Call after <code>finish()</code>.
+	 * 
+	 * @return Time in milliseconds.
+	 */
+	public long getMaxFlushTime() {
+		return maxFlushTime / 1000000;
+	}
+	
+	/**
+	 * Get the time formatting waited for a buffer to be written.
+	 * 
+	 * @return Time in milliseconds.
+	 */
+	public long getBufferWaitTime() {
+		return bufferWaitTime / 1000000;
 	}
 	
 	/**
@@ -103,4 +400,39 @@ public abstract class CountFormatWriter {
 		
 		return;
 	}
+	
+	/**
+	 * Writes one buffer on the background flusher and returns it to the free buffers.
+	 */
+	private class FlushTask implements Callable<Void> {
+		
+		/** Buffer to write. */
+		private final ByteBuffer outBuf;
+		
+		/**
+		 * Create a new flush task.
+		 * 
+		 * @param outBuf Buffer ready to be written.
+		 */
+		public FlushTask(ByteBuffer outBuf) {
+			this.outBuf = outBuf;
+			
+			return;
+		}
+		
+		@Override
+		public Void call()
+				throws IOException {
+			
+			try {
+				writeBuffer(outBuf);
+				
+			} finally {
+				outBuf.clear();
+				freeQueue.add(outBuf);
+			}
+			
+			return null;
+		}
+	}
 }
@@ -17,39 +17,62 @@
 package edu.gatech.kanalyze.comp.countfilecustomwriter;
 
 import java.io.IOException;
-import java.nio.BufferOverflowException;
-import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
 
 /**
  * Formats output as sequences and writes.
  */
 public class INTFormatWriter extends CountFormatWriter {
 	
-	/** Output format string. */
-	private String fmtStr;
+	/** Minimum number of decimal digits of a k-mer. */
+	private final int cellSize;
 	
-	/** String buffer. */
-	private String strBuf;
+	/** Tab character as a byte. */
+	private static final byte tabByte = (byte) '\t';
+	
+	/** Newline character as a byte. */
+	private static final byte nlByte = (byte) '\n';
 
 	/**
 	 * Create a new format writer.
 	 * 
-	 * @param fc File channel output is written to.
+	 * @param fc Channel output is written to.
 	 * @param kSize K-mer size.
 	 * 
 	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
 	 * @throws IllegalArgumentException If <code>kSize</code> is invalid.
 	 */
-	public INTFormatWriter(FileChannel fc, int kSize)
+	public INTFormatWriter(WritableByteChannel fc, int kSize)
 			throws NullPointerException {
 		
-		super (fc, kSize); // throws NullPointerException, IllegalArgumentException
+		this(fc, kSize, DEFAULT_BUFFER_SIZE); // throws NullPointerException, IllegalArgumentException
+		
+		return;
+	}
+	
+	/**
+	 * Create a new format writer.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param kSize K-mer size.
+	 * @param bufSize Size of the output buffer.
+	 * 
+	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> or <code>bufSize</code> is invalid.
+	 */
+	public INTFormatWriter(WritableByteChannel fc, int kSize, int bufSize)
+			throws NullPointerException {
+		
+		super (fc, kSize, bufSize); // throws NullPointerException, IllegalArgumentException
 		
 		// Calculate the number of digits required to store the largest k-mer
-		int cellSize = (int) Math.floor(Math.log10(Math.pow(4, kSize))) + 1;
-		fmtStr = "%0" + cellSize + "d\t%d\n";
+		cellSize = (int) Math.floor(Math.log10(Math.pow(4, kSize))) + 1;
+		
+		// K-mer, tab, count, newline
+		maxRecordSize = Math.max(cellSize, AsciiEncoder.decimalLength(Long.MAX_VALUE) + 1) + 1 + AsciiEncoder.decimalLength(Integer.MAX_VALUE) + 2;
 		
 		return;
 	}
@@ -65,40 +88,47 @@ public class INTFormatWriter extends CountFormatWriter {
 	public void write(CounterPair[] kmerCount)
 			throws IOException {
 		
-		for (CounterPair pair : kmerCount) {
-			strBuf = String.format(fmtStr, pair.kmer, pair.count);
-			
-			try {
-				buf.put(strBuf.getBytes());
-				
-			} catch (BufferOverflowException ex) {
-				
-				// Write to disk when buffer overflows
-				flush();
-				
-				try {
-					buf.put(strBuf.getBytes());
-					
-				} catch (BufferOverflowException ex2) {
-					throw new IOException("Cannot write string after flushing buffer: " + ex2.getMessage(), ex2);
-				}
-			}
-		}
+		for (CounterPair pair : kmerCount)
+			writeRecord(pair.kmer, pair.count);
 		
 		return;
 	}
 	
 	/**
-	 * Perform any post-run cleanup tasks.
+	 * Format and write a batch of k-mers. The batch is not modified.
 	 * 
-	 * @throws Throwable If any error occurs during cleanup.
+	 * @param batch K-mer counts.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
 	 */
 	@Override
-	public void postExec()
-			throws Throwable {
+	public void write(KmerBatch batch)
+			throws IOException {
+		
+		for (int index = 0; index < batch.length; ++index)
+			writeRecord(batch.kmer[index], batch.count[index]);
+		
+		return;
+	}
+	
+	/**
+	 * Format and write one k-mer.
+	 * 
+	 * @param kmer K-mer.
+	 * @param count Count.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void writeRecord(long kmer, int count)
+			throws IOException {
+		
+		if (buf.remaining() < maxRecordSize)
+			flush();
 		
-		fmtStr = null;
-		strBuf = null;
+		AsciiEncoder.putDecimal(buf, kmer, cellSize);
+		buf.put(tabByte);
+		AsciiEncoder.putDecimal(buf, count);
+		buf.put(nlByte);
 		
 		return;
 	}
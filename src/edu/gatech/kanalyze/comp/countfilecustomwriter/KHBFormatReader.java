@@ -0,0 +1,405 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads flank groups from a file written by <code>KHBFormatWriter</code>. Groups
+ * are read in order with <code>next()</code>, and <code>seek()</code> uses the
+ * block index to start at any flank without reading the blocks before it.
+ */
+public class KHBFormatReader implements Closeable {
+	
+	/** Input stream. */
+	private FileInputStream fis;
+	
+	/** File channel blocks are read from. */
+	private final FileChannel fc;
+	
+	/** K-mer size. */
+	private final int kSize;
+	
+	/** Size of a block in bytes. */
+	private final int blockSize;
+	
+	/** First flank of each block. */
+	private final long[] blockIndex;
+	
+	/** Number of groups in the file. */
+	private final long groupTotal;
+	
+	/** Current block. */
+	private final ByteBuffer block;
+	
+	/** Index of the next block to read. */
+	private int nextBlock;
+	
+	/** Number of groups left in the current block. */
+	private int blockGroups;
+	
+	/** Flank of the current group. */
+	private long flank;
+	
+	/** Middle bases present in the current group. */
+	private int mask;
+	
+	/** Count of each middle base in the current group. Absent bases have count 0. */
+	private final int[] count;
+	
+	/**
+	 * Open a file.
+	 * 
+	 * @param file File to read.
+	 * 
+	 * @throws NullPointerException If <code>file</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>file</code> cannot be found.
+	 * @throws IOException If an IO error occurs or if <code>file</code> is not a
+	 *   valid binary output file.
+	 */
+	public KHBFormatReader(File file)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		ByteBuffer headBuf;
+		int blockCount;
+		long size;
+		
+		if (file == null)
+			throw new NullPointerException("Cannot create binary output reader with file: null");
+		
+		fis = new FileInputStream(file); // throws FileNotFoundException
+		fc = fis.getChannel();
+		
+		try {
+			size = fc.size();
+			
+			if (size < KHBFormatWriter.HEADER_SIZE + KHBFormatWriter.TRAILER_SIZE)
+				throw new IOException("Binary output file is truncated: " + file.getName());
+			
+			// Header
+			headBuf = ByteBuffer.allocate(KHBFormatWriter.HEADER_SIZE);
+			readFully(headBuf, 0);
+			
+			if (headBuf.getInt() != KHBFormatWriter.MAGIC)
+				throw new IOException("Not a binary output file: " + file.getName());
+			
+			if (headBuf.getInt() != KHBFormatWriter.VERSION)
+				throw new IOException("Unsupported binary output file version: " + file.getName());
+			
+			kSize = headBuf.getInt();
+			blockSize = headBuf.getInt();
+			
+			// Trailer
+			headBuf = ByteBuffer.allocate(KHBFormatWriter.TRAILER_SIZE);
+			readFully(headBuf, size - KHBFormatWriter.TRAILER_SIZE);
+			
+			blockCount = headBuf.getInt();
+			groupTotal = headBuf.getLong();
+			
+			if (headBuf.getInt() != KHBFormatWriter.MAGIC)
+				throw new IOException("Binary output file is truncated: " + file.getName());
+			
+			if (blockSize < KHBFormatWriter.BLOCK_HEADER_SIZE || blockCount < 0 ||
+					size != KHBFormatWriter.HEADER_SIZE + (long) blockCount * blockSize + blockCount * 8L + KHBFormatWriter.TRAILER_SIZE)
+				throw new IOException("Binary output file has an invalid layout: " + file.getName());
+			
+			// Index
+			headBuf = ByteBuffer.allocate(blockCount * 8);
+			readFully(headBuf, KHBFormatWriter.HEADER_SIZE + (long) blockCount * blockSize);
+			
+			blockIndex = new long[blockCount];
+			
+			for (int index = 0; index < blockCount; ++index)
+				blockIndex[index] = headBuf.getLong();
+			
+		} catch (IOException ex) {
+			fis.close();
+			throw ex;
+		}
+		
+		block = ByteBuffer.allocate(blockSize);
+		count = new int[4];
+		
+		nextBlock = 0;
+		blockGroups = 0;
+		flank = -1;
+		mask = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Read the next group.
+	 * 
+	 * @return <code>true</code> if a group was read, and <code>false</code> if
+	 *   there are no more groups.
+	 * 
+	 * @throws IOException If an IO error occurs while reading.
+	 */
+	public boolean next()
+			throws IOException {
+		
+		while (blockGroups == 0) {
+			if (nextBlock == blockIndex.length)
+				return false;
+			
+			loadBlock(nextBlock);
+		}
+		
+		flank += getVarint();
+		mask = block.get() & 0xF;
+		
+		for (int base = 0; base < 4; ++base)
+			count[base] = ((mask & (1 << base)) != 0) ? (int) getVarint() : 0;
+		
+		--blockGroups;
+		
+		return true;
+	}
+	
+	/**
+	 * Move to a flank. The next call to <code>next()</code> reads the first group
+	 * with a flank greater than or equal to <code>toFlank</code>.
+	 * 
+	 * @param toFlank Flank to move to.
+	 * 
+	 * @throws IOException If an IO error occurs while reading.
+	 */
+	public void seek(long toFlank)
+			throws IOException {
+		
+		int low = 0;
+		int high = blockIndex.length - 1;
+		int mid;
+		int groupPosition;
+		long groupFlank;
+		
+		// Find the last block starting at or before toFlank
+		while (low < high) {
+			mid = (low + high + 1) >>> 1;
+			
+			if (blockIndex[mid] <= toFlank)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		
+		nextBlock = low;
+		blockGroups = 0;
+		
+		if (blockIndex.length == 0)
+			return;
+		
+		loadBlock(low);
+		
+		// Skip groups before toFlank
+		while (blockGroups > 0) {
+			groupPosition = block.position();
+			groupFlank = flank + getVarint();
+			
+			if (groupFlank >= toFlank) {
+				block.position(groupPosition);
+				return;
+			}
+			
+			flank = groupFlank;
+			mask = block.get() & 0xF;
+			
+			for (int base = 0; base < 4; ++base)
+				if ((mask & (1 << base)) != 0)
+					getVarint();
+			
+			--blockGroups;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get the flank of the current group.
+	 * 
+	 * @return Flank (the k-mer without its middle base).
+	 */
+	public long getFlank() {
+		return flank;
+	}
+	
+	/**
+	 * Get the middle bases present in the current group.
+	 * 
+	 * @return A mask with bit <code>n</code> set if base <code>n</code> is present.
+	 */
+	public int getAlleleMask() {
+		return mask;
+	}
+	
+	/**
+	 * Get the number of middle bases present in the current group.
+	 * 
+	 * @return Number of alleles.
+	 */
+	public int getAlleleCount() {
+		return Integer.bitCount(mask);
+	}
+	
+	/**
+	 * Get the count of a middle base in the current group.
+	 * 
+	 * @param base Middle base (0 to 3).
+	 * 
+	 * @return Count, or <code>0</code> if the base is not present.
+	 */
+	public int getCount(int base) {
+		return count[base];
+	}
+	
+	/**
+	 * Get the k-mer of a middle base in the current group.
+	 * 
+	 * @param base Middle base (0 to 3).
+	 * 
+	 * @return Rotated k-mer.
+	 */
+	public long getKmer(int base) {
+		return (flank << 2) | base;
+	}
+	
+	/**
+	 * Get the k-mer size.
+	 * 
+	 * @return K-mer size.
+	 */
+	public int getKSize() {
+		return kSize;
+	}
+	
+	/**
+	 * Get the number of groups in the file.
+	 * 
+	 * @return Number of groups.
+	 */
+	public long getGroupCount() {
+		return groupTotal;
+	}
+	
+	/**
+	 * Get the number of blocks in the file.
+	 * 
+	 * @return Number of blocks.
+	 */
+	public int getBlockCount() {
+		return blockIndex.length;
+	}
+	
+	/**
+	 * Close the file.
+	 * 
+	 * @throws IOException If an IO error occurs while closing.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		
+		if (fis != null) {
+			fis.close();
+			fis = null;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read a block.
+	 * 
+	 * @param blockNumber Index of the block.
+	 * 
+	 * @throws IOException If an IO error occurs while reading.
+	 */
+	private void loadBlock(int blockNumber)
+			throws IOException {
+		
+		block.clear();
+		readFully(block, KHBFormatWriter.HEADER_SIZE + (long) blockNumber * blockSize);
+		
+		blockGroups = block.getInt();
+		flank = 0;
+		nextBlock = blockNumber + 1;
+		
+		return;
+	}
+	
+	/**
+	 * Read from the file until a buffer is full, and flip the buffer.
+	 * 
+	 * @param readBuf Buffer to fill.
+	 * @param position File position to read from.
+	 * 
+	 * @throws IOException If an IO error occurs or if the end of the file is reached.
+	 */
+	private void readFully(ByteBuffer readBuf, long position)
+			throws IOException {
+		
+		int bytesRead;
+		
+		while (readBuf.hasRemaining()) {
+			bytesRead = fc.read(readBuf, position);
+			
+			if (bytesRead < 0)
+				throw new IOException("Unexpected end of binary output file");
+			
+			position += bytesRead;
+		}
+		
+		readBuf.flip();
+		
+		return;
+	}
+	
+	/**
+	 * Read an unsigned varint from the current block.
+	 * 
+	 * @return Value.
+	 * 
+	 * @throws IOException If the varint is longer than 64 bits.
+	 */
+	private long getVarint()
+			throws IOException {
+		
+		long value = 0;
+		int shift = 0;
+		byte next;
+		
+		do {
+			if (shift > 63)
+				throw new IOException("Invalid varint in binary output file");
+			
+			next = block.get();
+			value |= (long) (next & 0x7F) << shift;
+			shift += 7;
+			
+		} while (next < 0);
+		
+		return value;
+	}
+}
@@ -0,0 +1,391 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
+
+/**
+ * Formats output as binary flank groups and writes. K-mers that differ only by
+ * the middle base form a flank group, and each group is stored once as its flank
+ * and a vector of allele counts.
+ * <p/>
+ * File layout (all integers big-endian):
+ * <ul>
+ *   <li>Header: magic ("KHB1"), version, k-mer size, and block size as 4-byte integers.</li>
+ *   <li>Blocks: Each block is exactly block size bytes. It starts with the number of
+ *     groups in the block as a 4-byte integer, followed by the groups and zero padding.
+ *     A group is the difference of its flank from the previous flank in the block (the
+ *     first group stores its flank) as an unsigned varint, a byte with one bit set for
+ *     each middle base present (bit <code>n</code> for base <code>n</code>), and the
+ *     count of each present base in base order as an unsigned varint.</li>
+ *   <li>Index: The first flank of each block as an 8-byte integer.</li>
+ *   <li>Trailer: Number of blocks (4 bytes), number of groups (8 bytes), and magic (4 bytes).</li>
+ * </ul>
+ * Blocks are fixed size so a block can be found from its index without reading
+ * the blocks before it.
+ */
+public class KHBFormatWriter extends CountFormatWriter {
+	
+	/** File magic ("KHB1"). */
+	public static final int MAGIC = 0x4B484231;
+	
+	/** File format version. */
+	public static final int VERSION = 1;
+	
+	/** Size of the file header in bytes. */
+	public static final int HEADER_SIZE = 16;
+	
+	/** Size of the file trailer in bytes. */
+	public static final int TRAILER_SIZE = 16;
+	
+	/** Size of the group count at the start of each block. */
+	public static final int BLOCK_HEADER_SIZE = 4;
+	
+	/** Default size of a block in bytes. */
+	public static final int DEFAULT_BLOCK_SIZE = 65536;
+	
+	/** Maximum size of one group in bytes: flank difference, allele byte, and four counts. */
+	public static final int MAX_GROUP_SIZE = 10 + 1 + 4 * 5;
+	
+	/** Size of a block in bytes. */
+	private final int blockSize;
+	
+	/** Flank of the group being collected, or -1. */
+	private long groupFlank;
+	
+	/** Middle bases present in the group being collected. */
+	private int groupMask;
+	
+	/** Count of each middle base in the group being collected. */
+	private final int[] groupCount;
+	
+	/** Position of the current block in the buffer, or -1 if no block is open. */
+	private int blockStart;
+	
+	/** Number of groups in the current block. */
+	private int blockGroups;
+	
+	/** Last flank written to the current block. */
+	private long lastFlank;
+	
+	/** First flank of each block. */
+	private long[] blockIndex;
+	
+	/** Number of blocks. */
+	private int blockCount;
+	
+	/** Number of groups written. */
+	private long groupTotal;
+	
+	/**
+	 * Create a new format writer.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param kSize K-mer size.
+	 * 
+	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> is invalid.
+	 */
+	public KHBFormatWriter(WritableByteChannel fc, int kSize)
+			throws NullPointerException, IllegalArgumentException {
+		
+		this(fc, kSize, DEFAULT_BUFFER_SIZE, DEFAULT_BLOCK_SIZE); // throws NullPointerException, IllegalArgumentException
+		
+		return;
+	}
+	
+	/**
+	 * Create a new format writer.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param kSize K-mer size.
+	 * @param bufSize Size of the output buffer.
+	 * @param blockSize Size of a block.
+	 * 
+	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> is invalid, if <code>blockSize</code>
+	 *   cannot hold a group, or if <code>bufSize</code> cannot hold the header and a block.
+	 */
+	public KHBFormatWriter(WritableByteChannel fc, int kSize, int bufSize, int blockSize)
+			throws NullPointerException, IllegalArgumentException {
+		
+		super (fc, kSize, bufSize); // throws NullPointerException, IllegalArgumentException
+		
+		if (blockSize < BLOCK_HEADER_SIZE + MAX_GROUP_SIZE)
+			throw new IllegalArgumentException("Cannot create format writer: Block size is less than " + (BLOCK_HEADER_SIZE + MAX_GROUP_SIZE) + ": " + blockSize);
+		
+		if (bufSize < HEADER_SIZE + blockSize)
+			throw new IllegalArgumentException("Cannot create format writer: Buffer size is less than the header and one block: " + bufSize);
+		
+		this.blockSize = blockSize;
+		maxRecordSize = blockSize;
+		
+		groupFlank = -1;
+		groupMask = 0;
+		groupCount = new int[4];
+		
+		blockStart = -1;
+		blockGroups = 0;
+		lastFlank = 0;
+		
+		blockIndex = new long[1024];
+		blockCount = 0;
+		groupTotal = 0;
+		
+		// Header
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(kSize);
+		buf.putInt(blockSize);
+		
+		return;
+	}
+	
+	/**
+	 * Format and write k-mer.
+	 * 
+	 * @param kmerCount K-mer count.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	@Override
+	public void write(CounterPair[] kmerCount)
+			throws IOException {
+		
+		for (CounterPair pair : kmerCount)
+			addRecord(pair.kmer, pair.count);
+		
+		return;
+	}
+	
+	/**
+	 * Format and write a batch of k-mers. The batch is not modified. A flank group
+	 * may continue in the next batch, so it is written when a k-mer with another
+	 * flank is found or when the writer is finished.
+	 * 
+	 * @param batch K-mer counts.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	@Override
+	public void write(KmerBatch batch)
+			throws IOException {
+		
+		for (int index = 0; index < batch.length; ++index)
+			addRecord(batch.kmer[index], batch.count[index]);
+		
+		return;
+	}
+	
+	/**
+	 * Write the last group, the block index, and the trailer, and wait until all
+	 * buffers are written.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	@Override
+	public void finish()
+			throws IOException {
+		
+		if (groupFlank >= 0) {
+			putGroup();
+			groupFlank = -1;
+		}
+		
+		closeBlock();
+		
+		// Index
+		for (int index = 0; index < blockCount; ++index) {
+			if (buf.remaining() < Long.SIZE / 8)
+				flush();
+			
+			buf.putLong(blockIndex[index]);
+		}
+		
+		// Trailer
+		if (buf.remaining() < TRAILER_SIZE)
+			flush();
+		
+		buf.putInt(blockCount);
+		buf.putLong(groupTotal);
+		buf.putInt(MAGIC);
+		
+		super.finish();
+		
+		return;
+	}
+	
+	/**
+	 * Add one k-mer to its flank group. K-mers must be in sorted order.
+	 * 
+	 * @param kmer K-mer.
+	 * @param count Count.
+	 * 
+	 * @throws IOException If an IO error occurs while writing or if k-mers are
+	 *   not in sorted order.
+	 */
+	private void addRecord(long kmer, int count)
+			throws IOException {
+		
+		long flank = kmer >>> 2;
+		
+		if (flank != groupFlank) {
+			
+			if (groupFlank >= 0) {
+				if (flank < groupFlank)
+					throw new IOException("Cannot write binary output: K-mers are not in sorted order");
+				
+				putGroup();
+			}
+			
+			groupFlank = flank;
+			groupMask = 0;
+		}
+		
+		groupMask |= 1 << ((int) kmer & 0x3);
+		groupCount[(int) kmer & 0x3] = count;
+		
+		return;
+	}
+	
+	/**
+	 * Write the collected group. A new block is started if the group does not fit
+	 * in the current block.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void putGroup()
+			throws IOException {
+		
+		int size = 1;
+		
+		for (int base = 0; base < 4; ++base)
+			if ((groupMask & (1 << base)) != 0)
+				size += varintSize(groupCount[base] & 0xFFFFFFFFL);
+		
+		if (blockStart < 0 || buf.position() + size + varintSize(groupFlank - lastFlank) > blockStart + blockSize) {
+			closeBlock();
+			openBlock();
+		}
+		
+		putVarint(groupFlank - lastFlank);
+		buf.put((byte) groupMask);
+		
+		for (int base = 0; base < 4; ++base)
+			if ((groupMask & (1 << base)) != 0)
+				putVarint(groupCount[base] & 0xFFFFFFFFL);
+		
+		lastFlank = groupFlank;
+		++blockGroups;
+		++groupTotal;
+		
+		return;
+	}
+	
+	/**
+	 * Start a block with the collected group.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void openBlock()
+			throws IOException {
+		
+		// Keep whole blocks in the buffer so the group count can be set when the block is closed
+		if (buf.remaining() < blockSize)
+			flush();
+		
+		blockStart = buf.position();
+		blockGroups = 0;
+		lastFlank = 0;
+		
+		buf.putInt(0);
+		
+		if (blockCount == blockIndex.length) {
+			long[] newIndex = new long[blockCount * 2];
+			System.arraycopy(blockIndex, 0, newIndex, 0, blockCount);
+			blockIndex = newIndex;
+		}
+		
+		blockIndex[blockCount++] = groupFlank;
+		
+		return;
+	}
+	
+	/**
+	 * Set the group count of the current block and pad it to the block size.
+	 */
+	private void closeBlock() {
+		
+		int blockEnd;
+		
+		if (blockStart < 0)
+			return;
+		
+		buf.putInt(blockStart, blockGroups);
+		
+		blockEnd = blockStart + blockSize;
+		
+		while (buf.position() < blockEnd)
+			buf.put((byte) 0);
+		
+		blockStart = -1;
+		
+		return;
+	}
+	
+	/**
+	 * Write an unsigned varint: seven bits per byte, lowest bits first, with the
+	 * high bit set on all bytes except the last.
+	 * 
+	 * @param value Value.
+	 */
+	private void putVarint(long value) {
+		
+		while ((value & ~0x7FL) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		
+		buf.put((byte) value);
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of bytes of an unsigned varint.
+	 * 
+	 * @param value Value.
+	 * 
+	 * @return Number of bytes.
+	 */
+	private static int varintSize(long value) {
+		
+		int size = 1;
+		
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			++size;
+		}
+		
+		return size;
+	}
+}
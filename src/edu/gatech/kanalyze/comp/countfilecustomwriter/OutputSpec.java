@@ -0,0 +1,65 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import edu.gatech.kanalyze.io.OutputFormat;
+
+/**
+ * An output file and the format it is written in.
+ */
+public class OutputSpec {
+	
+	/** Output format. */
+	public final OutputFormat format;
+	
+	/** Name of the output file. */
+	public final String fileName;
+	
+	/**
+	 * Create a new output spec.
+	 * 
+	 * @param format Output format.
+	 * @param fileName Name of the output file.
+	 * 
+	 * @throws NullPointerException If <code>format</code> or <code>fileName</code> is <code>null</code>.
+	 */
+	public OutputSpec(OutputFormat format, String fileName)
+			throws NullPointerException {
+		
+		if (format == null)
+			throw new NullPointerException("Cannot create output spec with format: null");
+		
+		if (fileName == null)
+			throw new NullPointerException("Cannot create output spec with file name: null");
+		
+		this.format = format;
+		this.fileName = fileName;
+		
+		return;
+	}
+	
+	/**
+	 * Get a string representation of this output.
+	 * 
+	 * @return Format and file name separated by a colon.
+	 */
+	@Override
+	public String toString() {
+		return format + ":" + fileName;
+	}
+}
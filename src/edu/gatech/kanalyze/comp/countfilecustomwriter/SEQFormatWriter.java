@@ -17,57 +17,74 @@
 package edu.gatech.kanalyze.comp.countfilecustomwriter;
 
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
 
 /**
  * Formats output as sequences and writes.
  */
 public class SEQFormatWriter extends CountFormatWriter {
 	
-	/**
-	 * Maximum buffer capacity before forcing <code>flush()</code>. This capacity
-	 * prevents buffer overrun while writing records.
-	 */
-	private int maxCapacity;
-
 	/** Tab character as a byte. */
 	private static final byte tabByte = (byte) '\t';
 	
 	/** Newline character as a byte. */
 	private static final byte nlByte = (byte) '\n';
 	
-	/** Newline character as a byte. */
+	/** Slash character as a byte. */
 	private static final byte slByte = (byte) '/';
 	
-	/** K-mer string as a byte array. */
-	private byte[] kmerBytes;
+	/** Number of bases in the left flank. */
+	private final int leftSize;
+	
+	/** Number of bases in the right flank. */
+	private final int rightSize;
 	
-	/** K-mer count as a byte array. */
-	private byte[] countBytes;
+	/** Last k-mer written in the current batch without its last base, or -1. */
+	private long preKmer;
 	
 	private int lowerThreshold;
 	
 	/**
 	 * Create a new format writer.
 	 * 
-	 * @param fc File channel output is written to.
+	 * @param fc Channel output is written to.
 	 * @param kSize K-mer size.
 	 * 
 	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
 	 * @throws IllegalArgumentException If <code>kSize</code> is invalid.
 	 */
-	public SEQFormatWriter(FileChannel fc, int kSize, int lowerThreshold)
+	public SEQFormatWriter(WritableByteChannel fc, int kSize, int lowerThreshold)
+			throws NullPointerException, IllegalArgumentException {
+		
+		this(fc, kSize, lowerThreshold, DEFAULT_BUFFER_SIZE); // throws NullPointerException, IllegalArgumentException
+		
+		return;
+	}
+	
+	/**
+	 * Create a new format writer.
+	 * 
+	 * @param fc Channel output is written to.
+	 * @param kSize K-mer size.
+	 * @param bufSize Size of the output buffer.
+	 * 
+	 * @throws NullPointerException If <code>fc</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> or <code>bufSize</code> is invalid.
+	 */
+	public SEQFormatWriter(WritableByteChannel fc, int kSize, int lowerThreshold, int bufSize)
 			throws NullPointerException, IllegalArgumentException {
 		
-		super (fc, kSize); // throws NullPointerException, IllegalArgumentException
+		super (fc, kSize, bufSize); // throws NullPointerException, IllegalArgumentException
 		
-		maxCapacity = bufSize - (kSize + 10);
+		// Longest line: newline, k-mer, two tabs, slash, count, tab
+		maxRecordSize = kSize + 5 + AsciiEncoder.decimalLength(Integer.MAX_VALUE);
 		this.lowerThreshold = lowerThreshold;
 		
-		kmerBytes = new byte[kSize+2];
-		countBytes = new byte[((int) Math.log10(Integer.MAX_VALUE)) + 1];
+		leftSize = kSize / 2;
+		rightSize = kSize - 1 - leftSize;
 		
 		return;
 	}
@@ -83,130 +100,71 @@ public class SEQFormatWriter extends CountFormatWriter {
 	public void write(CounterPair[] kmerCount)
 			throws IOException {
 		
-		int countIndex;
+		preKmer = -1;
 		
-		long preKmer = -1;
-		//int[] ca = new int[4];
-		
-		for (int index = 0; index < kmerCount.length; ++index) {
-			
-			if (buf.position() >= maxCapacity)
-				flush();
-			
-			//if(kmerCount[index].count<lowerThreshold || kmerCount[index].count>=1000)
-			//{
-			//	continue;
-			//}
-			
-			if((kmerCount[index].kmer>>2) != preKmer)
-			{
-				preKmer=(kmerCount[index].kmer>>2);
-				for (int baseIndex = kSize + 1; baseIndex >= 0; --baseIndex) {
-					switch((int) kmerCount[index].kmer & 0x3) {
-					case 0:
-						kmerBytes[baseIndex] = (byte) 'A';
-						break;
-						
-					case 1:
-						kmerBytes[baseIndex] = (byte) 'C';
-						break;
-						
-					case 2:
-						kmerBytes[baseIndex] = (byte) 'G';
-						break;
-						
-					default:
-						kmerBytes[baseIndex] = (byte) 'T';
-					}
-					
-					if(baseIndex == kSize + 1)
-					{
-						--baseIndex;
-						kmerBytes[baseIndex] = tabByte;
-					}
-					
-					if(baseIndex == kSize/2+1)
-					{
-						--baseIndex;
-						kmerBytes[baseIndex] = tabByte;
-					}
-					
-					kmerCount[index].kmer >>= 2;
-				}
-				
-				countIndex = countBytes.length - 1;
-				while (kmerCount[index].count > 0) {
-					countBytes[countIndex--] = (byte) ('0' + kmerCount[index].count % 10);
-					kmerCount[index].count /= 10;
-				}
-				
-				if (countIndex == countBytes.length - 1) {
-					countBytes[countIndex--] = '0';
-				}
-			
-				buf.put(nlByte);
-				buf.put(kmerBytes);
-				buf.put(slByte);
-				buf.put(countBytes, countIndex + 1, countBytes.length - countIndex - 1);
-				buf.put(tabByte);
-				
-			}
-			else
-			{
-				int baseIndex = kSize + 1;
-				switch((int) kmerCount[index].kmer & 0x3) {
-				case 0:
-					kmerBytes[baseIndex] = (byte) 'A';
-					break;
-					
-				case 1:
-					kmerBytes[baseIndex] = (byte) 'C';
-					break;
-					
-				case 2:
-					kmerBytes[baseIndex] = (byte) 'G';
-					break;
-					
-				default:
-					kmerBytes[baseIndex] = (byte) 'T';
-				}
-				
-				
-				kmerCount[index].kmer >>= 2;
-
-				
-				countIndex = countBytes.length - 1;
-				while (kmerCount[index].count > 0) {
-					countBytes[countIndex--] = (byte) ('0' + kmerCount[index].count % 10);
-					kmerCount[index].count /= 10;
-				}
-				
-				if (countIndex == countBytes.length - 1) {
-					countBytes[countIndex--] = '0';
-				}
-			
-				buf.put(kmerBytes[baseIndex]);
-				buf.put(slByte);
-				buf.put(countBytes, countIndex + 1, countBytes.length - countIndex - 1);
-				buf.put(tabByte);
-			}
-			
-		}
+		for (CounterPair pair : kmerCount)
+			writeRecord(pair.kmer, pair.count);
 		
 		return;
 	}
 	
 	/**
-	 * Perform any post-run cleanup tasks.
+	 * Format and write a batch of k-mers. The batch is not modified.
 	 * 
-	 * @throws Throwable If any error occurs during cleanup.
+	 * @param batch K-mer counts.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
 	 */
 	@Override
-	public void postExec()
-			throws Throwable {
+	public void write(KmerBatch batch)
+			throws IOException {
+		
+		preKmer = -1;
+		
+		for (int index = 0; index < batch.length; ++index)
+			writeRecord(batch.kmer[index], batch.count[index]);
+		
+		return;
+	}
+	
+	/**
+	 * Format and write one k-mer. K-mers that share all bases except the last
+	 * base with the previous k-mer of the batch are appended to its line.
+	 * 
+	 * @param kmer K-mer.
+	 * @param count Count.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void writeRecord(long kmer, int count)
+			throws IOException {
+		
+		long flank = kmer >> 2;
+		
+		if (buf.remaining() < maxRecordSize)
+			flush();
+		
+		//if(count<lowerThreshold || count>=1000)
+		//{
+		//	return;
+		//}
+		
+		// Start a new line with the flanks
+		if (flank != preKmer) {
+			preKmer = flank;
+			
+			buf.put(nlByte);
+			AsciiEncoder.putBases(buf, flank >> (rightSize * 2), leftSize);
+			buf.put(tabByte);
+			AsciiEncoder.putBases(buf, flank, rightSize);
+			buf.put(tabByte);
+		}
 		
-		kmerBytes = null;
-		countBytes = null;
+		// Middle base and count
+		buf.put(AsciiEncoder.BASE[(int) kmer & 0x3]);
+		buf.put(slByte);
+		AsciiEncoder.putDecimal(buf, Math.max(count, 0));
+		buf.put(tabByte);
 		
 		return;
 	}
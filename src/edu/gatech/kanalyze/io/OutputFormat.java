@@ -28,7 +28,10 @@ public enum OutputFormat {
 	INT,
 	
 	/** K-mer integer as hex string. */
-	HEX;
+	HEX,
+	
+	/** Binary flank groups in indexed blocks. */
+	KHB;
 
 	/**
 	 * Get the output by name.
@@ -0,0 +1,89 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+package edu.gatech.kanalyze.util;
+
+/**
+ * A batch of k-mer counts stored as primitive arrays. Batches are recycled
+ * through a <code>KmerBatchPool</code> instead of being allocated for every
+ * set of k-mers.
+ */
+public class KmerBatch {
+	
+	/** K-mers. */
+	public final long[] kmer;
+	
+	/** K-mer counts where each count[n] is the count of kmer[n]. */
+	public final int[] count;
+	
+	/** Number of k-mer counts in this batch. */
+	public int length;
+	
+	/**
+	 * Create a new empty batch.
+	 * 
+	 * @param capacity Maximum number of k-mer counts in this batch.
+	 * 
+	 * @throws IllegalArgumentException If <code>capacity</code> is less than 1.
+	 */
+	public KmerBatch(int capacity)
+			throws IllegalArgumentException {
+		
+		if (capacity < 1)
+			throw new IllegalArgumentException("Cannot create k-mer batch with capacity less than 1: " + capacity);
+		
+		kmer = new long[capacity];
+		count = new int[capacity];
+		length = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Add a k-mer count to the end of this batch.
+	 * 
+	 * @param kmer K-mer.
+	 * @param count Count.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If this batch is full.
+	 */
+	public void add(long kmer, int count)
+			throws ArrayIndexOutOfBoundsException {
+		
+		this.kmer[length] = kmer;
+		this.count[length] = count;
+		++length;
+		
+		return;
+	}
+	
+	/**
+	 * Get the maximum number of k-mer counts in this batch.
+	 * 
+	 * @return Capacity of this batch.
+	 */
+	public int capacity() {
+		return kmer.length;
+	}
+	
+	/**
+	 * Determine if this batch is full.
+	 * 
+	 * @return <code>true</code> if no more k-mer counts can be added.
+	 */
+	public boolean isFull() {
+		return length == kmer.length;
+	}
+}
@@ -0,0 +1,88 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+package edu.gatech.kanalyze.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A pool of recycled k-mer batches shared by the components that produce and
+ * consume them. Getting a batch never blocks: a new batch is allocated when the
+ * pool is empty, and batches recycled into a full pool are left for the garbage
+ * collector.
+ */
+public class KmerBatchPool {
+	
+	/** Free batches. */
+	private final LinkedBlockingQueue<KmerBatch> freeQueue;
+	
+	/** Capacity of each batch. */
+	public final int batchSize;
+	
+	/**
+	 * Create a new batch pool.
+	 * 
+	 * @param batchSize Capacity of each batch.
+	 * @param poolSize Maximum number of free batches kept for reuse.
+	 * 
+	 * @throws IllegalArgumentException If <code>batchSize</code> or <code>poolSize</code>
+	 *   is less than 1.
+	 */
+	public KmerBatchPool(int batchSize, int poolSize)
+			throws IllegalArgumentException {
+		
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Cannot create batch pool with batch size less than 1: " + batchSize);
+		
+		if (poolSize < 1)
+			throw new IllegalArgumentException("Cannot create batch pool with pool size less than 1: " + poolSize);
+		
+		this.batchSize = batchSize;
+		freeQueue = new LinkedBlockingQueue<KmerBatch>(poolSize);
+		
+		return;
+	}
+	
+	/**
+	 * Get an empty batch.
+	 * 
+	 * @return An empty batch.
+	 */
+	public KmerBatch get() {
+		
+		KmerBatch batch = freeQueue.poll();
+		
+		if (batch == null)
+			return new KmerBatch(batchSize);
+		
+		return batch;
+	}
+	
+	/**
+	 * Return a batch to the pool. The batch must not be used after it is recycled.
+	 * 
+	 * @param batch Batch to recycle. If <code>null</code>, this method has no effect.
+	 */
+	public void recycle(KmerBatch batch) {
+		
+		if (batch == null || batch.capacity() != batchSize)
+			return;
+		
+		batch.length = 0;
+		freeQueue.offer(batch);
+		
+		return;
+	}
+}
@@ -2,12 +2,23 @@ package edu.gatech.khet;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import edu.gatech.khet.merger.CountMergeComponent;
+import edu.gatech.khet.merger.FlankFilter;
+import edu.gatech.khet.merger.SegmentCompactor;
 import edu.gatech.kanalyze.comp.countfilecustomwriter.CountFileWriterComponent;
-import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.comp.countfilecustomwriter.OutputSpec;
+import edu.gatech.kanalyze.io.OutputFormat;
+import edu.gatech.kanalyze.util.KmerBatch;
+import edu.gatech.kanalyze.util.KmerBatchPool;
+import edu.gatech.khet.reader.KhetReaderBin;
+import edu.gatech.khet.sorter.SortMode;
+import edu.gatech.khet.worker.KhetSortScheduler;
 import edu.gatech.khet.worker.KhetWorkerCall;
 import edu.gatech.khet.worker.KhetWorkerListen;
 import edu.gatech.khet.worker.KhetWorkerSort;
@@ -65,20 +76,35 @@ public class KhetMain extends KhetError {
 	/** input file format. */
 	private static String outputFormat = DEFAULT_OUTPUT_FORMAT;
 	
+	/** Outputs ("FORMAT" or "FORMAT:file") in the order they were given. */
+	private static List<String> outputSpecList = new ArrayList<String>();
+	
+	/** Default sort mode. */
+	public static final SortMode DEFAULT_SORT_MODE = SortMode.RUN;
+	
+	/** sort mode for bin files. */
+	private static SortMode sortMode = DEFAULT_SORT_MODE;
+	
+	/** merge bin files without sorting them first. */
+	private static Boolean noSort = false;
+	
 	/** Default k-mer size. */
 	public static final int DEFAULT_KSIZE = Constants.DEFAULT_KSIZE;
 	
 	/** command for Kanalyze. */
 	private static String command;
 	
-	/** Synchronized queue to hold all jobs for workers*/
-	private static LinkedBlockingQueue<String> lbq = new LinkedBlockingQueue<String>();
+	/** Schedules bin files for the sort workers, largest first*/
+	private static KhetSortScheduler sortScheduler = new KhetSortScheduler();
 	
 	/** Synchronized queue to hold all jobs for merger*/
 	private static LinkedBlockingQueue<SegmentFile> segmentQueue = new LinkedBlockingQueue<SegmentFile>();
 	
-	/** Synchronized queue to hold all jobs for writer*/
-	private static LinkedBlockingQueue<CounterPair[]> countQueue = new LinkedBlockingQueue<CounterPair[]>();
+	/** Synchronized queue to hold all jobs for writer. Bounded so the merge waits for a slow output. */
+	private static LinkedBlockingQueue<KmerBatch> countQueue = new LinkedBlockingQueue<KmerBatch>(Constants.DEFAULT_QUEUE_SIZE);
+	
+	/** Batches written to countQueue, recycled by the writer*/
+	private static KmerBatchPool batchPool = new KmerBatchPool(Constants.DEFAULT_BATCH_SIZE, Constants.DEFAULT_QUEUE_SIZE);
 	
 	/** intermediate file format*/
 	private static String inff = "bin";
@@ -102,7 +128,7 @@ public class KhetMain extends KhetError {
 		PrintStream out = System.out;
 		
 		out.println("KhetMain [-d <k-mer threads>] [-f <format>] [-k <kmer size>] [-l <split threads>]");
-		out.println("      [-o <output>] [-r <rev mode>] [-R] [-p <key=value>] -v -V");
+		out.println("      [-n] [-o <output>] [-r <rev mode>] [-R] [-s <sort mode>] [-p <key=value>] -v -V");
 		out.println("KhetMain -h");
 		out.println();
 		out.println("-f --format [default = " + DEFAULT_FORMAT + "]");
@@ -132,14 +158,66 @@ public class KhetMain extends KhetError {
 		out.println("-i --in");
 		out.println("\tInput file name for the file reader.");
 		out.println();
+		out.println("-n --nosort");
+		out.println("\tMerge KAnalyze bin files directly. K-mers are rotated while they are merged,");
+		out.println("\tso no sorted copy of each bin file is written. Bin files must be in the");
+		out.println("\torder KAnalyze writes them.");
+		out.println();
 		out.println("-o --out [default = " + DEFAULT_OUTPUT_FILE_NAME + "]");
-		out.println("\tOutput file name for the file writer.");
+		out.println("\tOutput file name for the file writer. If \"" + CountFileWriterComponent.STDOUT_FILE_NAME + "\", k-mers are written to");
+		out.println("\tstandard output and messages to standard error. Named pipes are written as they");
+		out.println("\tare read, and the merge waits while the reader is behind.");
+		out.println();
+		out.println("-p --property <key=value>");
+		out.println("\tSet a component property. This option may be set multiple times. Merge");
+		out.println("\tproperties include \"" + CountMergeComponent.PROP_BUF_RECORD_COUNT + "\" (records read from a segment");
+		out.println("\tfile at a time, default = " + CountMergeComponent.DEFAULT_BUF_RECORD_COUNT + ") and \"" + CountMergeComponent.PROP_IO_THREADS + "\" (threads");
+		out.println("\treading segment files ahead of the merge, default = " + CountMergeComponent.DEFAULT_IO_THREADS + "). With more segments");
+		out.println("\tthan \"" + CountMergeComponent.PROP_MAX_FAN_IN + "\" (default = " + CountMergeComponent.DEFAULT_MAX_FAN_IN + ") or than fit the segment buffers in");
+		out.println("\t\"" + CountMergeComponent.PROP_MERGE_MEMORY + "\" bytes (default = 1/4 of the heap), segments are first merged");
+		out.println("\tinto intermediate runs. Every merge thread opens all segments of the final merge, and");
+		out.println("\tall threads together open no more than \"" + CountMergeComponent.PROP_MAX_OPEN_FILES + "\" (default = " + CountMergeComponent.DEFAULT_MAX_OPEN_FILES + ") files.");
+		out.println("\tSorted files are memory-mapped or streamed as set by");
+		out.println("\t\"" + CountMergeComponent.PROP_READ_MODE + "\" (\"map\", \"stream\", or \"auto\" to map when available");
+		out.println("\tmemory holds them, default = auto). Sorted files and runs are written as raw");
+		out.println("\trecords or, with \"" + CountMergeComponent.PROP_SEGMENT_FORMAT + "\" = \"pack\", as delta and varint coded");
+		out.println("\tblocks that trade CPU for disk bandwidth (default = sort). Each sort thread sorts a bin file");
+		out.println("\tin chunks that fit \"" + KhetReaderBin.PROP_SORT_MEMORY + "\" bytes (default = " + KhetReaderBin.DEFAULT_SORT_MEMORY + ") and writes one");
+		out.println("\tsorted file per chunk. While bin files are sorted, every");
+		out.println("\t\"" + SegmentCompactor.PROP_TIER_WIDTH + "\"");
+		out.println("\t(default = " + SegmentCompactor.DEFAULT_TIER_WIDTH + ", 0 to disable) sorted files are merged into one run on");
+		out.println("\t\"" + SegmentCompactor.PROP_COMPACT_THREADS + "\" (default = " + SegmentCompactor.DEFAULT_COMPACT_THREADS + ") background threads.");
+		out.println("\tTo write only heterozygous site candidates, the merge filters flank groups");
+		out.println("\t(k-mers that differ only by the middle base) with \"" + FlankFilter.PROP_MIN_ALLELES + "\" and");
+		out.println("\t\"" + FlankFilter.PROP_MAX_ALLELES + "\" (number of alleles), \"" + FlankFilter.PROP_MIN_MINOR_RATIO + "\" (minimum");
+		out.println("\tminor allele count over group coverage), \"" + FlankFilter.PROP_MIN_COVERAGE + "\" and \"" + FlankFilter.PROP_MAX_COVERAGE + "\"");
+		out.println("\t(group coverage), and \"" + FlankFilter.PROP_MULTI_ALLELIC + "\" (\"keep\" or \"drop\" groups with more");
+		out.println("\tthan two alleles). Groups are not filtered unless one of these is set. Set \"" + FlankFilter.PROP_REPORT + "\"");
+		out.println("\tto a file to also list kept groups with more than two alleles, one line per group.");
+		out.println("\tThe writer formats batches on \"" + CountFileWriterComponent.PROP_FORMAT_THREADS + "\" threads (default = " + CountFileWriterComponent.DEFAULT_FORMAT_THREADS + ")");
+		out.println("\tand writes them in order. Otherwise, it formats into \"" + CountFileWriterComponent.PROP_FLUSH_BUFFERS + "\" buffers");
+		out.println("\t(default = " + CountFileWriterComponent.DEFAULT_FLUSH_BUFFERS + ") that are written in the background.");
+		out.println("\tWith \"" + CountFileWriterComponent.PROP_SHARDS + "\" (a power of 2, default = " + CountFileWriterComponent.DEFAULT_SHARDS + "), each output is");
+		out.println("\tsplit into shard files by k-mer prefix, named <output>.<shard>, and each shard has its own");
+		out.println("\twriter. Set \"" + CountFileWriterComponent.PROP_CONCAT_SHARDS + "\" to \"true\" to concatenate shards into <output>.");
+		out.println("\tSet \"" + CountFileWriterComponent.PROP_BGZF + "\" to \"true\" to compress output to BGZF (blocked gzip) with blocks");
+		out.println("\tdeflated on \"" + CountFileWriterComponent.PROP_BGZF_THREADS + "\" threads (default = number of processors) at level");
+		out.println("\t\"" + CountFileWriterComponent.PROP_BGZF_LEVEL + "\" (default = " + CountFileWriterComponent.DEFAULT_BGZF_LEVEL + "). Set \"" + CountFileWriterComponent.PROP_BGZF_INDEX + "\" to \"true\" to also");
+		out.println("\twrite a bgzip index to <output>" + CountFileWriterComponent.BGZF_INDEX_EXTENSION + ".");
 		out.println();
 		out.println("-r --reverse");
 		out.println("\tReverse complement k-mers as they are generated.");
 		out.println();
+		out.println("-s --sortmode [default = " + DEFAULT_SORT_MODE + "]");
+		out.println("\tSet how bin files are sorted. \"RUN\" merges the runs KAnalyze already");
+		out.println("\tsorted in one linear pass and falls back to a radix sort when a file is");
+		out.println("\tnot in KAnalyze order. \"RADIX\" always uses the radix sort.");
+		out.println();
 		out.println("-t --threads [default = " + DEFAULT_THREADS + "]");
-		out.println("\tThe number of threads to work");
+		out.println("\tThe number of threads to work. Sorting reads one bin file per thread, taking");
+		out.println("\tthe largest finished file first, and large bin files are sorted in parallel on");
+		out.println("\ta pool of this many threads shared by all files. The merge splits k-mers into");
+		out.println("\tthis many ranges merged in parallel.");
 		out.println();
 		out.println("-l --lower");
 		out.println("\tLower threshold of kmer counts to minimize sequence error.");
@@ -147,16 +225,61 @@ public class KhetMain extends KhetError {
 		out.println("-u --upper");
 		out.println("\tUpper threshold of kmer counts to minimize sequence error.");
 		out.println();
-		out.println("-z --format [default = " + DEFAULT_OUTPUT_FORMAT + "]");
+		out.println("-z --format <format[:file]> [default = " + DEFAULT_OUTPUT_FORMAT + "]");
 		out.println("\tSet the output format type. This option determines how the");
 		out.println("\tformat files are output. Valid examples include \"SEQ\", \"INT\",");
-		out.println("\tand \"HEX\". This option may be set multiple");
-		out.println("\ttimes when reading multiple files with different formats.");
+		out.println("\t\"HEX\", and \"KHB\" (binary flank groups with a block index, read with");
+		out.println("\tKHBFormatReader). This option may be set multiple times to write");
+		out.println("\tthe merge result in several formats at once. Without a file name, the");
+		out.println("\tfirst output is written to the -o file and others to the -o file name");
+		out.println("\twith the format as an extension (e.g. \"out.het.int\").");
 		out.println();
 		
 		return;
 	}
 
+	/**
+	 * Get the output files and formats set with -z.
+	 * 
+	 * @return Outputs in the order they were given.
+	 * 
+	 * @throws IllegalArgumentException If an output without a file name would be
+	 *   named after standard output.
+	 */
+	private static List<OutputSpec> getOutputList()
+			throws IllegalArgumentException {
+		
+		List<OutputSpec> outputList = new ArrayList<OutputSpec>();
+		boolean defaultUsed = false;  // Set when an output is written to outputFileName
+		
+		if (outputSpecList.isEmpty())
+			outputSpecList.add(outputFormat);
+		
+		for (String spec : outputSpecList) {
+			int colon = spec.indexOf(':');
+			OutputFormat format = OutputFormat.getFormat((colon < 0) ? spec : spec.substring(0, colon));
+			String fileName;
+			
+			if (colon >= 0) {
+				fileName = spec.substring(colon + 1);
+				
+			} else if (! defaultUsed) {
+				fileName = outputFileName;
+				defaultUsed = true;
+				
+			} else if (outputFileName.equals(CountFileWriterComponent.STDOUT_FILE_NAME)) {
+				throw new IllegalArgumentException("Output is written to standard output, add a file name to format: " + spec);
+				
+			} else {
+				fileName = outputFileName + "." + format.toString().toLowerCase();
+			}
+			
+			outputList.add(new OutputSpec(format, fileName));
+		}
+		
+		return outputList;
+	}
+	
 	public static void main(String[] args) throws InterruptedException {
 		
 		//long startTime = System.currentTimeMillis();
@@ -164,6 +287,7 @@ public class KhetMain extends KhetError {
 		// Temporary variables
 		String optarg; // Option argument
 		int opt; // Option number getopt sets
+		List<OutputSpec> outputList; // Outputs of the writer
 
 		// Check arguments
 		if (args == null)
@@ -179,8 +303,11 @@ public class KhetMain extends KhetError {
 				new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h'),
 				new LongOpt("ksize", LongOpt.REQUIRED_ARGUMENT, null, 'k'),
 				new LongOpt("in", LongOpt.REQUIRED_ARGUMENT, null, 'i'),
+				new LongOpt("nosort", LongOpt.NO_ARGUMENT, null, 'n'),
 				new LongOpt("out", LongOpt.REQUIRED_ARGUMENT, null, 'o'),
+				new LongOpt("property", LongOpt.REQUIRED_ARGUMENT, null, 'p'),
 				new LongOpt("reverse", LongOpt.NO_ARGUMENT, null, 'r'),
+				new LongOpt("sortmode", LongOpt.REQUIRED_ARGUMENT, null, 's'),
 				new LongOpt("threads", LongOpt.REQUIRED_ARGUMENT, null, 't'),
 				new LongOpt("lower", LongOpt.REQUIRED_ARGUMENT, null, 'l'),
 				new LongOpt("upper", LongOpt.REQUIRED_ARGUMENT, null, 'u'),
@@ -189,7 +316,7 @@ public class KhetMain extends KhetError {
 		
 		// Create getopt object
 		Getopt g = new Getopt("KhetMain", args,
-				"-f:g:hk:i:o:rt:l:u:z:", longOpts);
+				"-f:g:hk:i:no:p:rs:t:l:u:z:", longOpts);
 		
 		g.setOpterr(false); // Getopt will not output error messages
 		
@@ -255,14 +382,40 @@ public class KhetMain extends KhetError {
 				inputFileName = g.getOptarg().trim();
 				break;
 				
+			case 'n': // no sort
+				noSort=true;
+				break;
+				
 			case 'o': // Output file name
 				outputFileName = g.getOptarg().trim();
 				break;
 				
+			case 'p': // Component property
+				optarg = g.getOptarg();
+				
+				if (optarg.indexOf('=') < 1) {
+					error("Cannot set property (-p): Property is not in key=value format: " + optarg, Constants.ERR_USAGE, 1);
+					return;
+				}
+				
+				compProp.setProperty(optarg.substring(0, optarg.indexOf('=')).trim(), optarg.substring(optarg.indexOf('=') + 1).trim());
+				break;
+				
 			case 'r': // reverse
 				reverseFlag=true;
 				break;
 				
+			case 's': // sort mode
+				optarg = g.getOptarg();
+				
+				sortMode = SortMode.getMode(optarg);
+				
+				if (sortMode == null) {
+					error("Cannot set sort mode (-s): Unrecognized sort mode: " + optarg, Constants.ERR_USAGE, 1);
+					return;
+				}
+				break;
+				
 			case 't': // threads for worker
 				optarg = g.getOptarg();
 				
@@ -327,11 +480,30 @@ public class KhetMain extends KhetError {
 					return;
 				}
 				
-				if (! optarg.matches(Constants.FORMAT_TYPE_PATTERN)) {
-					error("Cannot set format type (-f): Type name does not match regular expression pattern \"" + Constants.FORMAT_TYPE_PATTERN + "\": " + optarg, Constants.ERR_USAGE, 1);
-					return;
+				{
+					int colon = optarg.indexOf(':');
+					String formatName = (colon < 0) ? optarg : optarg.substring(0, colon);
+					
+					if (! formatName.matches(Constants.FORMAT_TYPE_PATTERN)) {
+						error("Cannot set format type (-f): Type name does not match regular expression pattern \"" + Constants.FORMAT_TYPE_PATTERN + "\": " + optarg, Constants.ERR_USAGE, 1);
+						return;
+					}
+					
+					if (OutputFormat.getFormat(formatName) == null) {
+						error("Cannot set output format (-z): Unrecognized format: " + formatName, Constants.ERR_USAGE, 1);
+						return;
+					}
+					
+					if (colon >= 0 && colon == optarg.length() - 1) {
+						error("Cannot set output format (-z): File name after \":\" is empty: " + optarg, Constants.ERR_USAGE, 1);
+						return;
+					}
+					
+					if (outputSpecList.isEmpty())
+						outputFormat = formatName;
+					
+					outputSpecList.add(optarg);
 				}
-				outputFormat=optarg;
 				break;
 				
 			default: // Unexpected error
@@ -340,6 +512,19 @@ public class KhetMain extends KhetError {
 			}
 		}	
 		
+		try {
+			outputList = getOutputList();
+			
+		} catch (IllegalArgumentException ex) {
+			error("Cannot set output format (-z): " + ex.getMessage(), Constants.ERR_USAGE, 1);
+			return;
+		}
+		
+		// K-mers are written to standard output, so messages go to standard error
+		for (OutputSpec spec : outputList)
+			if (spec.fileName.equals(CountFileWriterComponent.STDOUT_FILE_NAME))
+				System.setOut(System.err);
+		
 		//System.out.println("upper: " + upperThreshold + " lower: " + lowerThreshold);
 		//Thread.sleep(1000000);
 		try{
@@ -361,54 +546,146 @@ public class KhetMain extends KhetError {
 			rc_t.setName("kanalyze_caller");
 			rc_t.start();
 			
-			/**
-			 * start one thread to listen for binary files from kanalyze
-			 * */
-			System.out.println("\nStep 2: Start listening for " + command + "files. \nCheck files for listener");
-			KhetWorkerListen rl = new KhetWorkerListen(inff,lbq);
-			//Runnable rl = new KhetWorkerListen(inff);
-			Thread rl_t = new Thread(rl);
-			rl_t.setDaemon(true);
-			rl_t.setName("khet_listener");
-			rl_t.start();		
-			
-			/**
-			 * start threads to sort binary files
-			 * */
-			//kf = rc.getFlag();
-			System.out.println("\nStep 3: sort bin files.");
-			Thread[] workers = new Thread[numberThreads];
-			for(int i=0;i<numberThreads;i++)
+			if (noSort)
 			{
-				KhetWorkerSort rs = new KhetWorkerSort(command, rc, lbq,segmentQueue, kSize, i, upperThreshold);
-				workers[i] = new Thread(rs);
-				workers[i].setDaemon(true);
-				workers[i].setName("Khet_sort");
-				workers[i].start();
+				/**
+				 * wait for kanalyze and hand its bin files to the merger unsorted
+				 * */
+				System.out.println("\nStep 2: Skip sorting, bin files are merged directly.");
+				try{
+					rc_t.join();
+				}catch(InterruptedException ex){
+					error("Thread interrupted.", Constants.ERR_USAGE, 1);
+					return;
+				}
+				
+				String[] binFiles = new File(".").list(new FileFilter("."+inff));
+				
+				for (String binFile : binFiles)
+				{
+					System.out.println("File " + binFile + ": add");
+					segmentQueue.put(new SegmentFile(new File(binFile), false, SegmentFormat.BIN));
+				}
 			}
-						
-			/**
-			 * join threads
-			 */
-			try{
-				rc_t.join();
-				rl_t.join();
-				//rs_t.join();
+			else
+			{
+				/**
+				 * start one thread to listen for binary files from kanalyze
+				 * */
+				System.out.println("\nStep 2: Start listening for " + command + "files. \nCheck files for listener");
+				KhetWorkerListen rl = new KhetWorkerListen(inff,sortScheduler);
+				//Runnable rl = new KhetWorkerListen(inff);
+				Thread rl_t = new Thread(rl);
+				rl_t.setDaemon(true);
+				rl_t.setName("khet_listener");
+				rl_t.start();		
+			
+				/**
+				 * start threads to sort binary files
+				 * */
+				//kf = rc.getFlag();
+				System.out.println("\nStep 3: sort bin files.");
+				
+				/**
+				 * start one thread to compact sorted files while bin files are sorted
+				 * */
+				SegmentCompactor compactor;
+				SegmentFormat segmentFormat;
+				long sortMemory;
+				
+				try {
+					segmentFormat = CountMergeComponent.getSegmentFormat(compProp);
+					
+				} catch (IllegalArgumentException ex) {
+					error("Cannot set segment format: " + ex.getMessage(), Constants.ERR_USAGE, 1);
+					return;
+				}
+				
+				try {
+					sortMemory = KhetReaderBin.getSortMemory(compProp);
+					
+				} catch (IllegalArgumentException ex) {
+					error("Cannot set sort memory: " + ex.getMessage(), Constants.ERR_USAGE, 1);
+					return;
+				}
+				
+				try {
+					compactor = new SegmentCompactor(segmentQueue, kSize, compProp);
+					
+				} catch (IllegalArgumentException ex) {
+					error("Cannot create compactor: " + ex.getMessage(), Constants.ERR_USAGE, 1);
+					return;
+				}
+				
+				Thread compactor_t = new Thread(compactor);
+				compactor_t.setDaemon(true);
+				compactor_t.setName("khet_compact");
+				compactor_t.start();
+				
+				/**
+				 * sort threads share one pool, so a few large bin files are sorted on all threads
+				 * */
+				ForkJoinPool sortPool = new ForkJoinPool(numberThreads);
+				
+				Thread[] workers = new Thread[numberThreads];
+				KhetWorkerSort[] sorters = new KhetWorkerSort[numberThreads];
 				for(int i=0;i<numberThreads;i++)
 				{
-					workers[i].join();
+					KhetWorkerSort rs = new KhetWorkerSort(command, sortScheduler, segmentQueue, kSize, i, upperThreshold, sortMode, segmentFormat, sortMemory, sortPool);
+					sorters[i] = rs;
+					workers[i] = new Thread(rs);
+					workers[i].setDaemon(true);
+					workers[i].setName("Khet_sort");
+					workers[i].start();
+				}
+						
+				/**
+				 * join threads
+				 */
+				try{
+					rc_t.join();
+					rl_t.join();
+					rl.finish();
+					//rs_t.join();
+					for(int i=0;i<numberThreads;i++)
+					{
+						workers[i].join();
+					}
+					
+					compactor.finish();
+					compactor_t.join();
+				}catch(InterruptedException ex){
+					error("Thread interrupted.", Constants.ERR_USAGE, 1);
+					return;
+				}finally{
+					sortPool.shutdown();
+				}
+				
+				for(KhetWorkerSort rs : sorters)
+				{
+					if (rs.isFailed()) {
+						error("Cannot sort bin files: IO error", Constants.ERR_IO, 1);
+						return;
+					}
 				}
-			}catch(InterruptedException ex){
-				error("Thread interrupted.", Constants.ERR_USAGE, 1);
-				return;
 			}
 			
 			/**
 			 * start threads to merge binary files
 			 * */
 			compProp.setProperty(Constants.PROP_OUTFMT, outputFormat);
+			compProp.setProperty(CountMergeComponent.PROP_MERGE_THREADS, Integer.toString(numberThreads));
 			System.out.println("\nStep 4: merge bin files.");
-			CountMergeComponent mergeComponent = new CountMergeComponent(segmentQueue, countQueue, compProp, wf);
+			CountMergeComponent mergeComponent;
+			
+			try {
+				mergeComponent = new CountMergeComponent(segmentQueue, countQueue, batchPool, kSize, compProp, wf);
+				
+			} catch (IllegalArgumentException ex) {
+				error("Cannot create merge component: " + ex.getMessage(), Constants.ERR_USAGE, 1);
+				return;
+			}
+			
 			//Runnable rl = new KhetWorkerListen(inff);
 			Thread mergeComponent_t = new Thread(mergeComponent);
 			mergeComponent_t.setDaemon(true);
@@ -419,7 +696,16 @@ public class KhetMain extends KhetError {
 			 * start threads to write output files
 			 * */
 			System.out.println("\nStep 5: output files.");
-			CountFileWriterComponent writerComponent = new CountFileWriterComponent(countQueue, mergeComponent, outputFileName, kSize, lowerThreshold, compProp); // throws IllegalArgumentException
+			CountFileWriterComponent writerComponent;
+			
+			try {
+				writerComponent = new CountFileWriterComponent(countQueue, batchPool, mergeComponent, outputList, kSize, lowerThreshold, compProp);
+				
+			} catch (IllegalArgumentException ex) {
+				error("Cannot create writer component: " + ex.getMessage(), Constants.ERR_USAGE, 1);
+				return;
+			}
+			
 			Thread writerComponent_t = new Thread(writerComponent);
 			writerComponent_t.setDaemon(true);
 			writerComponent_t.setName("khet_write");
@@ -433,6 +719,16 @@ public class KhetMain extends KhetError {
 				return;
 			}
 			
+			if (mergeComponent.isFailed()) {
+				error("Cannot merge bin files", Constants.ERR_IO, 1);
+				return;
+			}
+			
+			if (writerComponent.isFailed()) {
+				error("Cannot write output: IO error", Constants.ERR_IO, 1);
+				return;
+			}
+			
 			System.out.println("done");		
 		} catch (IllegalThreadStateException ex) {
 			error("Thread for calling kanalyze throw IllegalThreadStateException", Constants.ERR_USAGE, 1);
@@ -31,27 +31,49 @@ public class SegmentFile {
 	 * if this flag is <code>true</code>.
 	 */
 	public boolean autoDelete;
+	
+	/** Layout of the records in this file. */
+	public final SegmentFormat format;
 
 	/**
 	 * Create a new segment file.
 	 * 
 	 * @param file Segment file.
 	 * @param autoDelete Auto delete flag.
+	 * @param format Layout of the records in <code>file</code>.
 	 * 
-	 * @throws NullPointerException If <code>file</code> is <code>null</code>.
+	 * @throws NullPointerException If <code>file</code> or <code>format</code> is <code>null</code>.
 	 */
-	public SegmentFile(File file, boolean autoDelete)
+	public SegmentFile(File file, boolean autoDelete, SegmentFormat format)
 			throws NullPointerException {
 		
 		if (file == null)
 			throw new NullPointerException("Cannot create segment file for file reference: null");
 		
+		if (format == null)
+			throw new NullPointerException("Cannot create segment file with format: null");
+		
 		this.file = file;
 		this.autoDelete = autoDelete;
+		this.format = format;
 		
 		return;
 	}
 	
+	/**
+	 * Create a new segment file of sorted records.
+	 * 
+	 * @param file Segment file.
+	 * @param autoDelete Auto delete flag.
+	 * 
+	 * @throws NullPointerException If <code>file</code> is <code>null</code>.
+	 */
+	public SegmentFile(File file, boolean autoDelete)
+			throws NullPointerException {
+		
+		this(file, autoDelete, SegmentFormat.SORT);
+	}
+	
 	/**
 	 * Create a new segment file. Set the auto-delete flag to <code>false</code>.
 	 * 
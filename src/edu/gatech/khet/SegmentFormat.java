@@ -0,0 +1,73 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.khet;
+
+/**
+ * Layout of the records in a segment file.
+ */
+public enum SegmentFormat {
+	
+	/** Records sorted by rotated k-mer (written by the sort stage). */
+	SORT,
+	
+	/** KAnalyze segment in KAnalyze order. K-mers are rotated while the segment is merged. */
+	BIN,
+	
+	/** Records sorted by rotated k-mer in blocks of delta and varint coded records (written by <code>SegmentWriter</code>). */
+	PACK;
+	
+	/**
+	 * Get the file name extension of segment files in this format.
+	 * 
+	 * @return File name extension with a leading dot.
+	 */
+	public String getExtension() {
+		
+		switch (this) {
+		case BIN:
+			return ".bin";
+			
+		case PACK:
+			return ".pack";
+			
+		default:
+			return ".sort";
+		}
+	}
+	
+	/**
+	 * Get a segment format by name. Case is ignored.
+	 * 
+	 * @param formatName Name of the segment format.
+	 * 
+	 * @return The segment format if found, and <code>null</code> if
+	 *   not found or if <code>formatName</code> is <code>null</code>.
+	 */
+	public static SegmentFormat getFormat(String formatName) {
+		
+		if (formatName == null || formatName.isEmpty())
+			return null;
+		
+		formatName = formatName.trim().toUpperCase();
+		
+		for (SegmentFormat format : SegmentFormat.values())
+			if (format.toString().equals(formatName))
+				return format;
+		
+		return null;
+	}
+}
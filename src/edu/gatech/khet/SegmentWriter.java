@@ -0,0 +1,419 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes sorted records to a segment file.
+ * <p/>
+ * <code>SORT</code> segments hold raw records of a k-mer (long) and a count (int).
+ * <code>PACK</code> segments start with a header (magic, version, and records per
+ * block) followed by blocks of records. Each block has a header (first k-mer,
+ * number of records, and number of payload bytes), and its payload holds each
+ * record as the varint difference to the k-mer of the previous record followed
+ * by the count as a varint. The first record is coded against the first k-mer of
+ * the block, so blocks are decoded independently. The file ends with an index of
+ * the first k-mer, file offset, and number of records of each block and a trailer
+ * (index offset, number of records, number of blocks, and magic).
+ */
+public class SegmentWriter implements Closeable {
+	
+	/** Size of one raw record (k-mer and count) in bytes. */
+	public static final int RECORD_SIZE = (Long.SIZE + Integer.SIZE) / 8;
+	
+	/** Number of raw records buffered while writing. */
+	public static final int WRITE_BUF_RECORD_COUNT = 65536;
+	
+	/** Magic number at the start and end of a <code>PACK</code> segment ("KHSP"). */
+	public static final int PACK_MAGIC = 0x4B485350;
+	
+	/** Version of the <code>PACK</code> layout. */
+	public static final int PACK_VERSION = 1;
+	
+	/** Size of the <code>PACK</code> file header. */
+	public static final int PACK_HEADER_SIZE = 12;
+	
+	/** Size of a <code>PACK</code> block header. */
+	public static final int PACK_BLOCK_HEADER_SIZE = 16;
+	
+	/** Size of one <code>PACK</code> index entry. */
+	public static final int PACK_INDEX_ENTRY_SIZE = 20;
+	
+	/** Size of the <code>PACK</code> trailer. */
+	public static final int PACK_TRAILER_SIZE = 24;
+	
+	/** Default number of records in a <code>PACK</code> block. */
+	public static final int DEFAULT_BLOCK_RECORDS = 16384;
+	
+	/** Maximum size of one coded record (two varints). */
+	private static final int MAX_PACKED_RECORD_SIZE = 15;
+	
+	/** Initial number of index entries. */
+	private static final int DEFAULT_INDEX_SIZE = 256;
+	
+	/** Layout of the file. */
+	public final SegmentFormat format;
+	
+	/** Output stream of the file. */
+	private final FileOutputStream fos;
+	
+	/** Channel of <code>fos</code>. */
+	private final FileChannel fc;
+	
+	/** Output buffer. */
+	private final ByteBuffer buf;
+	
+	/** Number of records in a block. */
+	private final int blockRecords;
+	
+	/** K-mers of the block being filled. */
+	private long[] blockKmer;
+	
+	/** Counts of the block being filled. */
+	private int[] blockCount;
+	
+	/** Number of records in the block being filled. */
+	private int blockLength;
+	
+	/** First k-mer of each block written. */
+	private long[] indexKmer;
+	
+	/** File offset of each block written. */
+	private long[] indexOffset;
+	
+	/** Number of records of each block written. */
+	private int[] indexCount;
+	
+	/** Number of blocks written. */
+	private int blockTotal;
+	
+	/** Number of bytes written to the file. */
+	private long fileSize;
+	
+	/** Number of records written. */
+	private long recordTotal;
+	
+	/** K-mer of the last record written. */
+	private long lastKmer;
+	
+	/** Set when the file is closed. */
+	private boolean closed;
+	
+	/**
+	 * Create a new segment writer.
+	 * 
+	 * @param file File to write.
+	 * @param format Layout of the file.
+	 * 
+	 * @throws NullPointerException If <code>file</code> or <code>format</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>format</code> is not <code>SORT</code> or <code>PACK</code>.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public SegmentWriter(File file, SegmentFormat format)
+			throws NullPointerException, IllegalArgumentException, IOException {
+		
+		this(file, format, DEFAULT_BLOCK_RECORDS);
+		
+		return;
+	}
+	
+	/**
+	 * Create a new segment writer.
+	 * 
+	 * @param file File to write.
+	 * @param format Layout of the file.
+	 * @param blockRecords Number of records in a <code>PACK</code> block.
+	 * 
+	 * @throws NullPointerException If <code>file</code> or <code>format</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>format</code> is not <code>SORT</code> or <code>PACK</code>,
+	 *   or if <code>blockRecords</code> is less than 1.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public SegmentWriter(File file, SegmentFormat format, int blockRecords)
+			throws NullPointerException, IllegalArgumentException, IOException {
+		
+		if (file == null)
+			throw new NullPointerException("Cannot create segment writer for file: null");
+		
+		if (format == null)
+			throw new NullPointerException("Cannot create segment writer with format: null");
+		
+		if (format != SegmentFormat.SORT && format != SegmentFormat.PACK)
+			throw new IllegalArgumentException("Cannot create segment writer: Format is not " + SegmentFormat.SORT + " or " + SegmentFormat.PACK + ": " + format);
+		
+		if (blockRecords < 1)
+			throw new IllegalArgumentException("Cannot create segment writer: Number of records in a block is less than 1: " + blockRecords);
+		
+		this.format = format;
+		this.blockRecords = blockRecords;
+		
+		if (format == SegmentFormat.PACK) {
+			buf = ByteBuffer.allocateDirect(Math.max(WRITE_BUF_RECORD_COUNT * RECORD_SIZE, maxBlockSize(blockRecords)));
+			
+			blockKmer = new long[blockRecords];
+			blockCount = new int[blockRecords];
+			
+			indexKmer = new long[DEFAULT_INDEX_SIZE];
+			indexOffset = new long[DEFAULT_INDEX_SIZE];
+			indexCount = new int[DEFAULT_INDEX_SIZE];
+			
+		} else {
+			buf = ByteBuffer.allocateDirect(WRITE_BUF_RECORD_COUNT * RECORD_SIZE);
+		}
+		
+		blockLength = 0;
+		blockTotal = 0;
+		fileSize = 0;
+		recordTotal = 0;
+		lastKmer = Long.MIN_VALUE;
+		closed = false;
+		
+		fos = new FileOutputStream(file);
+		fc = fos.getChannel();
+		
+		if (format == SegmentFormat.PACK) {
+			buf.putInt(PACK_MAGIC);
+			buf.putInt(PACK_VERSION);
+			buf.putInt(blockRecords);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get the largest size a coded <code>PACK</code> block can have.
+	 * 
+	 * @param blockRecords Number of records in the block.
+	 * 
+	 * @return Size of the block header and records in bytes.
+	 */
+	public static int maxBlockSize(int blockRecords) {
+		return PACK_BLOCK_HEADER_SIZE + blockRecords * MAX_PACKED_RECORD_SIZE;
+	}
+	
+	/**
+	 * Write records.
+	 * 
+	 * @param kmer Sorted k-mers.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param length Number of records to write.
+	 * 
+	 * @throws IOException If an IO error occurs while writing, or if the records
+	 *   of a <code>PACK</code> segment are not sorted.
+	 */
+	public void write(long[] kmer, int[] count, int length)
+			throws IOException {
+		
+		int size;
+		
+		if (format == SegmentFormat.SORT) {
+			for (int index = 0; index < length; ++index) {
+				if (buf.remaining() < RECORD_SIZE)
+					flush();
+				
+				buf.putLong(kmer[index]);
+				buf.putInt(count[index]);
+			}
+			
+			recordTotal += length;
+			
+			return;
+		}
+		
+		for (int index = 0; index < length; index += size) {
+			size = Math.min(length - index, blockRecords - blockLength);
+			
+			System.arraycopy(kmer, index, blockKmer, blockLength, size);
+			System.arraycopy(count, index, blockCount, blockLength, size);
+			blockLength += size;
+			
+			if (blockLength == blockRecords)
+				writeBlock();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Code the block being filled and add it to the index.
+	 * 
+	 * @throws IOException If an IO error occurs while writing or if the records
+	 *   are not sorted.
+	 */
+	private void writeBlock()
+			throws IOException {
+		
+		long prevKmer;
+		int payloadStart;
+		
+		if (blockLength == 0)
+			return;
+		
+		if (blockKmer[0] < lastKmer)
+			throw new IOException("Cannot write segment: Records are not sorted at record " + recordTotal);
+		
+		if (buf.remaining() < maxBlockSize(blockLength))
+			flush();
+		
+		// Index
+		if (blockTotal == indexKmer.length) {
+			long[] newKmer = new long[blockTotal * 2];
+			long[] newOffset = new long[blockTotal * 2];
+			int[] newCount = new int[blockTotal * 2];
+			
+			System.arraycopy(indexKmer, 0, newKmer, 0, blockTotal);
+			System.arraycopy(indexOffset, 0, newOffset, 0, blockTotal);
+			System.arraycopy(indexCount, 0, newCount, 0, blockTotal);
+			
+			indexKmer = newKmer;
+			indexOffset = newOffset;
+			indexCount = newCount;
+		}
+		
+		indexKmer[blockTotal] = blockKmer[0];
+		indexOffset[blockTotal] = fileSize + buf.position();
+		indexCount[blockTotal] = blockLength;
+		++blockTotal;
+		
+		// Header, payload size is set after the payload is coded
+		buf.putLong(blockKmer[0]);
+		buf.putInt(blockLength);
+		buf.putInt(0);
+		
+		payloadStart = buf.position();
+		prevKmer = blockKmer[0];
+		
+		for (int index = 0; index < blockLength; ++index) {
+			if (blockKmer[index] < prevKmer)
+				throw new IOException("Cannot write segment: Records are not sorted at record " + (recordTotal + index));
+			
+			putVarint(blockKmer[index] - prevKmer);
+			putVarint(blockCount[index] & 0xffffffffL);
+			
+			prevKmer = blockKmer[index];
+		}
+		
+		buf.putInt(payloadStart - 4, buf.position() - payloadStart);
+		
+		lastKmer = prevKmer;
+		recordTotal += blockLength;
+		blockLength = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Put a non-negative value as a varint (7 bits per byte, low bits first).
+	 * 
+	 * @param value Value to put.
+	 */
+	private void putVarint(long value) {
+		
+		while ((value & ~0x7fL) != 0) {
+			buf.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		
+		buf.put((byte) value);
+		
+		return;
+	}
+	
+	/**
+	 * Write the output buffer to the file.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	private void flush()
+			throws IOException {
+		
+		buf.flip();
+		fileSize += buf.remaining();
+		
+		while (buf.hasRemaining())
+			fc.write(buf);
+		
+		buf.clear();
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of records written.
+	 * 
+	 * @return Number of records written.
+	 */
+	public long getRecordCount() {
+		return recordTotal + blockLength;
+	}
+	
+	/**
+	 * Write the last block, the index, and the trailer, and close the file.
+	 * 
+	 * @throws IOException If an IO error occurs while writing.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		
+		long indexStart;
+		
+		if (closed)
+			return;
+		
+		closed = true;
+		
+		try {
+			if (format == SegmentFormat.PACK) {
+				writeBlock();
+				
+				indexStart = fileSize + buf.position();
+				
+				for (int block = 0; block < blockTotal; ++block) {
+					if (buf.remaining() < PACK_INDEX_ENTRY_SIZE)
+						flush();
+					
+					buf.putLong(indexKmer[block]);
+					buf.putLong(indexOffset[block]);
+					buf.putInt(indexCount[block]);
+				}
+				
+				if (buf.remaining() < PACK_TRAILER_SIZE)
+					flush();
+				
+				buf.putLong(indexStart);
+				buf.putLong(recordTotal);
+				buf.putInt(blockTotal);
+				buf.putInt(PACK_MAGIC);
+			}
+			
+			flush();
+			
+		} finally {
+			fos.close();
+		}
+		
+		return;
+	}
+}
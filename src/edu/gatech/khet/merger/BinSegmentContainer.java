@@ -0,0 +1,182 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.khet.merger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.sorter.KhetSorterRun;
+import edu.gatech.khet.sorter.KmerRotator;
+
+/**
+ * A segment container that reads a KAnalyze segment directly. Records are
+ * read one left flank block at a time, and the four middle base runs of
+ * each block are merged as they are loaded, so the container yields records
+ * in rotated order without a sorted copy of the segment on disk.
+ */
+class BinSegmentContainer extends SegmentContainer {
+
+	/** Initial size of the block buffers. */
+	private static final int DEFAULT_BLOCK_SIZE = 64;
+
+	/** Rotates k-mers. */
+	private final KmerRotator rotator;
+
+	/** Merges the middle base runs of a block. */
+	private final KhetSorterRun sorter;
+
+	/** K-mers of the current block. */
+	private long[] blockKmer;
+
+	/** Counts of the current block. */
+	private int[] blockCount;
+
+	/** Next record in the current block. */
+	private int blockIndex;
+
+	/** Number of records in the current block. */
+	private int blockLength;
+
+	/** <code>true</code> if <code>recordKmer</code> holds the first record of the next block. */
+	private boolean hasNext;
+
+	/** <code>true</code> after the first record was read. */
+	private boolean started;
+
+	/** Left flank of the last block. Blocks must be loaded in increasing order. */
+	private long lastFlank;
+
+	/**
+	 * Create a new container for a KAnalyze segment.
+	 *
+	 * @param segmentFile File to load.
+	 * @param bufRecordCount Number of records read from the file at a time.
+	 * @param kSize K-mer size.
+	 * @param ioPool Reads blocks ahead. If <code>null</code>, blocks are read when
+	 *   they are needed.
+	 *
+	 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
+	 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
+	 * @throws IOException If an IO error occurs while reading <code>segmentFile</code>.
+	 * @throws IllegalArgumentException If <code>kSize</code> is not a valid k-mer size.
+	 */
+	public BinSegmentContainer(SegmentFile segmentFile, int bufRecordCount, int kSize, ExecutorService ioPool)
+			throws NullPointerException, FileNotFoundException, SecurityException, IOException, IllegalArgumentException {
+
+		super(segmentFile, bufRecordCount, ioPool);
+
+		rotator = new KmerRotator(kSize);
+		sorter = new KhetSorterRun(rotator);
+
+		blockKmer = new long[DEFAULT_BLOCK_SIZE];
+		blockCount = new int[DEFAULT_BLOCK_SIZE];
+		blockIndex = 0;
+		blockLength = 0;
+
+		hasNext = false;
+		started = false;
+		lastFlank = -1;
+
+		return;
+	}
+
+	@Override
+	public boolean load()
+			throws IOException {
+
+		int size;
+
+		length = 0;
+		index = 0;
+
+		while (length < kmer.length) {
+
+			if (blockIndex == blockLength && ! loadBlock())
+				break;
+
+			size = Math.min(kmer.length - length, blockLength - blockIndex);
+
+			System.arraycopy(blockKmer, blockIndex, kmer, length, size);
+			System.arraycopy(blockCount, blockIndex, count, length, size);
+
+			blockIndex += size;
+			length += size;
+		}
+
+		return (length > 0);
+	}
+
+	/**
+	 * Read the next left flank block and merge its middle base runs.
+	 *
+	 * @return <code>true</code> if a block was loaded, and <code>false</code> if the
+	 *   segment is depleted.
+	 *
+	 * @throws IOException If an IO error occurs or if the segment is not in KAnalyze order.
+	 */
+	private boolean loadBlock()
+			throws IOException {
+
+		long flank;
+
+		blockIndex = 0;
+		blockLength = 0;
+
+		// Read ahead after the range of the container is set
+		if (! started) {
+			hasNext = readRecord();
+			started = true;
+		}
+
+		if (! hasNext)
+			return false;
+
+		flank = rotator.leftFlank(recordKmer);
+
+		if (flank <= lastFlank)
+			throw new IOException("Segment is not in KAnalyze order: " + file.getName());
+
+		lastFlank = flank;
+
+		do {
+			if (blockLength == blockKmer.length) {
+				long[] newKmer = new long[blockLength * 2];
+				int[] newCount = new int[blockLength * 2];
+
+				System.arraycopy(blockKmer, 0, newKmer, 0, blockLength);
+				System.arraycopy(blockCount, 0, newCount, 0, blockLength);
+
+				blockKmer = newKmer;
+				blockCount = newCount;
+			}
+
+			blockKmer[blockLength] = recordKmer;
+			blockCount[blockLength] = recordCount;
+			++blockLength;
+
+			hasNext = readRecord();
+
+		} while (hasNext && rotator.leftFlank(recordKmer) == flank);
+
+		blockLength = sorter.sort(blockKmer, blockCount, blockLength);
+
+		return true;
+	}
+}
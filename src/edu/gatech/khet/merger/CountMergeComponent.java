@@ -20,20 +20,39 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import edu.gatech.kanalyze.util.CounterPair;
+import edu.gatech.kanalyze.util.KmerBatch;
+import edu.gatech.kanalyze.util.KmerBatchPool;
+import edu.gatech.kanalyze.util.KmerUtil;
 import edu.gatech.khet.Constants;
 import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.sorter.KmerRotator;
 
 /**
  * Merges files written by <code>MCountSplitComponent</code>.
+ * <p/>
+ * With more than one merge thread, the k-mer space is split into ranges at left
+ * flank boundaries sampled from the segments. Each range is merged on its own
+ * thread, and the ranges are sent to the count queue in order in batches of the
+ * same size the single-threaded merge writes. Each range opens every segment of
+ * the final merge, so the <code>MergePlanner</code> limits the fan-in to the share
+ * of the merge memory and open files of one merge thread.
+ * <p/>
+ * If filter properties are set, merged k-mers are grouped by flank and only
+ * groups that pass the <code>FlankFilter</code> are sent to the count queue. Passing
+ * groups with more than two alleles can also be written to a <code>FlankReport</code>.
  */
 public class CountMergeComponent implements Runnable {
 	
@@ -41,85 +60,372 @@ public class CountMergeComponent implements Runnable {
 	private LinkedBlockingQueue<SegmentFile> segmentQueue;
 	
 	/** Queue of output k-mer counts. */
-	private LinkedBlockingQueue<CounterPair[]> countQueue;
+	private LinkedBlockingQueue<KmerBatch> countQueue;
 	
-	/** Size of write buffer. */
+	/** Pool of batches written to <code>countQueue</code>. */
+	private final KmerBatchPool batchPool;
+	
+	/** Number of records read from a segment file at a time. */
 	private int bufRecordCount;
 	
+	/** Number of threads reading segment files ahead of the merge. */
+	private int ioThreads;
+	
+	/** Number of bytes the segment buffers of all concurrent merges may use. */
+	private long mergeMemory;
+	
+	/** Maximum number of segments merged at once. */
+	private int maxFanIn;
+	
+	/** Maximum number of segment files open in all concurrent merges. */
+	private int maxOpenFiles;
+	
+	/** Time in nanoseconds the merge waited for segment files to be read. */
+	private long stallTime;
+	
+	/** Reads segment files ahead of the merge while it runs, or <code>null</code>. */
+	private ExecutorService ioPool;
+	
+	/** How sorted segments are read. */
+	private SegmentReadMode readMode;
+	
+	/** Memory-map sorted segments while the merge runs. */
+	private boolean mapSegments;
+	
+	/** Layout of intermediate runs. */
+	private SegmentFormat segmentFormat;
+	
+	/** Selects the flank groups written to the count queue, or <code>null</code> to write all k-mers. */
+	private final FlankFilter filter;
+	
+	/** Reports passing flank groups with more than two alleles, or <code>null</code>. */
+	private FlankReport report;
+	
+	/** Set when an error stopped the merge or the report. */
+	private volatile boolean failed;
+	
+	/** Number of flank groups written to the report, or -1 if no report was written. */
+	private long reportCount;
+	
+	/** Number of flank groups the filter checked. */
+	private long flankCount;
+	
+	/** Number of flank groups that passed the filter. */
+	private long passCount;
+	
+	/** Number of flank groups with more than two alleles. */
+	private long multiAllelicCount;
+	
 	/** Number of k-mers written. */
 	private long kmerCount;
 	
-	/** Default number of records that are written to disk in a block. */
+	/** K-mer size. */
+	private final int kSize;
+	
+	/** Number of threads merging ranges of k-mers. */
+	private int mergeThreads;
+	
+	/** Default number of records that are read from a segment file in a block. */
 	public static final int DEFAULT_BUF_RECORD_COUNT = 5000;
 	
+	/** Default number of threads reading segment files ahead of the merge. */
+	public static final int DEFAULT_IO_THREADS = 2;
+	
+	/** Default number of merge threads. */
+	public static final int DEFAULT_MERGE_THREADS = 1;
+	
+	/** Default maximum number of segments merged at once. */
+	public static final int DEFAULT_MAX_FAN_IN = 256;
+	
+	/** Default maximum number of segment files open in all concurrent merges. */
+	public static final int DEFAULT_MAX_OPEN_FILES = 512;
+	
+	/** Default way sorted segments are read. */
+	public static final SegmentReadMode DEFAULT_READ_MODE = SegmentReadMode.AUTO;
+	
+	/** Default layout of sorted segments and intermediate runs. */
+	public static final SegmentFormat DEFAULT_SEGMENT_FORMAT = SegmentFormat.SORT;
+	
+	/** Number of k-mers sampled from the segments for each range. */
+	public static final int SAMPLES_PER_RANGE = 64;
+	
 	/** Property: Remove segment files. */
 	public static final String PROP_DELETE_SEGMENT_FILES = "comp.count.deltemp";
 	
+	/** Property: Number of merge threads. */
+	public static final String PROP_MERGE_THREADS = "comp.count.threads";
+	
+	/** Property: Number of records read from a segment file at a time. */
+	public static final String PROP_BUF_RECORD_COUNT = "comp.count.bufsize";
+	
+	/** Property: Number of threads reading segment files ahead of the merge. If 0, files are read by the merge threads. */
+	public static final String PROP_IO_THREADS = "comp.count.iothreads";
+	
+	/** Property: Number of bytes the segment buffers of all concurrent merges may use. Default is a quarter of the maximum heap size. */
+	public static final String PROP_MERGE_MEMORY = "comp.count.mergemem";
+	
+	/** Property: Maximum number of segments merged at once. */
+	public static final String PROP_MAX_FAN_IN = "comp.count.fanin";
+	
+	/** Property: Maximum number of segment files open in all concurrent merges. Must be at least twice the number of merge threads. */
+	public static final String PROP_MAX_OPEN_FILES = "comp.count.maxopen";
+	
+	/** Property: How sorted segments are read ("auto", "map", or "stream"). */
+	public static final String PROP_READ_MODE = "comp.count.readmode";
+	
+	/** Property: Layout of sorted segments and intermediate runs ("sort" for raw records or "pack" for delta and varint coded blocks). */
+	public static final String PROP_SEGMENT_FORMAT = "comp.count.segformat";
+	
+	/**
+	 * Put on the count queue after the last batch. The reader of the count queue
+	 * must not recycle it.
+	 */
+	public static final KmerBatch END_OF_MERGE = new KmerBatch(1);
+	
+	/** Marks the end of the batches of a range. */
+	private static final KmerBatch END_OF_RANGE = new KmerBatch(1);
+	
 	private Boolean wf;
 
 	/**
 	 * 
 	 * @param segmentQueue Queue of files to read.
 	 * @param countQueue Queue of k-mer counts.
+	 * @param batchPool Pool of batches written to <code>countQueue</code>. The component
+	 *   that reads <code>countQueue</code> should recycle batches into this pool.
+	 * @param kSize K-mer size.
 	 * @param compProp Component properties. If <code>null</code>, properties are empty.
 	 * 
-	 * @throws NullPointerException If <code>segmentQueue</code> or <code>countQueue</code>
-	 *   is <code>null</code>.
-	 * @throws IllegalArgumentException If the <code>kSize</code> is not a valid k-mer size.
+	 * @throws NullPointerException If <code>segmentQueue</code>, <code>countQueue</code>, or
+	 *   <code>batchPool</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If the <code>kSize</code> is not a valid k-mer size or
+	 *   if an invalid option is found in <code>compProp</code>.
 	 */
-	public CountMergeComponent(LinkedBlockingQueue<SegmentFile> segmentQueue, LinkedBlockingQueue<CounterPair[]> countQueue, Properties compProp, Boolean wf)
+	public CountMergeComponent(LinkedBlockingQueue<SegmentFile> segmentQueue, LinkedBlockingQueue<KmerBatch> countQueue, KmerBatchPool batchPool, int kSize, Properties compProp, Boolean wf)
 			throws NullPointerException, IllegalArgumentException {
 		
+		String value; // Value buffer for processing properties
+		
 		if (segmentQueue == null)
 			throw new NullPointerException("Cannot create merge component: Segment queue is null");
 
 		if (countQueue == null)
 			throw new NullPointerException("Cannot create merge component: Count queue is null");
+		
+		if (batchPool == null)
+			throw new NullPointerException("Cannot create merge component: Batch pool is null");
+		
+		if (! KmerUtil.isValidSize(kSize))
+			throw new IllegalArgumentException("Cannot create merge component: K-mer size is not valid: " + kSize);
 	
 		this.segmentQueue = segmentQueue;
 		this.countQueue = countQueue;
+		this.batchPool = batchPool;
+		this.kSize = kSize;
+		
+		this.mergeThreads = DEFAULT_MERGE_THREADS;
+		this.ioThreads = DEFAULT_IO_THREADS;
+		this.mergeMemory = Runtime.getRuntime().maxMemory() / 4;
+		this.maxFanIn = DEFAULT_MAX_FAN_IN;
+		this.maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+		this.readMode = DEFAULT_READ_MODE;
+		
+		// Process properties
+		if (compProp == null)
+			compProp = new Properties();
+		
+		if ((value = compProp.getProperty(PROP_MERGE_THREADS)) != null) {
+			try {
+				mergeThreads = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of merge threads in properties (" + PROP_MERGE_THREADS + ") is not an integer: " + value);
+			}
+			
+			if (mergeThreads < 1)
+				throw new IllegalArgumentException("Number of merge threads in properties (" + PROP_MERGE_THREADS + ") is less than 1: " + mergeThreads);
+		}
 		
-		this.bufRecordCount = DEFAULT_BUF_RECORD_COUNT;
+		bufRecordCount = getBufRecordCount(compProp); // throws IllegalArgumentException
+		
+		if ((value = compProp.getProperty(PROP_IO_THREADS)) != null) {
+			try {
+				ioThreads = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of I/O threads in properties (" + PROP_IO_THREADS + ") is not an integer: " + value);
+			}
+			
+			if (ioThreads < 0)
+				throw new IllegalArgumentException("Number of I/O threads in properties (" + PROP_IO_THREADS + ") is negative: " + ioThreads);
+		}
+		
+		if ((value = compProp.getProperty(PROP_MERGE_MEMORY)) != null) {
+			try {
+				mergeMemory = Long.parseLong(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Merge memory in properties (" + PROP_MERGE_MEMORY + ") is not an integer: " + value);
+			}
+			
+			if (mergeMemory < 1)
+				throw new IllegalArgumentException("Merge memory in properties (" + PROP_MERGE_MEMORY + ") is less than 1: " + mergeMemory);
+		}
+		
+		if ((value = compProp.getProperty(PROP_MAX_FAN_IN)) != null) {
+			try {
+				maxFanIn = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Maximum fan-in in properties (" + PROP_MAX_FAN_IN + ") is not an integer: " + value);
+			}
+			
+			if (maxFanIn < 2)
+				throw new IllegalArgumentException("Maximum fan-in in properties (" + PROP_MAX_FAN_IN + ") is less than 2: " + maxFanIn);
+		}
+		
+		if ((value = compProp.getProperty(PROP_MAX_OPEN_FILES)) != null) {
+			try {
+				maxOpenFiles = Integer.parseInt(value.trim());
+				
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Maximum number of open files in properties (" + PROP_MAX_OPEN_FILES + ") is not an integer: " + value);
+			}
+		}
+		
+		// Every merge thread must be able to merge two segments
+		if (maxOpenFiles < 2 * mergeThreads)
+			throw new IllegalArgumentException("Maximum number of open files in properties (" + PROP_MAX_OPEN_FILES + ") is less than twice the number of merge threads (" + PROP_MERGE_THREADS + "): " + maxOpenFiles + " < " + (2 * mergeThreads));
+		
+		if ((value = compProp.getProperty(PROP_READ_MODE)) != null) {
+			readMode = SegmentReadMode.getMode(value.trim());
+			
+			if (readMode == null)
+				throw new IllegalArgumentException("Segment read mode in properties (" + PROP_READ_MODE + ") is not \"auto\", \"map\", or \"stream\": " + value);
+		}
+		
+		segmentFormat = getSegmentFormat(compProp); // throws IllegalArgumentException
+		
+		filter = FlankFilter.getFilter(compProp); // throws IllegalArgumentException
 		
 		this.wf=wf;
 
 		kmerCount = 0;
+		stallTime = 0;
+		failed = false;
 		
 		return;
 	}
 	
 	/**
-	 * Run this component.
+	 * Get the number of records read from a segment file at a time.
+	 * 
+	 * @param compProp Component properties. If <code>null</code>, the default is returned.
+	 * 
+	 * @return Number of records.
+	 * 
+	 * @throws IllegalArgumentException If the number in <code>compProp</code> is not an
+	 *   integer, or if a buffer of that many records does not fit in an array.
+	 */
+	public static int getBufRecordCount(Properties compProp)
+			throws IllegalArgumentException {
+		
+		int bufRecordCount;
+		String value;
+		
+		if (compProp == null || (value = compProp.getProperty(PROP_BUF_RECORD_COUNT)) == null)
+			return DEFAULT_BUF_RECORD_COUNT;
+		
+		try {
+			bufRecordCount = Integer.parseInt(value.trim());
+			
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Segment buffer size in properties (" + PROP_BUF_RECORD_COUNT + ") is not an integer: " + value);
+		}
+		
+		if (bufRecordCount < 1 || bufRecordCount > Integer.MAX_VALUE / SegmentContainer.RECORD_SIZE)
+			throw new IllegalArgumentException("Segment buffer size in properties (" + PROP_BUF_RECORD_COUNT + ") is not between 1 and " + (Integer.MAX_VALUE / SegmentContainer.RECORD_SIZE) + ": " + bufRecordCount);
+		
+		return bufRecordCount;
+	}
+	
+	/**
+	 * Get the layout sorted segments and intermediate runs are written in.
+	 * 
+	 * @param compProp Component properties. If <code>null</code>, the default is returned.
+	 * 
+	 * @return <code>SORT</code> or <code>PACK</code>.
+	 * 
+	 * @throws IllegalArgumentException If the format in <code>compProp</code> is not
+	 *   "sort" or "pack".
+	 */
+	public static SegmentFormat getSegmentFormat(Properties compProp)
+			throws IllegalArgumentException {
+		
+		SegmentFormat format;
+		String value;
+		
+		if (compProp == null || (value = compProp.getProperty(PROP_SEGMENT_FORMAT)) == null)
+			return DEFAULT_SEGMENT_FORMAT;
+		
+		format = SegmentFormat.getFormat(value);
+		
+		if (format != SegmentFormat.SORT && format != SegmentFormat.PACK)
+			throw new IllegalArgumentException("Segment format in properties (" + PROP_SEGMENT_FORMAT + ") is not \"sort\" or \"pack\": " + value);
+		
+		return format;
+	}
+	
+	/**
+	 * Run this component. <code>END_OF_MERGE</code> is put on the count queue after
+	 * the last batch, also if the merge failed. Check <code>isFailed()</code> after
+	 * the component is done.
 	 */
 	@Override
 	public void run() {
 		
+		try {
+			if (! merge())
+				failed = true;
+			
+		} finally {
+			putBatch(END_OF_MERGE);
+			
+			// Free memory for GC
+			countQueue = null;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Merge all segments to the count queue.
+	 * 
+	 * @return <code>true</code> if all segments were merged, and <code>false</code> if an
+	 *   error stopped the merge.
+	 */
+	private boolean merge() {
+		
 		kmerCount = 0;   // Run metrics
+		stallTime = 0;
+		flankCount = 0;
+		passCount = 0;
+		multiAllelicCount = 0;
+		report = null;
+		reportCount = -1;
+		long startTime;
 		
-		CounterPair[] batch; // Batch of k-mer counts
-		int batchIndex = 0;  // Current location of batch
-
 		SegmentFile segmentFile; // Segment file buffer
 		List<SegmentFile> segFileList;  // List of segment files
 		
-		long nextKmer; // Next k-mer to be counted (set while traversing - becomes curKmer in the next round)
-		long curKmer;  // K-mer currently being counted
-		int count;     // K-mer count
+		long[] splitters; // First k-mer of each range except the first
+		MergePlanner planner; // Merges segments into intermediate runs
 		
-		SegmentContainer rootContainer; // Root of linked list
-		SegmentContainer lastContainer; // Last container (for building list)
-		SegmentContainer nextContainer; // Next container
-
 		// Initialize
-		rootContainer = lastContainer = null;
-		batch = new CounterPair[Constants.DEFAULT_BATCH_SIZE];
-		nextKmer = 0; // Compile error if not initialized - Actual value set in the segment load loop
-		
 		segFileList = new ArrayList<SegmentFile>();
 		
-		// Load all segments before counting
+		// Get all segments before counting
 		if(segmentQueue.isEmpty()){System.out.println("sementqueue empty");}
-		LOAD_LOOP:
 		while (!segmentQueue.isEmpty()) {
 			
 			try {
@@ -130,231 +436,375 @@ public class CountMergeComponent implements Runnable {
 			}
 			
 			if (segmentFile == null)
-				break LOAD_LOOP;
+				break;
 			
-			// Get next container
-			try {
-				nextContainer = new SegmentContainer(segmentFile);
-				
-			} catch (FileNotFoundException ex) {
-				System.out.println("Segment file not found: " + segmentFile.file.getName() + ": " + ex.getMessage());
-				ex.printStackTrace();
-				return;
-				
-			} catch (IOException ex) {
-				System.out.println("IO error opening segment file: " + segmentFile.file.getName() + ": " + ex.getMessage());
-				ex.printStackTrace();
-				return;
+			segFileList.add(segmentFile);
+		}
+		
+		segmentQueue = null; // Free memory for GC
+		
+		// Map segments if the page cache can hold them
+		mapSegments = readMode.isMapped(segFileList);
+		
+		if (mapSegments)
+			System.out.println("merge reads mapped segments");
+		
+		// Start I/O threads
+		if (ioThreads > 0)
+			ioPool = Executors.newFixedThreadPool(ioThreads, new DaemonThreadFactory("khet_merge_io_"));
+		
+		startTime = System.currentTimeMillis();
+		
+		try {
+			
+			// Open the report before merging so a bad report file fails early
+			if (filter != null && filter.getReportFile() != null) {
+				try {
+					report = new FlankReport(new File(filter.getReportFile()), kSize);
+					
+				} catch (IOException ex) {
+					System.out.println("Cannot open flank report: " + filter.getReportFile() + ": " + ex.getMessage());
+					return false;
+				}
 			}
 			
-			// Store file in list
-			segFileList.add(segmentFile);
+			// Merge groups of segments until the final merge is within the fan-in
+			planner = new MergePlanner(kSize, bufRecordCount, mergeThreads, mergeMemory, Math.min(maxFanIn, maxOpenFiles / mergeThreads), ioPool, mapSegments, segmentFormat);
 			
-			// Do not add containers that contain no k-mers
 			try {
-				if (! nextContainer.load())
-					continue LOAD_LOOP;
+				segFileList = planner.reduce(segFileList);
 				
 			} catch (IOException ex) {
-				System.out.println("IO error loading data from segment file: " + segmentFile.file.getName() + ": " + ex.getMessage());
+				System.out.println("IO error merging intermediate runs: " + ex.getMessage());
 				ex.printStackTrace();
-				return;
+				return false;
+				
+			} finally {
+				stallTime = planner.getStallTime();
 			}
 			
-			assert (nextContainer.length > 0) :
-				"load() returned, but length is not greather than 0";
+			// Split k-mers into ranges
+			splitters = new long[0];
+			
+			if (mergeThreads > 1) {
+				try {
+					splitters = findSplitters(segFileList);
+					
+				} catch (IOException ex) {
+					System.out.println("IO error sampling segment files: " + ex.getMessage());
+					ex.printStackTrace();
+					return false;
+				}
+			}
 			
-			// Add container to the linked list and find the lowest nextKmer of all containers
-			if (rootContainer == null) {
-				// First container
-				rootContainer = lastContainer = nextContainer;
-				nextKmer = nextContainer.kmer[nextContainer.index];
+			// Merge
+			if (splitters.length == 0) {
+				
+				// One range: Batches go directly to the count queue
+				RangeMerger range = new RangeMerger(segFileList, 0, Long.MAX_VALUE, countQueue, false);
+				
+				range.run();
+				addRange(range);
+				
+				if (range.error != null)
+					return false;
 				
 			} else {
-				// Not first container: Update linked list
-				lastContainer.fwdLink = nextContainer;
-				nextContainer.revLink = lastContainer;
-				lastContainer = nextContainer;
 				
-				if (nextContainer.kmer[nextContainer.index] < nextKmer)
-					nextKmer = nextContainer.kmer[nextContainer.index];
+				if (! mergeRanges(segFileList, splitters))
+					return false;
 			}
+			
+		} finally {
+			if (ioPool != null)
+				ioPool.shutdown();
+			
+			ioPool = null;
+			
+			closeReport();
 		}
 		
-		segmentQueue = null; // Free memory for GC
+		System.out.println("merge I/O stall: " + (stallTime / 1000000) + " ms (merge time: " + (System.currentTimeMillis() - startTime) + " ms)");
 		
-		if (rootContainer == null)
-			return;
+		if (filter != null)
+			System.out.println("filter: " + passCount + " of " + flankCount + " flanks passed, " + multiAllelicCount + " flanks with more than two alleles");
 		
-		// Iterate while there are at least two containers in the list. If rootContainer is set
-		// to null while removing containers (which occurs when the last two containers are removed
-		// in the same iteration), the loop terminates without checking the loop condition to avoid
-		// null pointer exceptions without checking for (rootContainer == null) at ever iteration.
-		COUNT_LOOP:
-		while (rootContainer.fwdLink != null) {
-			nextContainer = rootContainer;
-			
-			curKmer = nextKmer;
-			nextKmer = Long.MAX_VALUE;
-			count = 0;
-			
-			// Iterate through all containers
-			while (nextContainer != null) {
-				
-				// If the next k-mer in the container is the next to be analyzed,
-				// update count and find next k-mer in container
-				if (nextContainer.kmer[nextContainer.index] == curKmer) {
-					count += nextContainer.count[nextContainer.index];
-					++nextContainer.index;
-					
-					// Check for end of buffer
-					if (nextContainer.index == nextContainer.length) {
-						
-						// Reload buffer
-						try {
-							if (! nextContainer.load()) {
-	
-								// No k-mers loaded - remove container
-								
-								if (nextContainer.fwdLink != null)
-									nextContainer.fwdLink.revLink = nextContainer.revLink;
-								
-								if (nextContainer.revLink != null)
-									nextContainer.revLink.fwdLink = nextContainer.fwdLink;
-								else
-									rootContainer = nextContainer.fwdLink;
-								
-								// Terminate if root container is now null
-								if (rootContainer == null) {
-									
-									batch[batchIndex++] = new CounterPair(curKmer, count);
-									kmerCount += count;
-									
-									// Since there are no more k-mer counts to write, do not check for a full
-									// batch and output. Let the logic at the end of this method check and write
-									
-									break COUNT_LOOP;
-								}
-								
-							} else {
-								if (nextContainer.kmer[nextContainer.index] < nextKmer)
-									nextKmer = nextContainer.kmer[nextContainer.index];
-							}
-							
-						} catch (IOException ex) {
-							System.out.println("IO error loading data from segment file: " + nextContainer.file.getName() + ": " + ex.getMessage());
-							ex.printStackTrace();
-							return;
-						}
-						
-					} else {
-						if (nextContainer.kmer[nextContainer.index] < nextKmer)
-							nextKmer = nextContainer.kmer[nextContainer.index];
-					}
+		if (reportCount >= 0)
+			System.out.println("filter: " + reportCount + " flanks with more than two alleles passed, reported to " + filter.getReportFile());
+		
+		// Remove segment files
+		for (SegmentFile segFile : segFileList) {
+			
+			if (segFile.autoDelete) {
+				try {
+					segFile.file.delete();
 					
-				} else {
-					if (nextContainer.kmer[nextContainer.index] < nextKmer)
-						nextKmer = nextContainer.kmer[nextContainer.index];
+				} catch (SecurityException ex) {
+					// Ignore - best effort delete
 				}
-				
-				nextContainer = nextContainer.fwdLink;
 			}
+		}
+		
+		wf = true;
+		return true;
+	}
+	
+	/**
+	 * Merge ranges of k-mers in parallel and write them to the count queue in order.
+	 * 
+	 * @param segFileList Segment files.
+	 * @param splitters First k-mer of each range except the first.
+	 * 
+	 * @return <code>true</code> if all ranges were merged.
+	 */
+	private boolean mergeRanges(List<SegmentFile> segFileList, long[] splitters) {
+		
+		RangeMerger[] ranges = new RangeMerger[splitters.length + 1];
+		Thread[] threads = new Thread[ranges.length];
+		
+		KmerBatch batch;      // Batch of k-mer counts
+		KmerBatch rangeBatch; // Batch of a range
+		int rangeIndex;       // Next record of rangeBatch to copy
+		int size;             // Number of records to copy
+		
+		boolean success = true;
+		
+		System.out.println("merge " + segFileList.size() + " segments in " + ranges.length + " ranges");
+		
+		// Start ranges
+		for (int index = 0; index < ranges.length; ++index) {
+			ranges[index] = new RangeMerger(
+					segFileList,
+					(index == 0) ? 0 : splitters[index - 1],
+					(index == splitters.length) ? Long.MAX_VALUE : splitters[index],
+					new LinkedBlockingQueue<KmerBatch>(Constants.DEFAULT_QUEUE_SIZE),
+					true
+			);
 			
-			// Write count to batch
-			batch[batchIndex++] = new CounterPair(curKmer, count);
-			kmerCount += count;
-			
-			// Send full batches to the queue
-			if (batchIndex == batch.length) {
-				putBatch(batch);
-				
-				batch = new CounterPair[Constants.DEFAULT_BATCH_SIZE];
-				batchIndex = 0;
-			}
+			threads[index] = new Thread(ranges[index]);
+			threads[index].setDaemon(true);
+			threads[index].setName("khet_merge_" + index);
+			threads[index].start();
 		}
 		
-		// If there is one container left, iterate over it
-		if (rootContainer != null) {
-			nextContainer = rootContainer;
+		// Collect ranges in order and rebatch so batch boundaries match a single-threaded merge
+		batch = batchPool.get();
+		
+		RANGE_LOOP:
+		for (RangeMerger range : ranges) {
 			
-			FINAL_LOOP:
 			while (true) {
-				// Write count to batch
-				batch[batchIndex++] = new CounterPair(nextContainer.kmer[nextContainer.index], nextContainer.count[nextContainer.index]);
-				kmerCount += nextContainer.count[nextContainer.index];
-				++nextContainer.index;
-				
-				// Send full batches to the queue
-				if (batchIndex == batch.length) {
-					putBatch(batch);
+				try {
+					rangeBatch = range.queue.take();
 					
-					batch = new CounterPair[Constants.DEFAULT_BATCH_SIZE];
-					batchIndex = 0;
+				} catch (InterruptedException ex) {
+					continue;
 				}
-
-				// Load
-				if (nextContainer.index == nextContainer.length) {
+				
+				if (rangeBatch == END_OF_RANGE)
+					break;
+				
+				// Pass full batches through if the output batch is empty. Filtered batches
+				// end at flank boundaries and are always passed through so no flank is split.
+				if (batch.length == 0 && (rangeBatch.isFull() || filter != null)) {
+					putBatch(rangeBatch);
+					continue;
+				}
+				
+				rangeIndex = 0;
+				
+				while (rangeIndex < rangeBatch.length) {
+					size = Math.min(batch.capacity() - batch.length, rangeBatch.length - rangeIndex);
 					
-					// Terminate loop when load fails
-					try {
-						if (! rootContainer.load())
-							break FINAL_LOOP;
-						
-					} catch (IOException ex) {
-						System.out.println("IO error loading data from segment file: " + rootContainer.file.getName() + ": " + ex.getMessage());
-						ex.printStackTrace();
-						return;
+					System.arraycopy(rangeBatch.kmer, rangeIndex, batch.kmer, batch.length, size);
+					System.arraycopy(rangeBatch.count, rangeIndex, batch.count, batch.length, size);
+					
+					rangeIndex += size;
+					batch.length += size;
+					
+					if (batch.isFull()) {
+						putBatch(batch);
+						batch = batchPool.get();
 					}
 				}
+				
+				batchPool.recycle(rangeBatch);
+			}
+			
+			if (range.error != null) {
+				success = false;
+				break RANGE_LOOP;
+			}
+			
+			addRange(range);
+		}
+		
+		// Stop ranges that are still running
+		for (int index = 0; index < ranges.length; ++index) {
+			if (! success)
+				threads[index].interrupt();
+			
+			try {
+				threads[index].join();
+				
+			} catch (InterruptedException ex) {
+				// Ignore
 			}
 		}
 		
-		// Free memory for GC
-		rootContainer = null;
+		if (! success)
+			return false;
 		
 		// Write final batch.
-		if (batchIndex > 0) {
+		if (batch.length > 0)
+			putBatch(batch);
+		else
+			batchPool.recycle(batch);
+		
+		return true;
+	}
+	
+	/**
+	 * Add the metrics of a merged range.
+	 * 
+	 * @param range Merged range.
+	 */
+	private void addRange(RangeMerger range) {
+		
+		kmerCount += range.kmerCount;
+		stallTime += range.stallTime;
+		
+		flankCount += range.flankCount;
+		passCount += range.passCount;
+		multiAllelicCount += range.multiAllelicCount;
+		
+		return;
+	}
+	
+	/**
+	 * Choose the first k-mer of each merge range. K-mers are sampled evenly across
+	 * all records of all segments, and each splitter is rounded down to a left flank
+	 * boundary. <code>PACK</code> segments are sampled at the first k-mer of the block
+	 * holding the record. Ranges of <code>BIN</code> segments can only be found at those
+	 * boundaries, and all alleles of a flank stay in one range.
+	 * 
+	 * @param segFileList Segment files.
+	 * 
+	 * @return Increasing array of splitters, none of them 0. The array is
+	 *   empty if the k-mers cannot be split.
+	 * 
+	 * @throws IOException If an IO error occurs while reading segments.
+	 */
+	private long[] findSplitters(List<SegmentFile> segFileList)
+			throws IOException {
+		
+		KmerRotator rotator = new KmerRotator(kSize);
+		ByteBuffer keyBuf = ByteBuffer.allocate(Long.SIZE / 8);
+		
+		long[] recordCount = new long[segFileList.size()];
+		PackedSegmentContainer.PackIndex[] packIndex = new PackedSegmentContainer.PackIndex[segFileList.size()];
+		long totalRecords = 0;
+		
+		long[] samples;
+		int sampleCount;
+		
+		long[] splitters;
+		int splitterCount;
+		long splitter;
+		
+		for (int index = 0; index < recordCount.length; ++index) {
+			SegmentFile segFile = segFileList.get(index);
 			
-			// Create a shorter array if batch is not full (do not write array with null counts)
-			if (batchIndex < batch.length) {
-				CounterPair[] newBatch = new CounterPair[batchIndex];
+			if (segFile.format == SegmentFormat.PACK) {
+				try (FileInputStream fis = new FileInputStream(segFile.file)) {
+					packIndex[index] = PackedSegmentContainer.readIndex(fis.getChannel(), segFile);
+				}
 				
-				for (int index = 0; index < batchIndex; ++index)
-					newBatch[index] = batch[index];
+				recordCount[index] = packIndex[index].recordCount;
 				
-				batch = newBatch;
+			} else {
+				recordCount[index] = segFile.file.length() / SegmentContainer.RECORD_SIZE;
 			}
 			
-			putBatch(batch);
+			totalRecords += recordCount[index];
 		}
 		
-		// Free memory for GC
-		batch = null;
-		countQueue = null;
+		sampleCount = (int) Math.min(totalRecords, (long) mergeThreads * SAMPLES_PER_RANGE);
 		
-		// Remove segment files
-		for (SegmentFile segFile : segFileList) {
-			
-			if (segFile.autoDelete) {
-				try {
-					segFile.file.delete();
+		if (sampleCount < mergeThreads)
+			return new long[0];
+		
+		// Sample evenly over all records of all segments
+		samples = new long[sampleCount];
+		
+		int fileIndex = 0;
+		long fileStart = 0; // Index of the first record of fileIndex over all segments
+		FileInputStream fis = null;
+		
+		try {
+			for (int sample = 0; sample < sampleCount; ++sample) {
+				long record = sample * totalRecords / sampleCount;
+				
+				while (record >= fileStart + recordCount[fileIndex]) {
+					fileStart += recordCount[fileIndex];
+					++fileIndex;
 					
-				} catch (SecurityException ex) {
-					// Ignore - best effort delete
+					if (fis != null) {
+						fis.close();
+						fis = null;
+					}
+				}
+				
+				if (packIndex[fileIndex] != null) {
+					samples[sample] = packIndex[fileIndex].getBlockKmer(record - fileStart);
+					continue;
 				}
+				
+				if (fis == null)
+					fis = new FileInputStream(segFileList.get(fileIndex).file);
+				
+				samples[sample] = SegmentContainer.readKmer(fis.getChannel(), record - fileStart, keyBuf);
 			}
+			
+		} finally {
+			if (fis != null)
+				fis.close();
 		}
 		
-		wf = true;
-		return;
+		Arrays.sort(samples);
+		
+		// Pick quantiles at left flank boundaries
+		splitters = new long[mergeThreads - 1];
+		splitterCount = 0;
+		
+		for (int range = 1; range < mergeThreads; ++range) {
+			splitter = rotator.leftFlank(samples[range * sampleCount / mergeThreads]);
+			
+			if (splitter > 0 && (splitterCount == 0 || splitter > splitters[splitterCount - 1]))
+				splitters[splitterCount++] = splitter;
+		}
+		
+		return Arrays.copyOf(splitters, splitterCount);
 	}
 	
 	/**
-	 * Write batch reliably.
+	 * Write batch reliably. Batches are written to the report first. They are put on
+	 * the count queue in merge order by this thread, so the report is in merge order.
 	 * 
 	 * @param batch Batch to write.
 	 */
-	private void putBatch(CounterPair[] batch) {
+	private void putBatch(KmerBatch batch) {
+		
+		if (report != null && batch != END_OF_MERGE) {
+			try {
+				report.write(batch);
+				
+			} catch (IOException ex) {
+				System.out.println("IO error writing flank report: " + report.file.getName() + ": " + ex.getMessage());
+				
+				deleteReport();
+			}
+		}
 		
 		while (true) {
 			try {
@@ -362,14 +812,69 @@ public class CountMergeComponent implements Runnable {
 				break;
 				
 			} catch (InterruptedException ex) {
-				if (!segmentQueue.isEmpty())
-					return;
+				// Try again
 			}
 		}
 		
 		return;
 	}
 	
+	/**
+	 * Close the report if it is open.
+	 */
+	private void closeReport() {
+		
+		if (report == null)
+			return;
+		
+		try {
+			report.close();
+			reportCount = report.getGroupCount();
+			report = null;
+			
+		} catch (IOException ex) {
+			System.out.println("IO error closing flank report: " + report.file.getName() + ": " + ex.getMessage());
+			
+			deleteReport();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Stop writing the report after an error and delete it, so no partial report is left.
+	 */
+	private void deleteReport() {
+		
+		File file = report.file;
+		
+		try {
+			report.close();
+			
+		} catch (IOException ex) {
+			// Deleted below
+		}
+		
+		report = null;
+		reportCount = -1;
+		failed = true;
+		
+		if (! file.delete())
+			System.out.println("Cannot delete partial flank report: " + file.getName());
+		
+		return;
+	}
+	
+	/**
+	 * Determine if an error stopped the merge or the flank report. Output written
+	 * from the count queue is then incomplete.
+	 * 
+	 * @return <code>true</code> if an error occurred.
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+	
 	/**
 	 * Get the number of k-mers written.
 	 * 
@@ -379,169 +884,294 @@ public class CountMergeComponent implements Runnable {
 		return kmerCount;
 	}
 	
+	/**
+	 * Get the time the merge waited for segment files to be read. If ranges are
+	 * merged in parallel, this is the sum over all merge threads.
+	 * 
+	 * @return Time in milliseconds.
+	 */
+	public long getStallTime() {
+		return stallTime / 1000000;
+	}
+	
 	public synchronized Boolean getFlag() {	
 		return this.wf;
 	}
 	
 	/**
-	 * A container class that manages buffers from each on-disk segment of sorted
-	 * k-mers. This class has a public buffer and buffer index which is refreshed
-	 * with the next set of k-mers from the <code>load()</code> method.
+	 * Merges one range of k-mers from all segments.
 	 */
-	private class SegmentContainer {
+	private class RangeMerger implements Runnable {
 		
-		/** k-mer buffer this segment container loads. */
-		public long[] kmer;
+		/** Segment files. */
+		private final List<SegmentFile> segFileList;
 		
-		/** k-mer counts where each count[n] is the count of kmer[n]. */
-		public int[] count;
+		/** Lowest k-mer in the range (inclusive). */
+		private final long fromKmer;
 		
-		/** Index of the current index of <code>buffer</code>. */
-		public int index;
+		/** Highest k-mer in the range (exclusive). */
+		private final long toKmer;
 		
-		/** Number of elements loaded in kmer[] and count[]. */
-		public int length;
+		/** Queue batches are written to. */
+		public final LinkedBlockingQueue<KmerBatch> queue;
 		
-		/** File this container loads. */
-		public final File file;
+		/** Write <code>END_OF_RANGE</code> to the queue when done. */
+		private final boolean endMarker;
 		
-		/** Points to the next segment container in a queue. */
-		public SegmentContainer fwdLink;
+		/** Sum of the counts written. */
+		public long kmerCount;
 		
-		/** Points to the last segment container in a queue. */
-		public SegmentContainer revLink;
+		/** Time in nanoseconds this range waited for segment files to be read. */
+		public long stallTime;
 		
-		/** Input stream of the on-disk segment this container loads. */
-		private FileInputStream fis;
+		/** Error that stopped the merge, or <code>null</code>. */
+		public volatile Exception error;
 		
-		/** File channel for block I/O on <code>fis</code>. */
-		private FileChannel fcin;
+		/** K-mers of the current flank group. */
+		private final long[] groupKmer;
+		
+		/** Counts of the current flank group. */
+		private final int[] groupCount;
+		
+		/** Number of k-mers in the current flank group. */
+		private int groupLength;
+		
+		/** Number of flank groups the filter checked. */
+		public long flankCount;
+		
+		/** Number of flank groups that passed the filter. */
+		public long passCount;
+		
+		/** Number of flank groups with more than two alleles. */
+		public long multiAllelicCount;
 		
-		/** Buffer for file I/O. */
-		private ByteBuffer buf;
-
-
 		/**
-		 * Create a new segment container.
-		 * <p/>
-		 * The initial buffers will be empty. To load the first set of k-mers, call <code>load()</code>
-		 * before reading from the buffers. <code>length</code> will be set to 0 when this constructor
-		 * returns.
-		 * 
-		 * @param segmentFile File to load.
+		 * Create a new range merger.
 		 * 
-		 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
-		 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
-		 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
-		 * @throws IOException If an IO error occurs while reading <code>segmentFile</code>.
+		 * @param segFileList Segment files.
+		 * @param fromKmer Lowest k-mer in the range (inclusive).
+		 * @param toKmer Highest k-mer in the range (exclusive), or <code>Long.MAX_VALUE</code>.
+		 * @param queue Queue batches are written to.
+		 * @param endMarker Write <code>END_OF_RANGE</code> to the queue when done.
 		 */
-		public SegmentContainer(SegmentFile segmentFile)
-				throws NullPointerException, FileNotFoundException, SecurityException, IOException {
+		public RangeMerger(List<SegmentFile> segFileList, long fromKmer, long toKmer, LinkedBlockingQueue<KmerBatch> queue, boolean endMarker) {
+			this.segFileList = segFileList;
+			this.fromKmer = fromKmer;
+			this.toKmer = toKmer;
+			this.queue = queue;
+			this.endMarker = endMarker;
 			
-			// Check arguments
-			if (segmentFile == null)
-				throw new NullPointerException("Cannot create segment container for input file: null");
-			
-			// Open input stream
-			fis = new FileInputStream(segmentFile.file); // throws FileNotFoundException, SecurityException
-			fcin = fis.getChannel();
-			this.file = segmentFile.file;
-			
-			// Allocate buffer
-			buf = ByteBuffer.allocateDirect(bufRecordCount * (Long.SIZE + Integer.SIZE) / 8);
-			buf.clear();
-			buf.flip();
+			kmerCount = 0;
+			stallTime = 0;
+			error = null;
 			
-			// Create structures
-			kmer = new long[Constants.DEFAULT_BATCH_SIZE];
-			count = new int[Constants.DEFAULT_BATCH_SIZE];
-			index = 0;
-			length = 0;
+			groupKmer = new long[FlankFilter.MAX_GROUP_SIZE];
+			groupCount = new int[FlankFilter.MAX_GROUP_SIZE];
+			groupLength = 0;
 			
-			fwdLink = null;
-			revLink = null;
+			flankCount = 0;
+			passCount = 0;
+			multiAllelicCount = 0;
 			
 			return;
 		}
-
+		
 		/**
-		 * Loads the next set of k-mers into the buffer. If the segment is already
-		 * depleted, this method has no effect (<code>false</code> is automatically
-		 * returned).
-		 * 
-		 * @return <code>true</code> if at least one k-mer and count was written to the
-		 *   buffers kmer[] and count[]. If <code>false</code>, no k-mers were loaded.
-		 * 
-		 * @throws IOException If an IO error occurs while reading k-mers.
+		 * Merge the range.
 		 */
-		public boolean load()
-				throws IOException {
+		@Override
+		public void run() {
 			
-			length = 0; // Length is used as the index for loading kmer[] and count[] (loading sets length)
-			index = 0;  // Reset object index
-
-			if (fis == null) // fis == null is the flag for a depleted segment
-				return false;
-
-			// Read k-mer counts until EOF or buffer is full
-			while (length < kmer.length) {
-
-				// Check buffer
-				if (! buf.hasRemaining()) {
-
-					// Buffer is empty: Read from file
-					buf.clear();
+			KmerBatch batch; // Batch of k-mer counts
+			
+			List<SegmentContainer> containerList; // Loaded containers
+			List<SegmentContainer> openList;      // All containers (loaded or not)
+			SegmentContainer nextContainer;       // Next container
+			SegmentMerger merger;                 // Merges containers
+			int copied;                           // Number of k-mers the merger added to batch
+			
+			// Initialize
+			batch = batchPool.get();
+			containerList = new ArrayList<SegmentContainer>();
+			openList = new ArrayList<SegmentContainer>();
+			
+			try {
+				
+				// Load all segments before counting
+				for (SegmentFile segmentFile : segFileList) {
+					
+					// Get next container
+					try {
+						nextContainer = SegmentContainer.open(segmentFile, bufRecordCount, kSize, ioPool, mapSegments, fromKmer, toKmer);
+						
+					} catch (FileNotFoundException ex) {
+						System.out.println("Segment file not found: " + segmentFile.file.getName() + ": " + ex.getMessage());
+						throw ex;
+						
+					} catch (IOException ex) {
+						System.out.println("IO error opening segment file: " + segmentFile.file.getName() + ": " + ex.getMessage());
+						throw ex;
+					}
+					
+					openList.add(nextContainer);
 					
-					if (fcin.read(buf) == -1) {
+					// Do not add containers that contain no k-mers
+					try {
+						if (! nextContainer.load())
+							continue;
+						
+					} catch (IOException ex) {
+						System.out.println("IO error loading data from segment file: " + segmentFile.file.getName() + ": " + ex.getMessage());
+						throw ex;
+					}
+					
+					assert (nextContainer.length > 0) :
+						"load() returned, but length is not greather than 0";
+					
+					containerList.add(nextContainer);
+				}
+				
+				// Merge all containers
+				if (! containerList.isEmpty()) {
+					merger = new SegmentMerger(containerList);
+					containerList = null;
+					
+					try {
+						
+						// Write counts to batch. Stretches of one segment are copied in bulk.
+						while (filter == null && (copied = merger.next(batch.kmer, batch.count, batch.length, batch.capacity() - batch.length)) > 0) {
+							
+							for (int index = batch.length; index < batch.length + copied; ++index)
+								kmerCount += batch.count[index];
+							
+							batch.length += copied;
+							
+							// Send full batches to the queue
+							if (batch.isFull()) {
+								put(batch);
+								batch = batchPool.get();
+							}
+						}
 						
-						// Nothing left to read from file.
-						close();
-						return (length > 0);
+						while (filter != null && merger.next()) {
+							
+							// Collect flank groups (k-mers that differ only by the middle base)
+							if (groupLength > 0 && (merger.kmer >> 2) != (groupKmer[0] >> 2))
+								batch = writeGroup(batch);
+							
+							groupKmer[groupLength] = merger.kmer;
+							groupCount[groupLength] = merger.count;
+							++groupLength;
+						}
+						
+						if (groupLength > 0)
+							batch = writeGroup(batch);
+						
+					} catch (IOException ex) {
+						System.out.println(ex.getMessage());
+						throw ex;
 					}
 					
-					buf.flip();
+					// Free memory for GC
+					merger = null;
 				}
 				
-				kmer[length] = buf.getLong();
-				count[length] = buf.getInt();
+				// Write final batch. Its length marks the end of the counts.
+				if (batch.length > 0) {
+					put(batch);
+					batch = null;
+				}
+				
+			} catch (IOException | InterruptedException ex) {
+				if (! (ex instanceof InterruptedException || ex instanceof InterruptedIOException))
+					ex.printStackTrace();
 				
-				++length;
+				error = ex;
 			}
-
-			return true;
+			
+			for (SegmentContainer container : openList)
+				stallTime += container.stallTime;
+			
+			if (batch != null)
+				batchPool.recycle(batch);
+			
+			batch = null;
+			
+			if (endMarker) {
+				
+				// Range queues are only abandoned after an error, make room for the marker
+				if (error != null)
+					queue.clear();
+				
+				while (true) {
+					try {
+						queue.put(END_OF_RANGE);
+						break;
+						
+					} catch (InterruptedException ex) {
+						queue.clear();
+					}
+				}
+			}
+			
+			return;
 		}
 		
 		/**
-		 * Close the input file.
+		 * Check the current flank group with the filter and add it to the batch if
+		 * it passes. A group is never split over two batches.
+		 * 
+		 * @param batch Batch to add the group to.
 		 * 
-		 * @throws IOException If an IO error occurs while closing.
+		 * @return Batch to add the next group to.
+		 * 
+		 * @throws InterruptedException If interrupted after the merge was stopped.
 		 */
-		private void close()
-				throws IOException {
+		private KmerBatch writeGroup(KmerBatch batch)
+				throws InterruptedException {
 			
-			if (fis != null) {
-				fis.close(); // throws IOException
-
-				buf = null;
-				fis = null;
+			++flankCount;
+			
+			if (groupLength > 2)
+				++multiAllelicCount;
+			
+			if (filter.accept(groupCount, groupLength)) {
+				++passCount;
+				
+				if (batch.capacity() - batch.length < groupLength) {
+					put(batch);
+					batch = batchPool.get();
+				}
+				
+				for (int index = 0; index < groupLength; ++index) {
+					batch.add(groupKmer[index], groupCount[index]);
+					kmerCount += groupCount[index];
+				}
 			}
 			
-			return;
+			groupLength = 0;
+			
+			return batch;
 		}
 		
 		/**
-		 * Close the input file.
+		 * Write a batch to the queue.
+		 * 
+		 * @param batch Batch to write.
+		 * 
+		 * @throws InterruptedException If interrupted after the merge was stopped.
 		 */
-		@Override
-		public void finalize() {
-			try {
-				close();
-				
-			} catch (Exception ex) {
-				; // Ignore
+		private void put(KmerBatch batch)
+				throws InterruptedException {
+			
+			if (! endMarker) {
+				putBatch(batch);
+				return;
 			}
+			
+			queue.put(batch);
+			
+			return;
 		}
 	}
-
-
 }
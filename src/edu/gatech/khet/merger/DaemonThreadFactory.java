@@ -0,0 +1,61 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+package edu.gatech.khet.merger;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates named daemon threads for thread pools.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	/** Prefix of thread names. */
+	private final String namePrefix;
+
+	/** Number of threads created. */
+	private int threadCount;
+
+	/**
+	 * Create a new thread factory.
+	 *
+	 * @param namePrefix Prefix of thread names. Threads are named with this prefix and
+	 *   the number of threads created before them.
+	 *
+	 * @throws NullPointerException If <code>namePrefix</code> is <code>null</code>.
+	 */
+	public DaemonThreadFactory(String namePrefix)
+			throws NullPointerException {
+
+		if (namePrefix == null)
+			throw new NullPointerException("Cannot create thread factory with name prefix: null");
+
+		this.namePrefix = namePrefix;
+		threadCount = 0;
+
+		return;
+	}
+
+	@Override
+	public synchronized Thread newThread(Runnable runnable) {
+
+		Thread thread = new Thread(runnable);
+
+		thread.setDaemon(true);
+		thread.setName(namePrefix + threadCount++);
+
+		return thread;
+	}
+}
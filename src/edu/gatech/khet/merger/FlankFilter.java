@@ -0,0 +1,291 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import java.util.Properties;
+
+/**
+ * Selects flank groups in the merge. Merged k-mers are rotated so that the middle
+ * base is the lowest base, and all k-mers that differ only by the middle base are
+ * adjacent. These k-mers form a flank group, and each k-mer of the group is one
+ * allele of the site. A group passes the filter if its number of alleles, its
+ * coverage (the sum of its counts), and the ratio of its minor allele to its
+ * coverage are in the configured bounds.
+ * <p>
+ * Groups with more than two alleles are kept or dropped. If a report file is set,
+ * kept groups with more than two alleles are also written to it by
+ * <code>FlankReport</code>, so they can be told apart from biallelic sites.
+ */
+public class FlankFilter {
+
+	/** Minimum number of alleles. */
+	private int minAlleles;
+
+	/** Maximum number of alleles. */
+	private int maxAlleles;
+
+	/** Minimum ratio of the second most frequent allele to the group coverage. */
+	private double minMinorRatio;
+
+	/** Minimum group coverage. */
+	private long minCoverage;
+
+	/** Maximum group coverage. */
+	private long maxCoverage;
+
+	/** Remove groups with more than two alleles. */
+	private boolean dropMultiAllelic;
+
+	/** File passing groups with more than two alleles are reported to, or <code>null</code>. */
+	private String reportFile;
+
+	/** Property: Minimum number of alleles. */
+	public static final String PROP_MIN_ALLELES = "comp.filter.minalleles";
+
+	/** Property: Maximum number of alleles. */
+	public static final String PROP_MAX_ALLELES = "comp.filter.maxalleles";
+
+	/** Property: Minimum ratio of the minor allele count to the group coverage. */
+	public static final String PROP_MIN_MINOR_RATIO = "comp.filter.minorratio";
+
+	/** Property: Minimum group coverage. */
+	public static final String PROP_MIN_COVERAGE = "comp.filter.mincov";
+
+	/** Property: Maximum group coverage. */
+	public static final String PROP_MAX_COVERAGE = "comp.filter.maxcov";
+
+	/** Property: "keep" or "drop" groups with more than two alleles. */
+	public static final String PROP_MULTI_ALLELIC = "comp.filter.multiallelic";
+
+	/** Property: File passing groups with more than two alleles are reported to. */
+	public static final String PROP_REPORT = "comp.filter.report";
+
+	/** All filter properties. */
+	private static final String[] PROPS = {
+		PROP_MIN_ALLELES, PROP_MAX_ALLELES, PROP_MIN_MINOR_RATIO, PROP_MIN_COVERAGE, PROP_MAX_COVERAGE, PROP_MULTI_ALLELIC, PROP_REPORT
+	};
+
+	/** Maximum number of alleles in a flank group (one per middle base). */
+	public static final int MAX_GROUP_SIZE = 4;
+
+	/**
+	 * Create a filter from component properties.
+	 *
+	 * @param compProp Component properties.
+	 *
+	 * @throws NullPointerException If <code>compProp</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If an invalid option is found in <code>compProp</code>.
+	 */
+	public FlankFilter(Properties compProp)
+			throws NullPointerException, IllegalArgumentException {
+
+		String value; // Value buffer for processing properties
+
+		if (compProp == null)
+			throw new NullPointerException("Cannot create flank filter with properties: null");
+
+		minAlleles = 1;
+		maxAlleles = MAX_GROUP_SIZE;
+		minMinorRatio = 0.0;
+		minCoverage = 0;
+		maxCoverage = Long.MAX_VALUE;
+		dropMultiAllelic = false;
+		reportFile = null;
+
+		if ((value = compProp.getProperty(PROP_MIN_ALLELES)) != null)
+			minAlleles = getAlleles(PROP_MIN_ALLELES, value);
+
+		if ((value = compProp.getProperty(PROP_MAX_ALLELES)) != null)
+			maxAlleles = getAlleles(PROP_MAX_ALLELES, value);
+
+		if (minAlleles > maxAlleles)
+			throw new IllegalArgumentException("Minimum number of alleles (" + PROP_MIN_ALLELES + ") is greater than the maximum (" + PROP_MAX_ALLELES + "): " + minAlleles + " > " + maxAlleles);
+
+		if ((value = compProp.getProperty(PROP_MIN_MINOR_RATIO)) != null) {
+			try {
+				minMinorRatio = Double.parseDouble(value.trim());
+
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Minor allele ratio in properties (" + PROP_MIN_MINOR_RATIO + ") is not a number: " + value);
+			}
+
+			if (! (minMinorRatio >= 0.0 && minMinorRatio <= 0.5))
+				throw new IllegalArgumentException("Minor allele ratio in properties (" + PROP_MIN_MINOR_RATIO + ") is not between 0.0 and 0.5: " + value);
+		}
+
+		if ((value = compProp.getProperty(PROP_MIN_COVERAGE)) != null)
+			minCoverage = getCoverage(PROP_MIN_COVERAGE, value);
+
+		if ((value = compProp.getProperty(PROP_MAX_COVERAGE)) != null)
+			maxCoverage = getCoverage(PROP_MAX_COVERAGE, value);
+
+		if (minCoverage > maxCoverage)
+			throw new IllegalArgumentException("Minimum coverage (" + PROP_MIN_COVERAGE + ") is greater than the maximum (" + PROP_MAX_COVERAGE + "): " + minCoverage + " > " + maxCoverage);
+
+		if ((value = compProp.getProperty(PROP_MULTI_ALLELIC)) != null) {
+			value = value.trim().toLowerCase();
+
+			if (value.equals("drop"))
+				dropMultiAllelic = true;
+
+			else if (! value.equals("keep"))
+				throw new IllegalArgumentException("Multi-allelic groups in properties (" + PROP_MULTI_ALLELIC + ") is not \"keep\" or \"drop\": " + value);
+		}
+
+		if ((value = compProp.getProperty(PROP_REPORT)) != null) {
+			reportFile = value.trim();
+
+			if (reportFile.isEmpty())
+				throw new IllegalArgumentException("Report file in properties (" + PROP_REPORT + ") is empty");
+
+			if (dropMultiAllelic)
+				throw new IllegalArgumentException("Report file in properties (" + PROP_REPORT + ") is set, but groups with more than two alleles are dropped (" + PROP_MULTI_ALLELIC + ")");
+		}
+
+		return;
+	}
+
+	/**
+	 * Create a filter if any filter property is set.
+	 *
+	 * @param compProp Component properties. If <code>null</code>, no filter is created.
+	 *
+	 * @return A new filter, or <code>null</code> if no filter property is set.
+	 *
+	 * @throws IllegalArgumentException If an invalid option is found in <code>compProp</code>.
+	 */
+	public static FlankFilter getFilter(Properties compProp)
+			throws IllegalArgumentException {
+
+		if (compProp == null)
+			return null;
+
+		for (String prop : PROPS)
+			if (compProp.getProperty(prop) != null)
+				return new FlankFilter(compProp);
+
+		return null;
+	}
+
+	/**
+	 * Parse a number of alleles.
+	 *
+	 * @param prop Property name.
+	 * @param value Property value.
+	 *
+	 * @return Number of alleles.
+	 *
+	 * @throws IllegalArgumentException If <code>value</code> is not between 1 and
+	 *   <code>MAX_GROUP_SIZE</code>.
+	 */
+	private static int getAlleles(String prop, String value)
+			throws IllegalArgumentException {
+
+		int alleles;
+
+		try {
+			alleles = Integer.parseInt(value.trim());
+
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Number of alleles in properties (" + prop + ") is not an integer: " + value);
+		}
+
+		if (alleles < 1 || alleles > MAX_GROUP_SIZE)
+			throw new IllegalArgumentException("Number of alleles in properties (" + prop + ") is not between 1 and " + MAX_GROUP_SIZE + ": " + alleles);
+
+		return alleles;
+	}
+
+	/**
+	 * Parse a coverage.
+	 *
+	 * @param prop Property name.
+	 * @param value Property value.
+	 *
+	 * @return Coverage.
+	 *
+	 * @throws IllegalArgumentException If <code>value</code> is not a non-negative integer.
+	 */
+	private static long getCoverage(String prop, String value)
+			throws IllegalArgumentException {
+
+		long coverage;
+
+		try {
+			coverage = Long.parseLong(value.trim());
+
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Coverage in properties (" + prop + ") is not an integer: " + value);
+		}
+
+		if (coverage < 0)
+			throw new IllegalArgumentException("Coverage in properties (" + prop + ") is negative: " + coverage);
+
+		return coverage;
+	}
+
+	/**
+	 * Get the file passing groups with more than two alleles are reported to.
+	 *
+	 * @return Report file name, or <code>null</code> if groups are not reported.
+	 */
+	public String getReportFile() {
+		return reportFile;
+	}
+
+	/**
+	 * Determine if a flank group passes this filter.
+	 *
+	 * @param count Counts of the alleles in the group.
+	 * @param length Number of alleles in the group.
+	 *
+	 * @return <code>true</code> if the group passes.
+	 */
+	public boolean accept(int[] count, int length) {
+
+		long coverage = 0;
+		int major = 0;
+		int minor = 0;
+
+		if (length < minAlleles || length > maxAlleles)
+			return false;
+
+		if (length > 2 && dropMultiAllelic)
+			return false;
+
+		for (int index = 0; index < length; ++index) {
+			coverage += count[index];
+
+			if (count[index] > major) {
+				minor = major;
+				major = count[index];
+
+			} else if (count[index] > minor) {
+				minor = count[index];
+			}
+		}
+
+		if (coverage < minCoverage || coverage > maxCoverage)
+			return false;
+
+		if (minMinorRatio > 0.0 && minor < minMinorRatio * coverage)
+			return false;
+
+		return true;
+	}
+}
@@ -0,0 +1,186 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.khet.merger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import edu.gatech.kanalyze.util.KmerBatch;
+
+/**
+ * Writes flank groups with more than two alleles that passed the
+ * <code>FlankFilter</code> to a text file. Each group is one line in the same layout
+ * as the SEQ output: left flank, right flank, and a middle base and count for
+ * each allele, separated by tabs. Groups are written in merge order.
+ */
+public class FlankReport {
+
+	/** Report file. */
+	public final File file;
+
+	/** Writes the report. */
+	private BufferedWriter out;
+
+	/** Number of bases in the left flank. */
+	private final int leftSize;
+
+	/** Number of bases in the right flank. */
+	private final int rightSize;
+
+	/** Line buffer. */
+	private final StringBuilder line;
+
+	/** Number of groups written. */
+	private long groupCount;
+
+	/** Bases by their 2-bit code. */
+	private static final char[] BASE = {'A', 'C', 'G', 'T'};
+
+	/**
+	 * Create a new report. The file is created or truncated.
+	 *
+	 * @param file Report file.
+	 * @param kSize K-mer size.
+	 *
+	 * @throws NullPointerException If <code>file</code> is <code>null</code>.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public FlankReport(File file, int kSize)
+			throws NullPointerException, IOException {
+
+		if (file == null)
+			throw new NullPointerException("Cannot create flank report with file: null");
+
+		this.file = file;
+
+		leftSize = kSize / 2;
+		rightSize = kSize - 1 - leftSize;
+
+		line = new StringBuilder();
+		groupCount = 0;
+
+		out = new BufferedWriter(new FileWriter(file));
+
+		return;
+	}
+
+	/**
+	 * Write the groups of a batch that have more than two alleles. A filtered batch
+	 * holds whole flank groups, so no group continues in the next batch.
+	 *
+	 * @param batch Batch of merged k-mers.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	public void write(KmerBatch batch)
+			throws IOException {
+
+		int start = 0; // First k-mer of the current group
+		int end;       // First k-mer after the current group
+
+		while (start < batch.length) {
+			end = start + 1;
+
+			while (end < batch.length && (batch.kmer[end] >> 2) == (batch.kmer[start] >> 2))
+				++end;
+
+			if (end - start > 2)
+				writeGroup(batch, start, end);
+
+			start = end;
+		}
+
+		return;
+	}
+
+	/**
+	 * Write one group.
+	 *
+	 * @param batch Batch of merged k-mers.
+	 * @param start First k-mer of the group.
+	 * @param end First k-mer after the group.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private void writeGroup(KmerBatch batch, int start, int end)
+			throws IOException {
+
+		long flank = batch.kmer[start] >> 2;
+
+		line.setLength(0);
+
+		appendBases(flank >> (rightSize * 2), leftSize);
+		line.append('\t');
+		appendBases(flank, rightSize);
+
+		for (int index = start; index < end; ++index)
+			line.append('\t').append(BASE[(int) batch.kmer[index] & 0x3]).append('/').append(batch.count[index]);
+
+		line.append('\n');
+
+		out.write(line.toString());
+		++groupCount;
+
+		return;
+	}
+
+	/**
+	 * Append the lowest bases of a k-mer to the line, most significant base first.
+	 *
+	 * @param kmer K-mer.
+	 * @param size Number of bases.
+	 */
+	private void appendBases(long kmer, int size) {
+
+		for (int shift = (size - 1) * 2; shift >= 0; shift -= 2)
+			line.append(BASE[(int) (kmer >>> shift) & 0x3]);
+
+		return;
+	}
+
+	/**
+	 * Get the number of groups written.
+	 *
+	 * @return Number of groups written.
+	 */
+	public long getGroupCount() {
+		return groupCount;
+	}
+
+	/**
+	 * Close the report.
+	 *
+	 * @throws IOException If an IO error occurs while flushing the report.
+	 */
+	public void close()
+			throws IOException {
+
+		if (out == null)
+			return;
+
+		try {
+			out.close();
+
+		} finally {
+			out = null;
+		}
+
+		return;
+	}
+}
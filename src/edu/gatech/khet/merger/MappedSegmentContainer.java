@@ -0,0 +1,140 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import edu.gatech.khet.SegmentFile;
+
+/**
+ * A segment container that memory-maps a sorted segment. Records are decoded
+ * from the mapped file straight into <code>kmer[]</code> and <code>count[]</code>
+ * without reading them into an intermediate buffer. Files larger than one window
+ * are mapped one window at a time.
+ */
+class MappedSegmentContainer extends SegmentContainer {
+
+	/** Size of a mapped window in bytes. It holds a whole number of records. */
+	public static final int WINDOW_SIZE = ((1 << 30) / RECORD_SIZE) * RECORD_SIZE;
+
+	/** Mapped window of the file, or <code>null</code> before the first window is mapped. */
+	private MappedByteBuffer window;
+
+	/**
+	 * Create a new mapped container.
+	 *
+	 * @param segmentFile File to load.
+	 *
+	 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
+	 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
+	 * @throws IOException If an IO error occurs while reading <code>segmentFile</code>.
+	 */
+	public MappedSegmentContainer(SegmentFile segmentFile)
+			throws NullPointerException, FileNotFoundException, SecurityException, IOException {
+
+		super(segmentFile, 0, null);
+
+		window = null;
+
+		return;
+	}
+
+	@Override
+	public boolean load()
+			throws IOException {
+
+		int size;
+
+		length = 0;
+		index = 0;
+
+		while (length < kmer.length) {
+
+			if ((window == null || window.remaining() < RECORD_SIZE) && ! mapWindow())
+				break;
+
+			size = Math.min(kmer.length - length, window.remaining() / RECORD_SIZE);
+
+			for (int end = length + size; length < end; ++length) {
+				kmer[length] = window.getLong();
+				count[length] = window.getInt();
+			}
+		}
+
+		return (length > 0);
+	}
+
+	@Override
+	protected boolean readRecord()
+			throws IOException {
+
+		if ((window == null || window.remaining() < RECORD_SIZE) && ! mapWindow())
+			return false;
+
+		recordKmer = window.getLong();
+		recordCount = window.getInt();
+
+		return true;
+	}
+
+	/**
+	 * Map the next window of the file. The file is closed when no window is left.
+	 *
+	 * @return <code>true</code> if a window was mapped, and <code>false</code> if the
+	 *   segment is depleted.
+	 *
+	 * @throws IOException If an IO error occurs while mapping.
+	 */
+	private boolean mapWindow()
+			throws IOException {
+
+		long size;
+
+		window = null;
+
+		if (isClosed())
+			return false;
+
+		if (readPosition >= readLimit) {
+			close();
+			return false;
+		}
+
+		size = Math.min(WINDOW_SIZE, readLimit - readPosition);
+
+		window = fcin.map(MapMode.READ_ONLY, readPosition, size);
+		readPosition += size;
+
+		return true;
+	}
+
+	@Override
+	protected void close()
+			throws IOException {
+
+		window = null; // The mapping is released when the buffer is collected
+
+		super.close();
+
+		return;
+	}
+}
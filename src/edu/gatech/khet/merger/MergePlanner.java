@@ -0,0 +1,281 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+package edu.gatech.khet.merger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.gatech.khet.Constants;
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.SegmentWriter;
+
+/**
+ * Limits the number of segments the final merge reads at once. If there are more
+ * segments than the fan-in, groups of segments are merged into intermediate runs
+ * in parallel, and the runs are merged again until no more than fan-in files are
+ * left.
+ * <p/>
+ * The fan-in is chosen so that all merges running at the same time fit their
+ * segment buffers in the memory budget. This includes the final merge, where each
+ * merge thread opens a container for every segment of its range.
+ */
+class MergePlanner {
+
+	/** K-mer size. */
+	private final int kSize;
+
+	/** Number of records read from a segment file at a time. */
+	private final int bufRecordCount;
+
+	/** Number of merges running at the same time. */
+	private final int threads;
+
+	/** Maximum number of segments merged at once. */
+	private final int fanIn;
+
+	/** Reads segment files ahead of the merge, or <code>null</code>. */
+	private final ExecutorService ioPool;
+
+	/** Memory-map sorted segments. */
+	private final boolean map;
+
+	/** Layout of intermediate runs. */
+	private final SegmentFormat runFormat;
+
+	/** Time in nanoseconds intermediate merges waited for segment files to be read. */
+	private long stallTime;
+
+	/**
+	 * Create a new merge planner.
+	 *
+	 * @param kSize K-mer size.
+	 * @param bufRecordCount Number of records read from a segment file at a time.
+	 * @param threads Number of merges running at the same time.
+	 * @param memoryBudget Number of bytes all segment buffers of merges running at
+	 *   the same time may use.
+	 * @param maxFanIn Maximum number of segments merged at once regardless of the
+	 *   memory budget.
+	 * @param ioPool Reads segment files ahead of the merge. If <code>null</code>,
+	 *   segment files are read by the merge threads.
+	 * @param map Memory-map sorted segments instead of reading them into buffers.
+	 * @param runFormat Layout of intermediate runs (<code>SORT</code> or <code>PACK</code>).
+	 *
+	 * @throws NullPointerException If <code>runFormat</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>bufRecordCount</code> or <code>threads</code>
+	 *   is less than 1, or if <code>maxFanIn</code> is less than 2.
+	 */
+	public MergePlanner(int kSize, int bufRecordCount, int threads, long memoryBudget, int maxFanIn, ExecutorService ioPool, boolean map, SegmentFormat runFormat)
+			throws NullPointerException, IllegalArgumentException {
+
+		if (runFormat == null)
+			throw new NullPointerException("Cannot create merge planner with run format: null");
+
+		if (bufRecordCount < 1)
+			throw new IllegalArgumentException("Cannot create merge planner with buffer size less than 1: " + bufRecordCount);
+
+		if (threads < 1)
+			throw new IllegalArgumentException("Cannot create merge planner with less than 1 thread: " + threads);
+
+		if (maxFanIn < 2)
+			throw new IllegalArgumentException("Cannot create merge planner with fan-in less than 2: " + maxFanIn);
+
+		this.kSize = kSize;
+		this.bufRecordCount = bufRecordCount;
+		this.threads = threads;
+		this.ioPool = ioPool;
+		this.map = map;
+		this.runFormat = runFormat;
+
+		fanIn = (int) Math.max(2, Math.min(maxFanIn, memoryBudget / threads / containerMemory(runFormat, bufRecordCount, map)));
+		stallTime = 0;
+
+		return;
+	}
+
+	/**
+	 * Get the number of bytes one open segment container uses. All containers hold a
+	 * batch of records. <code>SORT</code> containers add two read buffers unless the
+	 * segment is mapped (<code>BIN</code> segments are never mapped). <code>PACK</code> containers are never mapped and add the
+	 * arrays one block is decoded into and two buffers for coded blocks.
+	 *
+	 * @param format Segment format.
+	 * @param bufRecordCount Number of records read from a segment file at a time.
+	 * @param map Memory-map sorted segments instead of reading them into buffers.
+	 *
+	 * @return Bytes in the buffers and arrays of one container.
+	 */
+	public static long containerMemory(SegmentFormat format, int bufRecordCount, boolean map) {
+
+		long memory = (long) Constants.DEFAULT_BATCH_SIZE * SegmentContainer.RECORD_SIZE;
+
+		if (format == SegmentFormat.PACK) {
+			memory += (long) SegmentWriter.DEFAULT_BLOCK_RECORDS * SegmentContainer.RECORD_SIZE;
+			memory += 2L * SegmentWriter.maxBlockSize(SegmentWriter.DEFAULT_BLOCK_RECORDS);
+
+		} else if (format == SegmentFormat.BIN || ! map) {
+			memory += 2L * bufRecordCount * SegmentContainer.RECORD_SIZE;
+		}
+
+		return memory;
+	}
+
+	/**
+	 * Get the maximum number of segments merged at once.
+	 *
+	 * @return Fan-in.
+	 */
+	public int getFanIn() {
+		return fanIn;
+	}
+
+	/**
+	 * Get the time intermediate merges waited for segment files to be read. This
+	 * is the sum over all merge threads.
+	 *
+	 * @return Time in nanoseconds.
+	 */
+	public long getStallTime() {
+		return stallTime;
+	}
+
+	/**
+	 * Merge segments into intermediate runs until no more than fan-in files are
+	 * left. Input files with the auto-delete flag are deleted after they are merged.
+	 * If a merge fails, the other merges of its level are waited for, and all runs
+	 * written by this call are deleted.
+	 *
+	 * @param segFileList Segment files.
+	 *
+	 * @return Files for the final merge. If <code>segFileList</code> has no more than
+	 *   fan-in files, it is returned.
+	 *
+	 * @throws IOException If an IO error occurs while merging.
+	 */
+	public List<SegmentFile> reduce(List<SegmentFile> segFileList)
+			throws IOException {
+
+		List<SegmentFile> runList;
+		List<RunMerger> mergerList;
+		List<Future<SegmentFile>> futureList;
+		List<File> runFileList = new ArrayList<File>();
+		ExecutorService mergePool;
+
+		File runDir;
+		int level = 0;
+
+		if (segFileList.size() <= fanIn)
+			return segFileList;
+
+		runDir = segFileList.get(0).file.getAbsoluteFile().getParentFile();
+		mergePool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("khet_merge_run_"));
+
+		try {
+			while (segFileList.size() > fanIn) {
+
+				// Spread segments evenly over the fewest groups
+				int groupCount = (segFileList.size() + fanIn - 1) / fanIn;
+				int start = 0;
+
+				++level;
+
+				System.out.println("merge level " + level + ": " + segFileList.size() + " segments into " + groupCount + " runs (fan-in " + fanIn + ")");
+
+				mergerList = new ArrayList<RunMerger>();
+				futureList = new ArrayList<Future<SegmentFile>>();
+
+				for (int group = 0; group < groupCount; ++group) {
+					int end = (int) ((long) (group + 1) * segFileList.size() / groupCount);
+
+					File runFile = new File(runDir, "merge_" + level + "_" + group + runFormat.getExtension());
+
+					runFileList.add(runFile);
+
+					mergerList.add(new RunMerger(
+							segFileList.subList(start, end),
+							runFile,
+							kSize, bufRecordCount, ioPool, map, runFormat
+					));
+
+					futureList.add(mergePool.submit(mergerList.get(group)));
+
+					start = end;
+				}
+
+				// Wait for runs
+				runList = new ArrayList<SegmentFile>();
+
+				try {
+					for (Future<SegmentFile> future : futureList)
+						runList.add(RunMerger.waitRun(future));
+
+				} catch (IOException ex) {
+
+					// Let the other merges end so their runs are not written after they are deleted
+					for (Future<SegmentFile> future : futureList) {
+						try {
+							RunMerger.waitRun(future);
+
+						} catch (IOException otherEx) {
+							// Ignore - the first error is reported
+						}
+					}
+
+					// Remove runs of this and earlier levels
+					for (File runFile : runFileList) {
+						try {
+							runFile.delete();
+
+						} catch (SecurityException delEx) {
+							// Ignore - best effort delete
+						}
+					}
+
+					throw ex;
+
+				} finally {
+					for (RunMerger merger : mergerList)
+						stallTime += merger.stallTime;
+				}
+
+				// Remove merged files
+				for (SegmentFile segFile : segFileList) {
+
+					if (segFile.autoDelete) {
+						try {
+							segFile.file.delete();
+
+						} catch (SecurityException ex) {
+							// Ignore - best effort delete
+						}
+					}
+				}
+
+				segFileList = runList;
+			}
+
+		} finally {
+			mergePool.shutdownNow();
+		}
+
+		return segFileList;
+	}
+}
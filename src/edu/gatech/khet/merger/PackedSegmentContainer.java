@@ -0,0 +1,594 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentWriter;
+
+/**
+ * A segment container that reads a <code>PACK</code> segment. The block index is
+ * read when the container is opened, and blocks are read and decoded one at a
+ * time. While records are read from one block, the next block is read by an I/O
+ * thread pool.
+ */
+class PackedSegmentContainer extends SegmentContainer {
+
+	/** Block index of the segment. */
+	private final PackIndex packIndex;
+
+	/** Reads blocks ahead, or <code>null</code> to read blocks on the thread that needs them. */
+	private final ExecutorService blockPool;
+
+	/** Next block to read. */
+	private int nextBlock;
+
+	/** Block where reading stops (exclusive). */
+	private int endBlock;
+
+	/** Lowest k-mer returned (inclusive). */
+	private long fromKmer;
+
+	/** Highest k-mer returned (exclusive). */
+	private long toKmer;
+
+	/** K-mers of the current block. */
+	private long[] blockKmer;
+
+	/** Counts of the current block. */
+	private int[] blockCount;
+
+	/** Next record in the current block. */
+	private int blockIndex;
+
+	/** Number of records in the current block. */
+	private int blockLength;
+
+	/** Buffer the next block is read into. */
+	private ByteBuffer nextBlockBuf;
+
+	/** Buffer the current block was read into. */
+	private ByteBuffer blockBuf;
+
+	/** Read of the next block, or <code>null</code> if no block is being read. */
+	private FutureTask<ByteBuffer> blockPrefetch;
+
+	/** Set when a record at or above <code>toKmer</code> was found. */
+	private boolean depleted;
+
+	/**
+	 * Create a new container for a <code>PACK</code> segment.
+	 *
+	 * @param segmentFile File to load.
+	 * @param ioPool Reads blocks ahead. If <code>null</code>, blocks are read when
+	 *   they are needed.
+	 *
+	 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
+	 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
+	 * @throws IOException If an IO error occurs while reading <code>segmentFile</code> or
+	 *   if it is not a <code>PACK</code> segment.
+	 */
+	public PackedSegmentContainer(SegmentFile segmentFile, ExecutorService ioPool)
+			throws NullPointerException, FileNotFoundException, SecurityException, IOException {
+
+		super(segmentFile, 0, null);
+
+		packIndex = readIndex(fcin, segmentFile);
+		blockPool = ioPool;
+
+		nextBlock = 0;
+		endBlock = packIndex.blockCount;
+		fromKmer = Long.MIN_VALUE;
+		toKmer = Long.MAX_VALUE;
+
+		blockKmer = new long[packIndex.blockRecords];
+		blockCount = new int[packIndex.blockRecords];
+		blockIndex = 0;
+		blockLength = 0;
+
+		blockBuf = null;
+		nextBlockBuf = null;
+		blockPrefetch = null;
+		depleted = false;
+
+		return;
+	}
+
+	/**
+	 * Read the block index of a <code>PACK</code> segment.
+	 *
+	 * @param fc Channel of the segment file.
+	 * @param segmentFile Segment file.
+	 *
+	 * @return Block index.
+	 *
+	 * @throws IOException If an IO error occurs or if the file is not a <code>PACK</code> segment.
+	 */
+	public static PackIndex readIndex(FileChannel fc, SegmentFile segmentFile)
+			throws IOException {
+
+		ByteBuffer headerBuf = ByteBuffer.allocate(Math.max(SegmentWriter.PACK_HEADER_SIZE, SegmentWriter.PACK_TRAILER_SIZE));
+		ByteBuffer indexBuf;
+		PackIndex packIndex;
+
+		long size = fc.size();
+		long indexOffset;
+		long recordTotal;
+		int blockCount;
+		int blockRecords;
+
+		if (size < SegmentWriter.PACK_HEADER_SIZE + SegmentWriter.PACK_TRAILER_SIZE)
+			throw new IOException("Segment is too short for a " + segmentFile.format + " segment: " + segmentFile.file.getName());
+
+		// Header
+		readFully(fc, headerBuf, 0, SegmentWriter.PACK_HEADER_SIZE, segmentFile);
+
+		if (headerBuf.getInt() != SegmentWriter.PACK_MAGIC)
+			throw new IOException("Segment does not start with the " + segmentFile.format + " magic number: " + segmentFile.file.getName());
+
+		if (headerBuf.getInt() != SegmentWriter.PACK_VERSION)
+			throw new IOException("Segment version is not supported: " + segmentFile.file.getName());
+
+		blockRecords = headerBuf.getInt();
+
+		// Trailer
+		readFully(fc, headerBuf, size - SegmentWriter.PACK_TRAILER_SIZE, SegmentWriter.PACK_TRAILER_SIZE, segmentFile);
+
+		indexOffset = headerBuf.getLong();
+		recordTotal = headerBuf.getLong();
+		blockCount = headerBuf.getInt();
+
+		if (headerBuf.getInt() != SegmentWriter.PACK_MAGIC)
+			throw new IOException("Segment does not end with the " + segmentFile.format + " magic number (truncated file?): " + segmentFile.file.getName());
+
+		if (blockRecords < 1 || blockCount < 0 || indexOffset + (long) blockCount * SegmentWriter.PACK_INDEX_ENTRY_SIZE != size - SegmentWriter.PACK_TRAILER_SIZE)
+			throw new IOException("Segment index is corrupt: " + segmentFile.file.getName());
+
+		// Index
+		packIndex = new PackIndex(blockCount, blockRecords, recordTotal, indexOffset);
+
+		indexBuf = ByteBuffer.allocate(blockCount * SegmentWriter.PACK_INDEX_ENTRY_SIZE);
+		readFully(fc, indexBuf, indexOffset, indexBuf.capacity(), segmentFile);
+
+		for (int block = 0; block < blockCount; ++block) {
+			packIndex.firstKmer[block] = indexBuf.getLong();
+			packIndex.offset[block] = indexBuf.getLong();
+			packIndex.firstRecord[block + 1] = packIndex.firstRecord[block] + indexBuf.getInt();
+		}
+
+		packIndex.offset[blockCount] = indexOffset;
+
+		return packIndex;
+	}
+
+	/**
+	 * Read bytes at a position of a file and flip the buffer.
+	 *
+	 * @param fc Channel to read.
+	 * @param readBuf Buffer to read into.
+	 * @param position File position.
+	 * @param size Number of bytes to read.
+	 * @param segmentFile Segment file for error messages.
+	 *
+	 * @throws IOException If an IO error occurs or if the file ends before <code>size</code>
+	 *   bytes were read.
+	 */
+	private static void readFully(FileChannel fc, ByteBuffer readBuf, long position, int size, SegmentFile segmentFile)
+			throws IOException {
+
+		readBuf.clear();
+		readBuf.limit(size);
+
+		while (readBuf.hasRemaining()) {
+			if (fc.read(readBuf, position + readBuf.position()) == -1)
+				throw new IOException("Unexpected end of segment file: " + segmentFile.file.getName());
+		}
+
+		readBuf.flip();
+
+		return;
+	}
+
+	@Override
+	protected void setRange(long fromKmer, long toKmer)
+			throws IOException {
+
+		int block;
+
+		// Records equal to fromKmer may end the block before the first block starting at or above it
+		block = packIndex.findBlock(fromKmer);
+		nextBlock = Math.max(0, block - 1);
+
+		endBlock = (toKmer == Long.MAX_VALUE) ? packIndex.blockCount : packIndex.findBlock(toKmer);
+		endBlock = Math.max(nextBlock, endBlock);
+
+		this.fromKmer = fromKmer;
+		this.toKmer = toKmer;
+
+		return;
+	}
+
+	@Override
+	public boolean load()
+			throws IOException {
+
+		int size;
+
+		length = 0;
+		index = 0;
+
+		while (length < kmer.length) {
+
+			if (blockIndex == blockLength && ! loadBlock())
+				break;
+
+			size = Math.min(kmer.length - length, blockLength - blockIndex);
+
+			System.arraycopy(blockKmer, blockIndex, kmer, length, size);
+			System.arraycopy(blockCount, blockIndex, count, length, size);
+
+			blockIndex += size;
+			length += size;
+		}
+
+		return (length > 0);
+	}
+
+	@Override
+	protected boolean readRecord()
+			throws IOException {
+
+		if (blockIndex == blockLength && ! loadBlock())
+			return false;
+
+		recordKmer = blockKmer[blockIndex];
+		recordCount = blockCount[blockIndex];
+		++blockIndex;
+
+		return true;
+	}
+
+	/**
+	 * Decode the next block with records in the range. Records below the range
+	 * are skipped, and the segment is depleted at the first record above it.
+	 *
+	 * @return <code>true</code> if a block was loaded, and <code>false</code> if the
+	 *   segment is depleted.
+	 *
+	 * @throws IOException If an IO error occurs or if a block is corrupt.
+	 */
+	private boolean loadBlock()
+			throws IOException {
+
+		ByteBuffer readBuf;
+		long nextKmer;
+		int recordTotal;
+		int start;
+
+		blockIndex = 0;
+		blockLength = 0;
+
+		while (blockLength == 0) {
+
+			if (isClosed())
+				return false;
+
+			if (blockPrefetch == null && ! depleted)
+				startBlockPrefetch();
+
+			if (blockPrefetch == null || depleted) {
+				close();
+				return false;
+			}
+
+			readBuf = waitBlockPrefetch();
+
+			// Swap buffers and read the next block while this one is decoded
+			nextBlockBuf = blockBuf;
+			blockBuf = readBuf;
+
+			startBlockPrefetch();
+
+			// Block header
+			nextKmer = readBuf.getLong();
+			recordTotal = readBuf.getInt();
+
+			if (recordTotal < 1 || recordTotal > blockKmer.length || readBuf.getInt() != readBuf.remaining())
+				throw new IOException("Segment block is corrupt: " + file.getName());
+
+			// Payload
+			start = 0;
+
+			for (int record = 0; record < recordTotal; ++record) {
+				nextKmer += getVarint(readBuf);
+
+				blockKmer[blockLength] = nextKmer;
+				blockCount[blockLength] = (int) getVarint(readBuf);
+
+				if (nextKmer < fromKmer) {
+					++start;
+
+				} else if (nextKmer >= toKmer) {
+					depleted = true;
+					break;
+				}
+
+				++blockLength;
+			}
+
+			blockIndex = start;
+
+			if (blockIndex == blockLength)
+				blockLength = 0;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get a varint.
+	 *
+	 * @param readBuf Buffer to read from.
+	 *
+	 * @return Value.
+	 *
+	 * @throws IOException If the varint is longer than 64 bits or runs past the block.
+	 */
+	private long getVarint(ByteBuffer readBuf)
+			throws IOException {
+
+		long value = 0;
+		int shift = 0;
+		byte next;
+
+		do {
+			if (shift > 63 || ! readBuf.hasRemaining())
+				throw new IOException("Segment block is corrupt: " + file.getName());
+
+			next = readBuf.get();
+			value |= (long) (next & 0x7f) << shift;
+			shift += 7;
+
+		} while (next < 0);
+
+		return value;
+	}
+
+	/**
+	 * Start reading the next block into <code>nextBlockBuf</code>. If the end of
+	 * the range was reached, <code>blockPrefetch</code> is set to <code>null</code>.
+	 */
+	private void startBlockPrefetch() {
+
+		final ByteBuffer readBuf;
+		final long position;
+		final int size;
+
+		if (nextBlock >= endBlock) {
+			blockPrefetch = null;
+			return;
+		}
+
+		position = packIndex.offset[nextBlock];
+		size = (int) (packIndex.offset[nextBlock + 1] - position);
+
+		if (nextBlockBuf == null || nextBlockBuf.capacity() < size)
+			nextBlockBuf = ByteBuffer.allocate(size);
+
+		readBuf = nextBlockBuf;
+		readBuf.clear();
+		readBuf.limit(size);
+
+		++nextBlock;
+
+		blockPrefetch = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+
+			@Override
+			public ByteBuffer call()
+					throws IOException {
+
+				while (readBuf.hasRemaining()) {
+					if (fcin.read(readBuf, position + readBuf.position()) == -1)
+						throw new IOException("Unexpected end of segment file: " + file.getName());
+				}
+
+				readBuf.flip();
+
+				return readBuf;
+			}
+		});
+
+		if (blockPool == null) {
+			long startTime = System.nanoTime();
+
+			blockPrefetch.run();
+			stallTime += System.nanoTime() - startTime;
+
+		} else {
+			blockPool.execute(blockPrefetch);
+		}
+
+		return;
+	}
+
+	/**
+	 * Wait for the block <code>blockPrefetch</code> is reading and add the time
+	 * spent waiting to <code>stallTime</code>.
+	 *
+	 * @return Buffer with the block.
+	 *
+	 * @throws IOException If an IO error occurs while reading the block or if the
+	 *   thread is interrupted while waiting.
+	 */
+	private ByteBuffer waitBlockPrefetch()
+			throws IOException {
+
+		long startTime = System.nanoTime();
+
+		try {
+			return blockPrefetch.get();
+
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted while reading segment file: " + file.getName());
+
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+
+			throw new IOException("Error reading segment file: " + file.getName() + ": " + ex.getCause(), ex.getCause());
+
+		} finally {
+			blockPrefetch = null;
+			stallTime += System.nanoTime() - startTime;
+		}
+	}
+
+	@Override
+	protected void close()
+			throws IOException {
+
+		// Do not close the channel under a block that is still being read
+		if (blockPrefetch != null) {
+			try {
+				blockPrefetch.get();
+
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+
+			} catch (ExecutionException ex) {
+				// Ignore
+			}
+
+			blockPrefetch = null;
+		}
+
+		blockBuf = null;
+		nextBlockBuf = null;
+
+		super.close();
+
+		return;
+	}
+
+	/**
+	 * Block index of a <code>PACK</code> segment.
+	 */
+	static class PackIndex {
+
+		/** Number of blocks. */
+		public final int blockCount;
+
+		/** Maximum number of records in a block. */
+		public final int blockRecords;
+
+		/** Number of records in the segment. */
+		public final long recordCount;
+
+		/** First k-mer of each block. */
+		public final long[] firstKmer;
+
+		/** File offset of each block. The last element is the offset of the index. */
+		public final long[] offset;
+
+		/** Index of the first record of each block. The last element is the number of records. */
+		public final long[] firstRecord;
+
+		/**
+		 * Create an empty index.
+		 *
+		 * @param blockCount Number of blocks.
+		 * @param blockRecords Maximum number of records in a block.
+		 * @param recordCount Number of records in the segment.
+		 * @param indexOffset File offset of the index.
+		 */
+		public PackIndex(int blockCount, int blockRecords, long recordCount, long indexOffset) {
+			this.blockCount = blockCount;
+			this.blockRecords = blockRecords;
+			this.recordCount = recordCount;
+
+			firstKmer = new long[blockCount];
+			offset = new long[blockCount + 1];
+			firstRecord = new long[blockCount + 1];
+
+			offset[blockCount] = indexOffset;
+
+			return;
+		}
+
+		/**
+		 * Find the first block that starts with a k-mer greater than or equal to a k-mer.
+		 *
+		 * @param kmer K-mer to find.
+		 *
+		 * @return Index of the block, or <code>blockCount</code> if there is no such block.
+		 */
+		public int findBlock(long kmer) {
+
+			int low = 0;
+			int high = blockCount;
+			int mid;
+
+			while (low < high) {
+				mid = (low + high) >>> 1;
+
+				if (firstKmer[mid] < kmer)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+
+			return low;
+		}
+
+		/**
+		 * Get the first k-mer of the block that holds a record.
+		 *
+		 * @param record Index of the record.
+		 *
+		 * @return First k-mer of the block holding <code>record</code>.
+		 */
+		public long getBlockKmer(long record) {
+
+			int low = 0;
+			int high = blockCount - 1;
+			int mid;
+
+			// Last block with a first record at or below record
+			while (low < high) {
+				mid = (low + high + 1) >>> 1;
+
+				if (firstRecord[mid] <= record)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+
+			return firstKmer[low];
+		}
+	}
+}
@@ -0,0 +1,202 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+package edu.gatech.khet.merger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import edu.gatech.khet.Constants;
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.SegmentWriter;
+
+/**
+ * Merges a group of segments into one run file of sorted records. Counts of
+ * equal k-mers are summed, so the run can be merged again like any sorted
+ * segment.
+ */
+class RunMerger implements Callable<SegmentFile> {
+
+	/** Segments to merge. */
+	private final List<SegmentFile> group;
+
+	/** Run file to write. */
+	private final File runFile;
+
+	/** K-mer size. */
+	private final int kSize;
+
+	/** Number of records read from a segment file at a time. */
+	private final int bufRecordCount;
+
+	/** Reads segment files ahead of the merge, or <code>null</code>. */
+	private final ExecutorService ioPool;
+
+	/** Memory-map sorted segments. */
+	private final boolean map;
+
+	/** Layout of the run file. */
+	private final SegmentFormat runFormat;
+
+	/** Time in nanoseconds this merge waited for segment files to be read. */
+	public volatile long stallTime;
+
+	/**
+	 * Create a new run merger.
+	 *
+	 * @param group Segments to merge.
+	 * @param runFile Run file to write.
+	 * @param kSize K-mer size.
+	 * @param bufRecordCount Number of records read from a segment file at a time.
+	 * @param ioPool Reads segment files ahead of the merge. If <code>null</code>,
+	 *   segment files are read by the thread running this merge.
+	 * @param map Memory-map sorted segments instead of reading them into buffers.
+	 * @param runFormat Layout of the run file (<code>SORT</code> or <code>PACK</code>).
+	 *
+	 * @throws NullPointerException If <code>group</code>, <code>runFile</code>, or
+	 *   <code>runFormat</code> is <code>null</code>.
+	 */
+	public RunMerger(List<SegmentFile> group, File runFile, int kSize, int bufRecordCount, ExecutorService ioPool, boolean map, SegmentFormat runFormat)
+			throws NullPointerException {
+
+		if (group == null)
+			throw new NullPointerException("Cannot create run merger for segments: null");
+
+		if (runFile == null)
+			throw new NullPointerException("Cannot create run merger for run file: null");
+
+		if (runFormat == null)
+			throw new NullPointerException("Cannot create run merger with run format: null");
+
+		this.group = group;
+		this.runFile = runFile;
+		this.kSize = kSize;
+		this.bufRecordCount = bufRecordCount;
+		this.ioPool = ioPool;
+		this.map = map;
+		this.runFormat = runFormat;
+
+		stallTime = 0;
+
+		return;
+	}
+
+	/**
+	 * Merge the group. If the merge fails, the run file is removed.
+	 *
+	 * @return Run file. Its auto-delete flag is set.
+	 *
+	 * @throws IOException If an IO error occurs while merging.
+	 */
+	@Override
+	public SegmentFile call()
+			throws IOException {
+
+		List<SegmentContainer> containerList = new ArrayList<SegmentContainer>();
+		List<SegmentContainer> openList = new ArrayList<SegmentContainer>();
+		SegmentContainer nextContainer;
+		SegmentMerger merger;
+
+		long[] kmer = new long[Constants.DEFAULT_BATCH_SIZE]; // Merged k-mers
+		int[] count = new int[Constants.DEFAULT_BATCH_SIZE];  // Merged counts
+		int length;                                           // Number of merged k-mers
+
+		boolean success = false;
+
+		try (SegmentWriter writer = new SegmentWriter(runFile, runFormat)) {
+
+			// Load segments
+			for (SegmentFile segmentFile : group) {
+
+				try {
+					nextContainer = SegmentContainer.open(segmentFile, bufRecordCount, kSize, ioPool, map);
+					openList.add(nextContainer);
+
+					if (nextContainer.load())
+						containerList.add(nextContainer);
+
+				} catch (IOException ex) {
+					throw new IOException("IO error loading data from segment file: " + segmentFile.file.getName() + ": " + ex.getMessage(), ex);
+				}
+			}
+
+			// Merge and write records
+			if (! containerList.isEmpty()) {
+				merger = new SegmentMerger(containerList);
+
+				while ((length = merger.next(kmer, count, 0, kmer.length)) > 0)
+					writer.write(kmer, count, length);
+			}
+
+			success = true;
+
+		} finally {
+			long time = 0;
+
+			for (SegmentContainer container : openList) {
+				time += container.stallTime;
+
+				try {
+					container.close();
+
+				} catch (IOException ex) {
+					// Ignore
+				}
+			}
+
+			stallTime = time;
+
+			if (! success)
+				runFile.delete();
+		}
+
+		return new SegmentFile(runFile, true, runFormat);
+	}
+
+	/**
+	 * Wait for a run merger submitted to a thread pool.
+	 *
+	 * @param future Result of the merge.
+	 *
+	 * @return Run file.
+	 *
+	 * @throws IOException If the merge failed.
+	 */
+	public static SegmentFile waitRun(Future<SegmentFile> future)
+			throws IOException {
+
+		while (true) {
+			try {
+				return future.get();
+
+			} catch (InterruptedException ex) {
+				// Try again
+
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+
+				throw new IOException("Error merging run: " + ex.getCause(), ex.getCause());
+			}
+		}
+	}
+}
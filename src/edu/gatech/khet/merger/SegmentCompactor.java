@@ -0,0 +1,348 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.gatech.kanalyze.util.KmerUtil;
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+
+/**
+ * Merges sorted segments in the background while KAnalyze and the sort workers
+ * are still running. Segments are taken from the segment queue as they arrive
+ * and kept in tiers. When a tier holds as many runs as the tier width, they are
+ * merged into one run of the next tier. After <code>finish()</code> is called,
+ * merges in progress are completed, and all runs are put back on the segment
+ * queue for the final merge.
+ */
+public class SegmentCompactor implements Runnable {
+
+	/** Queue of sorted segments. */
+	private final LinkedBlockingQueue<SegmentFile> segmentQueue;
+
+	/** K-mer size. */
+	private final int kSize;
+
+	/** Number of runs merged into one run of the next tier. */
+	private int tierWidth;
+
+	/** Number of threads merging runs. */
+	private int compactThreads;
+
+	/** Number of records read from a segment file at a time. */
+	private int bufRecordCount;
+
+	/** Layout of compacted runs. */
+	private final SegmentFormat runFormat;
+
+	/** Runs of each tier. Tier 0 holds segments from the segment queue. */
+	private final List<List<SegmentFile>> tierList;
+
+	/** Merges in progress. */
+	private final List<Compaction> compactionList;
+
+	/** Set when no more segments are added to the segment queue. */
+	private volatile boolean finished;
+
+	/** Number of runs written. */
+	private int runCount;
+
+	/** Default number of runs merged into one run of the next tier. */
+	public static final int DEFAULT_TIER_WIDTH = 4;
+
+	/** Default number of threads merging runs. */
+	public static final int DEFAULT_COMPACT_THREADS = 1;
+
+	/** Property: Number of runs merged into one run of the next tier. If 0, segments are not compacted. */
+	public static final String PROP_TIER_WIDTH = "comp.compact.width";
+
+	/** Property: Number of threads merging runs. */
+	public static final String PROP_COMPACT_THREADS = "comp.compact.threads";
+
+	/** Time to wait for a segment before checking merges in progress. */
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * Create a new compactor.
+	 *
+	 * @param segmentQueue Queue of sorted segments. Segments are removed as they are
+	 *   compacted, and the remaining runs are put back when the compactor is done.
+	 * @param kSize K-mer size.
+	 * @param compProp Component properties. If <code>null</code>, properties are empty.
+	 *
+	 * @throws NullPointerException If <code>segmentQueue</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If the <code>kSize</code> is not a valid k-mer size or
+	 *   if an invalid option is found in <code>compProp</code>.
+	 */
+	public SegmentCompactor(LinkedBlockingQueue<SegmentFile> segmentQueue, int kSize, Properties compProp)
+			throws NullPointerException, IllegalArgumentException {
+
+		String value; // Value buffer for processing properties
+
+		if (segmentQueue == null)
+			throw new NullPointerException("Cannot create compactor: Segment queue is null");
+
+		if (! KmerUtil.isValidSize(kSize))
+			throw new IllegalArgumentException("Cannot create compactor: K-mer size is not valid: " + kSize);
+
+		this.segmentQueue = segmentQueue;
+		this.kSize = kSize;
+
+		tierWidth = DEFAULT_TIER_WIDTH;
+		compactThreads = DEFAULT_COMPACT_THREADS;
+
+		// Process properties
+		if (compProp == null)
+			compProp = new Properties();
+
+		if ((value = compProp.getProperty(PROP_TIER_WIDTH)) != null) {
+			try {
+				tierWidth = Integer.parseInt(value.trim());
+
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Tier width in properties (" + PROP_TIER_WIDTH + ") is not an integer: " + value);
+			}
+
+			if (tierWidth != 0 && tierWidth < 2)
+				throw new IllegalArgumentException("Tier width in properties (" + PROP_TIER_WIDTH + ") is not 0 or at least 2: " + tierWidth);
+		}
+
+		if ((value = compProp.getProperty(PROP_COMPACT_THREADS)) != null) {
+			try {
+				compactThreads = Integer.parseInt(value.trim());
+
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Number of compaction threads in properties (" + PROP_COMPACT_THREADS + ") is not an integer: " + value);
+			}
+
+			if (compactThreads < 1)
+				throw new IllegalArgumentException("Number of compaction threads in properties (" + PROP_COMPACT_THREADS + ") is less than 1: " + compactThreads);
+		}
+
+		bufRecordCount = CountMergeComponent.getBufRecordCount(compProp); // throws IllegalArgumentException
+		runFormat = CountMergeComponent.getSegmentFormat(compProp); // throws IllegalArgumentException
+
+		tierList = new ArrayList<List<SegmentFile>>();
+		compactionList = new ArrayList<Compaction>();
+
+		finished = false;
+		runCount = 0;
+
+		return;
+	}
+
+	/**
+	 * Run this component.
+	 */
+	@Override
+	public void run() {
+
+		ExecutorService mergePool;
+		SegmentFile segmentFile;
+
+		if (tierWidth == 0)
+			return;
+
+		mergePool = Executors.newFixedThreadPool(compactThreads, new DaemonThreadFactory("khet_compact_"));
+
+		try {
+
+			// Compact segments until the sort workers are done
+			while (! finished || ! segmentQueue.isEmpty()) {
+
+				try {
+					segmentFile = segmentQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+				} catch (InterruptedException ex) {
+					continue;
+				}
+
+				if (segmentFile != null)
+					addRun(segmentFile, 0, mergePool);
+
+				checkCompactions(mergePool, false);
+			}
+
+			// Complete merges in progress without starting new ones
+			checkCompactions(null, true);
+
+		} finally {
+			mergePool.shutdown();
+		}
+
+		// Return runs to the segment queue
+		for (List<SegmentFile> tier : tierList) {
+			for (SegmentFile runFile : tier) {
+
+				while (true) {
+					try {
+						segmentQueue.put(runFile);
+						break;
+
+					} catch (InterruptedException ex) {
+						// Try again
+					}
+				}
+			}
+		}
+
+		System.out.println("compaction done: " + runCount + " runs written, " + segmentQueue.size() + " segments left for the merge");
+
+		return;
+	}
+
+	/**
+	 * Signal that no more segments will be added to the segment queue. The
+	 * compactor finishes merges in progress and returns its runs to the queue.
+	 */
+	public void finish() {
+		finished = true;
+	}
+
+	/**
+	 * Add a run to a tier and start a merge if the tier is full.
+	 *
+	 * @param runFile Run to add.
+	 * @param tier Tier of the run.
+	 * @param mergePool Pool merges are started on, or <code>null</code> to not
+	 *   start a merge.
+	 */
+	private void addRun(SegmentFile runFile, int tier, ExecutorService mergePool) {
+
+		List<SegmentFile> group;
+		File runDir;
+		RunMerger merger;
+
+		while (tierList.size() <= tier)
+			tierList.add(new ArrayList<SegmentFile>());
+
+		tierList.get(tier).add(runFile);
+
+		if (mergePool == null || tierList.get(tier).size() < tierWidth)
+			return;
+
+		// Merge the tier into one run of the next tier
+		group = new ArrayList<SegmentFile>(tierList.get(tier));
+		tierList.get(tier).clear();
+
+		runDir = group.get(0).file.getAbsoluteFile().getParentFile();
+		merger = new RunMerger(group, new File(runDir, "compact_" + (tier + 1) + "_" + runCount++ + runFormat.getExtension()), kSize, bufRecordCount, null, false, runFormat);
+
+		compactionList.add(new Compaction(group, tier + 1, mergePool.submit(merger)));
+
+		return;
+	}
+
+	/**
+	 * Collect merges that are done. Their runs are added to the next tier, and
+	 * their inputs with the auto-delete flag are removed. If a merge failed, its
+	 * inputs are kept for the final merge.
+	 *
+	 * @param mergePool Pool new merges are started on, or <code>null</code> to not
+	 *   start new merges.
+	 * @param wait If <code>true</code>, wait for all merges in progress.
+	 */
+	private void checkCompactions(ExecutorService mergePool, boolean wait) {
+
+		Iterator<Compaction> iter;
+		List<Compaction> doneList = new ArrayList<Compaction>();
+
+		iter = compactionList.iterator();
+
+		while (iter.hasNext()) {
+			Compaction compaction = iter.next();
+
+			if (wait || compaction.future.isDone()) {
+				doneList.add(compaction);
+				iter.remove();
+			}
+		}
+
+		for (Compaction compaction : doneList) {
+
+			try {
+				addRun(RunMerger.waitRun(compaction.future), compaction.tier, mergePool);
+
+			} catch (IOException ex) {
+				System.out.println("IO error compacting segments, they are left for the merge: " + ex.getMessage());
+				ex.printStackTrace();
+
+				// Return inputs to their tier without merging them again
+				for (SegmentFile segFile : compaction.group)
+					addRun(segFile, compaction.tier - 1, null);
+
+				continue;
+			}
+
+			for (SegmentFile segFile : compaction.group) {
+
+				if (segFile.autoDelete) {
+					try {
+						segFile.file.delete();
+
+					} catch (SecurityException ex) {
+						// Ignore - best effort delete
+					}
+				}
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * A merge in progress.
+	 */
+	private static class Compaction {
+
+		/** Runs being merged. */
+		public final List<SegmentFile> group;
+
+		/** Tier of the merged run. */
+		public final int tier;
+
+		/** Result of the merge. */
+		public final Future<SegmentFile> future;
+
+		/**
+		 * Create a new compaction.
+		 *
+		 * @param group Runs being merged.
+		 * @param tier Tier of the merged run.
+		 * @param future Result of the merge.
+		 */
+		public Compaction(List<SegmentFile> group, int tier, Future<SegmentFile> future) {
+			this.group = group;
+			this.tier = tier;
+			this.future = future;
+
+			return;
+		}
+	}
+}
@@ -0,0 +1,538 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.khet.merger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+import edu.gatech.khet.Constants;
+import edu.gatech.khet.SegmentFile;
+
+/**
+ * A container class that manages buffers from each on-disk segment of sorted
+ * k-mers. This class has a public buffer and buffer index which is refreshed
+ * with the next set of k-mers from the <code>load()</code> method.
+ * <p/>
+ * The file is read through two buffers. While records are read from one buffer,
+ * the next block of the file is read into the other buffer by an I/O thread pool.
+ */
+class SegmentContainer {
+
+	/** Size of one record (k-mer and count) in bytes. */
+	public static final int RECORD_SIZE = (Long.SIZE + Integer.SIZE) / 8;
+
+	/** k-mer buffer this segment container loads. */
+	public long[] kmer;
+
+	/** k-mer counts where each count[n] is the count of kmer[n]. */
+	public int[] count;
+
+	/** Index of the current index of <code>buffer</code>. */
+	public int index;
+
+	/** Number of elements loaded in kmer[] and count[]. */
+	public int length;
+
+	/** File this container loads. */
+	public final File file;
+
+	/** K-mer of the last record read by <code>readRecord()</code>. */
+	protected long recordKmer;
+
+	/** Count of the last record read by <code>readRecord()</code>. */
+	protected int recordCount;
+
+	/** Input stream of the on-disk segment this container loads. */
+	private FileInputStream fis;
+
+	/** File channel for block I/O on <code>fis</code>. */
+	protected FileChannel fcin;
+
+	/** Size of the read buffers in bytes. They are allocated when the first block is read. */
+	private final int bufSize;
+
+	/** Buffer records are read from. */
+	private ByteBuffer buf;
+
+	/** Buffer the next block is read into. */
+	private ByteBuffer nextBuf;
+
+	/** Read of the next block, or <code>null</code> if no block is left to read. */
+	private FutureTask<ByteBuffer> prefetch;
+
+	/** Reads blocks ahead, or <code>null</code> to read blocks on the thread that needs them. */
+	private final ExecutorService ioPool;
+
+	/** File position of the next block. */
+	protected long readPosition;
+
+	/** File position where reading stops. */
+	protected long readLimit;
+
+	/** <code>true</code> after the first block was requested. */
+	private boolean started;
+
+	/** Time in nanoseconds spent waiting for blocks to be read. */
+	public long stallTime;
+
+
+	/**
+	 * Create a new segment container.
+	 * <p/>
+	 * The initial buffers will be empty. To load the first set of k-mers, call <code>load()</code>
+	 * before reading from the buffers. <code>length</code> will be set to 0 when this constructor
+	 * returns.
+	 *
+	 * @param segmentFile File to load.
+	 * @param bufRecordCount Number of records read from the file at a time.
+	 * @param ioPool Reads blocks ahead. If <code>null</code>, blocks are read when
+	 *   they are needed.
+	 *
+	 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
+	 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
+	 * @throws IOException If an IO error occurs while reading <code>segmentFile</code>.
+	 */
+	public SegmentContainer(SegmentFile segmentFile, int bufRecordCount, ExecutorService ioPool)
+			throws NullPointerException, FileNotFoundException, SecurityException, IOException {
+
+		// Check arguments
+		if (segmentFile == null)
+			throw new NullPointerException("Cannot create segment container for input file: null");
+
+		// Open input stream
+		fis = new FileInputStream(segmentFile.file); // throws FileNotFoundException, SecurityException
+		fcin = fis.getChannel();
+		this.file = segmentFile.file;
+
+		// Buffers are allocated on the first read
+		bufSize = bufRecordCount * RECORD_SIZE;
+
+		buf = ByteBuffer.allocate(0);
+		nextBuf = null;
+
+		this.ioPool = ioPool;
+		prefetch = null;
+		started = false;
+		stallTime = 0;
+
+		readPosition = 0;
+		readLimit = fcin.size() - fcin.size() % RECORD_SIZE;
+
+		// Create structures
+		kmer = new long[Constants.DEFAULT_BATCH_SIZE];
+		count = new int[Constants.DEFAULT_BATCH_SIZE];
+		index = 0;
+		length = 0;
+
+		return;
+	}
+
+	/**
+	 * Create a segment container for the format of a segment file.
+	 *
+	 * @param segmentFile File to load.
+	 * @param bufRecordCount Number of records read from the file at a time.
+	 * @param kSize K-mer size.
+	 * @param ioPool Reads blocks ahead. If <code>null</code>, blocks are read when
+	 *   they are needed.
+	 * @param map Memory-map sorted segments instead of reading them into buffers.
+	 *   <code>BIN</code> and <code>PACK</code> segments are always read into buffers.
+	 *
+	 * @return A new segment container.
+	 *
+	 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
+	 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
+	 * @throws IOException If an IO error occurs while reading <code>segmentFile</code>.
+	 */
+	public static SegmentContainer open(SegmentFile segmentFile, int bufRecordCount, int kSize, ExecutorService ioPool, boolean map)
+			throws NullPointerException, FileNotFoundException, SecurityException, IOException {
+
+		if (segmentFile == null)
+			throw new NullPointerException("Cannot create segment container for input file: null");
+
+		switch (segmentFile.format) {
+		case BIN:
+			return new BinSegmentContainer(segmentFile, bufRecordCount, kSize, ioPool);
+
+		case PACK:
+			return new PackedSegmentContainer(segmentFile, ioPool);
+
+		default:
+			if (map)
+				return new MappedSegmentContainer(segmentFile);
+
+			return new SegmentContainer(segmentFile, bufRecordCount, ioPool);
+		}
+	}
+
+	/**
+	 * Create a segment container that only reads the records in a range of k-mers.
+	 * <p/>
+	 * Records of <code>BIN</code> segments are compared before they are rotated. Since
+	 * rotation does not move the left flank, ranges of those segments are only exact if
+	 * <code>fromKmer</code> and <code>toKmer</code> have all bits below the left flank
+	 * cleared.
+	 *
+	 * @param segmentFile File to load.
+	 * @param bufRecordCount Number of records read from the file at a time.
+	 * @param kSize K-mer size.
+	 * @param ioPool Reads blocks ahead. If <code>null</code>, blocks are read when
+	 *   they are needed.
+	 * @param map Memory-map sorted segments instead of reading them into buffers.
+	 *   <code>BIN</code> segments are always read into buffers.
+	 * @param fromKmer Lowest k-mer in the range (inclusive).
+	 * @param toKmer Highest k-mer in the range (exclusive). If <code>Long.MAX_VALUE</code>,
+	 *   the range ends at the end of the file.
+	 *
+	 * @return A new segment container.
+	 *
+	 * @throws NullPointerException If <code>segmentFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>segmentFile</code> cannot be found.
+	 * @throws SecurityException If a security error occurs while opening <code>segmentFile</code>.
+	 * @throws IOException If an IO error occurs while reading <code>segmentFile</code>.
+	 */
+	public static SegmentContainer open(SegmentFile segmentFile, int bufRecordCount, int kSize, ExecutorService ioPool, boolean map, long fromKmer, long toKmer)
+			throws NullPointerException, FileNotFoundException, SecurityException, IOException {
+
+		SegmentContainer container = open(segmentFile, bufRecordCount, kSize, ioPool, map);
+
+		container.setRange(fromKmer, toKmer);
+
+		return container;
+	}
+
+	/**
+	 * Limit reading to the records in a range of k-mers. This must be called
+	 * before the first record is read.
+	 *
+	 * @param fromKmer Lowest k-mer in the range (inclusive).
+	 * @param toKmer Highest k-mer in the range (exclusive). If <code>Long.MAX_VALUE</code>,
+	 *   the range ends at the end of the file.
+	 *
+	 * @throws IOException If an IO error occurs while searching the file.
+	 */
+	protected void setRange(long fromKmer, long toKmer)
+			throws IOException {
+
+		long recordCount = fcin.size() / RECORD_SIZE;
+		long firstRecord;
+		long lastRecord;
+
+		firstRecord = findRecord(fcin, recordCount, fromKmer);
+		lastRecord = (toKmer == Long.MAX_VALUE) ? recordCount : findRecord(fcin, recordCount, toKmer);
+
+		readPosition = firstRecord * RECORD_SIZE;
+		readLimit = Math.max(firstRecord, lastRecord) * RECORD_SIZE;
+
+		return;
+	}
+
+	/**
+	 * Find the first record with a k-mer greater than or equal to a k-mer by
+	 * binary search.
+	 *
+	 * @param fc Channel of a sorted segment file.
+	 * @param recordCount Number of records in the file.
+	 * @param kmer K-mer to find.
+	 *
+	 * @return Index of the first record with a k-mer not less than <code>kmer</code>,
+	 *   or <code>recordCount</code> if there is no such record.
+	 *
+	 * @throws IOException If an IO error occurs while reading.
+	 */
+	public static long findRecord(FileChannel fc, long recordCount, long kmer)
+			throws IOException {
+
+		ByteBuffer keyBuf = ByteBuffer.allocate(Long.SIZE / 8);
+		long low = 0;
+		long high = recordCount;
+		long mid;
+
+		while (low < high) {
+			mid = (low + high) >>> 1;
+
+			if (readKmer(fc, mid, keyBuf) < kmer)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Read the k-mer of one record without moving the position of the channel.
+	 *
+	 * @param fc Channel of a segment file.
+	 * @param record Index of the record.
+	 * @param keyBuf Buffer with room for one k-mer.
+	 *
+	 * @return K-mer of the record.
+	 *
+	 * @throws IOException If an IO error occurs while reading.
+	 */
+	public static long readKmer(FileChannel fc, long record, ByteBuffer keyBuf)
+			throws IOException {
+
+		long position = record * RECORD_SIZE;
+
+		keyBuf.clear();
+
+		while (keyBuf.hasRemaining()) {
+			if (fc.read(keyBuf, position + keyBuf.position()) == -1)
+				throw new IOException("Unexpected end of segment file while reading record " + record);
+		}
+
+		keyBuf.flip();
+
+		return keyBuf.getLong();
+	}
+
+	/**
+	 * Loads the next set of k-mers into the buffer. If the segment is already
+	 * depleted, this method has no effect (<code>false</code> is automatically
+	 * returned).
+	 *
+	 * @return <code>true</code> if at least one k-mer and count was written to the
+	 *   buffers kmer[] and count[]. If <code>false</code>, no k-mers were loaded.
+	 *
+	 * @throws IOException If an IO error occurs while reading k-mers.
+	 */
+	public boolean load()
+			throws IOException {
+
+		length = 0; // Length is used as the index for loading kmer[] and count[] (loading sets length)
+		index = 0;  // Reset object index
+
+		// Read k-mer counts until EOF or buffer is full
+		while (length < kmer.length) {
+
+			if (! readRecord())
+				return (length > 0);
+
+			kmer[length] = recordKmer;
+			count[length] = recordCount;
+
+			++length;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read the next record from the file into <code>recordKmer</code> and
+	 * <code>recordCount</code>. The file is closed when the last record was read.
+	 *
+	 * @return <code>true</code> if a record was read, and <code>false</code> if the
+	 *   segment is depleted.
+	 *
+	 * @throws IOException If an IO error occurs while reading.
+	 */
+	protected boolean readRecord()
+			throws IOException {
+
+		if (fis == null) // fis == null is the flag for a depleted segment
+			return false;
+
+		// Check buffer
+		if (buf.remaining() < RECORD_SIZE) {
+
+			if (! started) {
+				buf = ByteBuffer.allocateDirect(bufSize);
+				buf.flip();
+
+				nextBuf = ByteBuffer.allocateDirect(bufSize);
+
+				startPrefetch();
+				started = true;
+			}
+
+			// Nothing left to read from file.
+			if (prefetch == null) {
+				close();
+				return false;
+			}
+
+			// Swap buffers and start reading the next block
+			nextBuf = buf;
+			buf = waitPrefetch();
+
+			startPrefetch();
+
+			// A short block at the end of a truncated file
+			if (buf.remaining() < RECORD_SIZE) {
+				close();
+				return false;
+			}
+		}
+
+		recordKmer = buf.getLong();
+		recordCount = buf.getInt();
+
+		return true;
+	}
+
+	/**
+	 * Start reading the next block of the file into <code>nextBuf</code>. If the
+	 * end of the file or range was reached, <code>prefetch</code> is set to
+	 * <code>null</code>.
+	 */
+	private void startPrefetch() {
+
+		final ByteBuffer blockBuf = nextBuf;
+		final long position = readPosition;
+
+		if (readPosition >= readLimit) {
+			prefetch = null;
+			return;
+		}
+
+		blockBuf.clear();
+		blockBuf.limit((int) Math.min(blockBuf.capacity(), readLimit - readPosition));
+
+		readPosition += blockBuf.limit();
+
+		prefetch = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+
+			@Override
+			public ByteBuffer call()
+					throws IOException {
+
+				// Read until the block is full. A short block is only read at the end of the file.
+				while (blockBuf.hasRemaining()) {
+					if (fcin.read(blockBuf, position + blockBuf.position()) == -1)
+						break;
+				}
+
+				blockBuf.flip();
+
+				return blockBuf;
+			}
+		});
+
+		if (ioPool == null) {
+			long startTime = System.nanoTime();
+
+			prefetch.run();
+			stallTime += System.nanoTime() - startTime;
+
+		} else {
+			ioPool.execute(prefetch);
+		}
+
+		return;
+	}
+
+	/**
+	 * Wait for the block <code>prefetch</code> is reading and add the time spent
+	 * waiting to <code>stallTime</code>.
+	 *
+	 * @return Buffer with the block.
+	 *
+	 * @throws IOException If an IO error occurs while reading the block or if the
+	 *   thread is interrupted while waiting.
+	 */
+	private ByteBuffer waitPrefetch()
+			throws IOException {
+
+		long startTime = System.nanoTime();
+
+		try {
+			return prefetch.get();
+
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted while reading segment file: " + file.getName());
+
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+
+			throw new IOException("Error reading segment file: " + file.getName() + ": " + ex.getCause(), ex.getCause());
+
+		} finally {
+			stallTime += System.nanoTime() - startTime;
+		}
+	}
+
+	/**
+	 * Determine if the input file is closed.
+	 *
+	 * @return <code>true</code> if the segment is depleted.
+	 */
+	protected boolean isClosed() {
+		return fis == null;
+	}
+
+	/**
+	 * Close the input file.
+	 *
+	 * @throws IOException If an IO error occurs while closing.
+	 */
+	protected void close()
+			throws IOException {
+
+		if (fis != null) {
+
+			// Do not close the channel under a block that is still being read
+			if (prefetch != null) {
+				try {
+					prefetch.get();
+
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+
+				} catch (ExecutionException ex) {
+					// Ignore
+				}
+
+				prefetch = null;
+			}
+
+			fis.close(); // throws IOException
+
+			buf = null;
+			nextBuf = null;
+			fis = null;
+		}
+
+		return;
+	}
+
+	/**
+	 * Close the input file.
+	 */
+	@Override
+	public void finalize() {
+		try {
+			close();
+
+		} catch (Exception ex) {
+			; // Ignore
+		}
+	}
+}
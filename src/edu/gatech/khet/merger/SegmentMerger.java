@@ -0,0 +1,343 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.khet.merger;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Merges sorted segment containers with a tournament (loser) tree. Each call to
+ * <code>next()</code> finds the next k-mer and sums its counts over all segments
+ * with O(log n) comparisons per record read, where n is the number of segments.
+ * <p/>
+ * Where one segment holds a stretch of k-mers below the heads of all other
+ * segments, <code>next(long[], int[], int, int)</code> copies the whole stretch
+ * without playing a match per record.
+ */
+class SegmentMerger {
+
+	/** K-mer of a depleted container. It is greater than any k-mer. */
+	private static final long DEPLETED = Long.MAX_VALUE;
+
+	/** Containers being merged. */
+	private final SegmentContainer[] container;
+
+	/** Current k-mer of each container, or <code>DEPLETED</code>. */
+	private final long[] head;
+
+	/**
+	 * Tournament tree. <code>tree[0]</code> is the container with the lowest k-mer,
+	 * and each inner node <code>tree[1 .. n-1]</code> holds the container that lost
+	 * the match at that node. Leaf <code>i</code> is node <code>n + i</code>.
+	 */
+	private final int[] tree;
+
+	/** Number of containers. */
+	private final int size;
+
+	/** K-mer found by the last call to <code>next()</code>. */
+	public long kmer;
+
+	/** Sum of the counts of <code>kmer</code> over all containers. */
+	public int count;
+
+	/**
+	 * Create a new merger.
+	 *
+	 * @param containers Containers to merge. Each container must be loaded
+	 *   (<code>load()</code> returned <code>true</code>).
+	 *
+	 * @throws NullPointerException If <code>containers</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>containers</code> is empty.
+	 */
+	public SegmentMerger(List<SegmentContainer> containers)
+			throws NullPointerException, IllegalArgumentException {
+
+		if (containers == null)
+			throw new NullPointerException("Cannot create segment merger for containers: null");
+
+		if (containers.isEmpty())
+			throw new IllegalArgumentException("Cannot create segment merger: No containers");
+
+		size = containers.size();
+		container = containers.toArray(new SegmentContainer[size]);
+		head = new long[size];
+		tree = new int[size];
+
+		for (int index = 0; index < size; ++index) {
+			SegmentContainer next = container[index];
+
+			assert (next.index < next.length) :
+				"Container is not loaded: " + next.file.getName();
+
+			head[index] = next.kmer[next.index];
+		}
+
+		tree[0] = build(1);
+
+		return;
+	}
+
+	/**
+	 * Play the matches below a node and store the losers.
+	 *
+	 * @param node Tree node.
+	 *
+	 * @return Container that won all matches below <code>node</code>.
+	 */
+	private int build(int node) {
+
+		int left;
+		int right;
+
+		if (node >= size)
+			return node - size;
+
+		left = build(node * 2);
+		right = build(node * 2 + 1);
+
+		if (head[right] < head[left]) {
+			tree[node] = left;
+			return right;
+		}
+
+		tree[node] = right;
+		return left;
+	}
+
+	/**
+	 * Find the next k-mer and sum its counts.
+	 *
+	 * @return <code>true</code> if a k-mer was found and stored in <code>kmer</code>
+	 *   and <code>count</code>, and <code>false</code> if all containers are depleted.
+	 *
+	 * @throws IOException If an IO error occurs while loading k-mers.
+	 */
+	public boolean next()
+			throws IOException {
+
+		int winner = tree[0];
+		long curKmer = head[winner];
+		int curCount = 0;
+
+		if (curKmer == DEPLETED)
+			return false;
+
+		do {
+			SegmentContainer next = container[winner];
+
+			curCount += next.count[next.index];
+
+			// Advance the winner
+			if (++next.index == next.length) {
+				try {
+					if (! next.load()) {
+						head[winner] = DEPLETED;
+
+					} else {
+						head[winner] = next.kmer[next.index];
+					}
+
+				} catch (IOException ex) {
+					throw new IOException("IO error loading data from segment file: " + next.file.getName() + ": " + ex.getMessage(), ex);
+				}
+
+			} else {
+				head[winner] = next.kmer[next.index];
+			}
+
+			winner = replay(winner);
+
+		} while (head[winner] == curKmer);
+
+		kmer = curKmer;
+		count = curCount;
+
+		return true;
+	}
+
+	/**
+	 * Find the next k-mers and sum their counts into arrays. If the container with
+	 * the lowest k-mer has a stretch of k-mers below the lowest k-mer of all other
+	 * containers, the stretch is copied in bulk. Otherwise, one k-mer is found as
+	 * with <code>next()</code>.
+	 *
+	 * @param outKmer Array k-mers are written to.
+	 * @param outCount Array counts are written to.
+	 * @param offset Index of the first k-mer to write.
+	 * @param max Maximum number of k-mers to write.
+	 *
+	 * @return Number of k-mers written, or 0 if all containers are depleted or
+	 *   <code>max</code> is less than 1.
+	 *
+	 * @throws IOException If an IO error occurs while loading k-mers.
+	 */
+	public int next(long[] outKmer, int[] outCount, int offset, int max)
+			throws IOException {
+
+		int winner = tree[0];
+		SegmentContainer next = container[winner];
+		long bound;     // Lowest k-mer of all other containers
+		int length = 0; // Number of k-mers written
+		int end;        // End of the stretch in the loaded block
+
+		if (max < 1 || head[winner] == DEPLETED)
+			return 0;
+
+		bound = runnerUp(winner);
+
+		// Equal k-mers in other containers: Sum one k-mer
+		if (head[winner] == bound) {
+			next();
+
+			outKmer[offset] = kmer;
+			outCount[offset] = count;
+
+			return 1;
+		}
+
+		// Copy the stretch below bound block by block
+		while (true) {
+
+			// Whole block is below bound, or find the end of the stretch
+			end = next.length;
+
+			if (next.kmer[end - 1] >= bound)
+				end = gallop(next.kmer, next.index, end, bound);
+
+			end = Math.min(end, next.index + max - length);
+
+			System.arraycopy(next.kmer, next.index, outKmer, offset + length, end - next.index);
+			System.arraycopy(next.count, next.index, outCount, offset + length, end - next.index);
+
+			length += end - next.index;
+			next.index = end;
+
+			// Stopped at bound or max
+			if (next.index < next.length) {
+				head[winner] = next.kmer[next.index];
+				break;
+			}
+
+			try {
+				if (! next.load()) {
+					head[winner] = DEPLETED;
+					break;
+				}
+
+			} catch (IOException ex) {
+				throw new IOException("IO error loading data from segment file: " + next.file.getName() + ": " + ex.getMessage(), ex);
+			}
+
+			if (length == max || next.kmer[0] >= bound) {
+				head[winner] = next.kmer[0];
+				break;
+			}
+		}
+
+		replay(winner);
+
+		return length;
+	}
+
+	/**
+	 * Find the lowest k-mer of all containers except the winner. Every other
+	 * container lost a match to the winner or to a container that did, so the
+	 * lowest k-mer is one of the losers on the path of the winner.
+	 *
+	 * @param winner Container with the lowest k-mer.
+	 *
+	 * @return Lowest k-mer of the other containers, or <code>DEPLETED</code>.
+	 */
+	private long runnerUp(int winner) {
+
+		long bound = DEPLETED;
+
+		for (int node = (winner + size) >> 1; node > 0; node >>= 1) {
+			if (head[tree[node]] < bound)
+				bound = head[tree[node]];
+		}
+
+		return bound;
+	}
+
+	/**
+	 * Find the first k-mer not less than a bound by exponential search followed by
+	 * binary search.
+	 *
+	 * @param kmer Sorted k-mers.
+	 * @param start First index to search. <code>kmer[start]</code> must be less than
+	 *   <code>bound</code>.
+	 * @param end Index after the last k-mer to search.
+	 * @param bound K-mer to find.
+	 *
+	 * @return Index of the first k-mer not less than <code>bound</code>, or <code>end</code>
+	 *   if there is none.
+	 */
+	private static int gallop(long[] kmer, int start, int end, long bound) {
+
+		int low = start;  // kmer[low] < bound
+		int step = 1;
+		int high;
+		int mid;
+
+		while (start + step < end && kmer[start + step] < bound) {
+			low = start + step;
+			step <<= 1;
+		}
+
+		high = Math.min(start + step, end);
+
+		// kmer[low] < bound, and kmer[high] >= bound or high == end
+		while (high - low > 1) {
+			mid = (low + high) >>> 1;
+
+			if (kmer[mid] < bound)
+				low = mid;
+			else
+				high = mid;
+		}
+
+		return high;
+	}
+
+	/**
+	 * Replay the matches from the leaf of a container to the root after its
+	 * k-mer changed.
+	 *
+	 * @param winner Container that changed.
+	 *
+	 * @return New winner of the tree.
+	 */
+	private int replay(int winner) {
+
+		int loser;
+
+		for (int node = (winner + size) >> 1; node > 0; node >>= 1) {
+			loser = tree[node];
+
+			if (head[loser] < head[winner]) {
+				tree[node] = winner;
+				winner = loser;
+			}
+		}
+
+		tree[0] = winner;
+
+		return winner;
+	}
+}
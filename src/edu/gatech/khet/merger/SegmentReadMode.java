@@ -0,0 +1,134 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+
+/**
+ * How the merge reads sorted segments.
+ */
+public enum SegmentReadMode {
+
+	/** Map segments if the page cache can hold all sorted segments, and stream them otherwise. */
+	AUTO,
+
+	/** Memory-map sorted segments. */
+	MAP,
+
+	/** Read segments into buffers. */
+	STREAM;
+
+	/** File the kernel reports available memory in. */
+	private static final String MEMINFO_FILE = "/proc/meminfo";
+
+	/**
+	 * Get the read mode by name.
+	 *
+	 * @param modeName Name of the read mode.
+	 *
+	 * @return The read mode if found, and <code>null</code> if
+	 *   not found or if <code>modeName</code> is <code>null</code>.
+	 */
+	public static SegmentReadMode getMode(String modeName) {
+
+		if (modeName == null || modeName.isEmpty())
+			return null;
+
+		modeName = modeName.toUpperCase();
+
+		for (SegmentReadMode mode : SegmentReadMode.values())
+			if (mode.toString().equals(modeName))
+				return mode;
+
+		return null;
+	}
+
+	/**
+	 * Determine if segments are memory-mapped.
+	 *
+	 * @param segFileList Segments the merge reads.
+	 *
+	 * @return <code>true</code> if sorted segments should be memory-mapped.
+	 */
+	public boolean isMapped(List<SegmentFile> segFileList) {
+
+		long size = 0;
+		long available;
+
+		switch (this) {
+		case MAP:
+			return true;
+
+		case STREAM:
+			return false;
+
+		default:
+			for (SegmentFile segFile : segFileList)
+				if (segFile.format == SegmentFormat.SORT)
+					size += segFile.file.length();
+
+			available = availableMemory();
+
+			return size > 0 && size <= available;
+		}
+	}
+
+	/**
+	 * Get the amount of memory the page cache can use without evicting other pages.
+	 *
+	 * @return Available memory in bytes, or <code>0</code> if it cannot be determined.
+	 */
+	@SuppressWarnings("deprecation")
+	public static long availableMemory() {
+
+		OperatingSystemMXBean osBean;
+		String line;
+
+		// Linux: Free memory and reclaimable cache
+		try (BufferedReader reader = new BufferedReader(new FileReader(MEMINFO_FILE))) {
+
+			while ((line = reader.readLine()) != null) {
+
+				if (line.startsWith("MemAvailable:")) {
+					String[] tok = line.substring(13).trim().split("\\s+");
+
+					return Long.parseLong(tok[0]) * 1024; // Reported in kB
+				}
+			}
+
+		} catch (IOException | NumberFormatException ex) {
+			// Try the JVM
+		}
+
+		// Other systems: Free physical memory
+		osBean = ManagementFactory.getOperatingSystemMXBean();
+
+		if (osBean instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize();
+
+		return 0;
+	}
+}
@@ -1,38 +1,134 @@
 package edu.gatech.khet.reader;
 
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.SegmentWriter;
+import edu.gatech.khet.sorter.KhetSorter;
+import edu.gatech.khet.sorter.KmerRotator;
+import edu.gatech.khet.sorter.SortMode;
 
 
 public class KhetReaderBin implements KhetReader {
     
+    /** Size of one record (k-mer and count) in bytes. */
+    public static final int RECORD_SIZE = (Long.SIZE + Integer.SIZE) / 8;
+    
+    /**
+     * Bytes of sort memory per record. A chunk holds its records in arrays, and the
+     * radix sorter needs a second set of arrays of the same size.
+     */
+    public static final int SORT_BYTES_PER_RECORD = 2 * RECORD_SIZE;
+    
+    /** Default memory for sorting one bin file in bytes. */
+    public static final long DEFAULT_SORT_MEMORY = 512L * 1024 * 1024;
+    
+    /** Property: Memory for sorting one bin file in bytes. Larger files are sorted in chunks. */
+    public static final String PROP_SORT_MEMORY = "comp.sort.mem";
+    
+    /** Number of records read from the bin file at a time. */
+    private static final int READ_BUF_RECORD_COUNT = 65536;
+    
     private String filename;
     
-    private HashMap<Long, Integer> kc;
+    private KhetSorter sorter;
+    
+    /** Layout of the sorted file. */
+    private SegmentFormat segmentFormat;
     
     private int kSize;
     
     private int lowerThreshold;
     private int upperThreshold;
     
+    /** Maximum number of records sorted at a time. */
+    private int chunkRecordCount;
+    
+    /** Sorted files written by the last read. */
+    private List<File> sortedFileList;
+    
     public KhetReaderBin(String filename, int kSize, int upperThreshold)
     throws NullPointerException, IllegalArgumentException {
+        this(filename, kSize, upperThreshold, SortMode.RUN);
+    }
+    
+    public KhetReaderBin(String filename, int kSize, int upperThreshold, SortMode sortMode)
+    throws NullPointerException, IllegalArgumentException {
+        this(filename, kSize, upperThreshold, sortMode, SegmentFormat.SORT);
+    }
+    
+    public KhetReaderBin(String filename, int kSize, int upperThreshold, SortMode sortMode, SegmentFormat segmentFormat)
+    throws NullPointerException, IllegalArgumentException {
+        this(filename, kSize, upperThreshold, sortMode, segmentFormat, DEFAULT_SORT_MEMORY);
+    }
+    
+    /**
+     * Create a bin reader.
+     * 
+     * @param filename Bin file name.
+     * @param kSize K-mer size.
+     * @param upperThreshold Upper count threshold.
+     * @param sortMode Sorts records of the bin file.
+     * @param segmentFormat Layout of the sorted files.
+     * @param sortMemory Memory for sorting in bytes. A bin file with more records than fit
+     *   in this memory is sorted in chunks, and each chunk is written to its own sorted file.
+     * 
+     * @throws NullPointerException If <code>sortMode</code> or <code>segmentFormat</code> is
+     *   <code>null</code>.
+     * @throws IllegalArgumentException If <code>sortMemory</code> is less than the memory
+     *   for one record.
+     */
+    public KhetReaderBin(String filename, int kSize, int upperThreshold, SortMode sortMode, SegmentFormat segmentFormat, long sortMemory)
+    throws NullPointerException, IllegalArgumentException {
+        this(filename, kSize, upperThreshold, sortMode, segmentFormat, sortMemory, null);
+    }
+    
+    /**
+     * Create a bin reader that sorts on a fork-join pool.
+     * 
+     * @param filename Bin file name.
+     * @param kSize K-mer size.
+     * @param upperThreshold Upper count threshold.
+     * @param sortMode Sorts records of the bin file.
+     * @param segmentFormat Layout of the sorted files.
+     * @param sortMemory Memory for sorting in bytes.
+     * @param sortPool Pool large chunks are sorted on, or <code>null</code> to sort on
+     *   the calling thread. Readers sharing a pool share its threads.
+     * 
+     * @throws NullPointerException If <code>sortMode</code> or <code>segmentFormat</code> is
+     *   <code>null</code>.
+     * @throws IllegalArgumentException If <code>sortMemory</code> is less than the memory
+     *   for one record.
+     */
+    public KhetReaderBin(String filename, int kSize, int upperThreshold, SortMode sortMode, SegmentFormat segmentFormat, long sortMemory, ForkJoinPool sortPool)
+    throws NullPointerException, IllegalArgumentException {
+        if (sortMode == null)
+            throw new NullPointerException("Cannot create bin reader with sort mode: null");
+        
+        if (segmentFormat == null)
+            throw new NullPointerException("Cannot create bin reader with segment format: null");
+        
+        if (sortMemory < SORT_BYTES_PER_RECORD)
+            throw new IllegalArgumentException("Cannot create bin reader with sort memory less than " + SORT_BYTES_PER_RECORD + " bytes: " + sortMemory);
+        
+        this.chunkRecordCount = (int) Math.min(sortMemory / SORT_BYTES_PER_RECORD, Integer.MAX_VALUE - 8);
+        this.sortedFileList = new ArrayList<File>();
+        this.segmentFormat = segmentFormat;
         this.filename = filename;
         this.kSize = kSize;
         //this.lowerThreshold = lowerThreshold;
         this.upperThreshold = upperThreshold;
+        this.sorter = sortMode.newSorter(new KmerRotator(kSize), sortPool);
         return;
     }
     
@@ -45,108 +141,252 @@ public class KhetReaderBin implements KhetReader {
         
     }
     
-    @SuppressWarnings("resource")
+    /**
+     * Get the memory for sorting one bin file from component properties.
+     * 
+     * @param compProp Component properties. If <code>null</code>, the default is returned.
+     * 
+     * @return Sort memory in bytes.
+     * 
+     * @throws IllegalArgumentException If the sort memory property is not a valid size.
+     */
+    public static long getSortMemory(Properties compProp)
+    throws IllegalArgumentException {
+        
+        long sortMemory;
+        String value;
+        
+        if (compProp == null || (value = compProp.getProperty(PROP_SORT_MEMORY)) == null)
+            return DEFAULT_SORT_MEMORY;
+        
+        try {
+            sortMemory = Long.parseLong(value.trim());
+            
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Sort memory in properties (" + PROP_SORT_MEMORY + ") is not an integer: " + value);
+        }
+        
+        if (sortMemory < SORT_BYTES_PER_RECORD)
+            throw new IllegalArgumentException("Sort memory in properties (" + PROP_SORT_MEMORY + ") is less than " + SORT_BYTES_PER_RECORD + ": " + sortMemory);
+        
+        return sortMemory;
+    }
+    
+    /**
+     * Read a bin file and write its records in sorted files. Errors are printed, and no
+     * sorted file is left. Use <code>sort()</code> to get the error.
+     * 
+     * @param filename Bin file name.
+     */
     @Override
     public void read(String filename) {
-        // TODO Auto-generated method stub
         
         if(filename==null)
             return;
         
-        if(checkFile(filename))
-        {
-            Path path = Paths.get("./"+filename);
-            byte[] data = null;
-            try {
-                data = Files.readAllBytes(path);
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        try {
+            sort(filename);
+            
+        } catch (IOException e) {
+            System.out.println("IO error sorting bin file: " + filename + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+        
+        return;
+    }
+    
+    /**
+     * Read a bin file and write its records in sorted files. The file is read in chunks
+     * that fit the sort memory. The first chunk is written to <code>filename.sort</code>,
+     * and each following chunk <code>n</code> to <code>filename.n.sort</code> (<code>.pack</code>
+     * for <code>PACK</code> segments). Chunks
+     * may hold the same k-mers, and their counts are summed when the sorted files are
+     * merged. If an error occurs, sorted files written for this bin file are deleted.
+     * 
+     * @param filename Bin file name.
+     * 
+     * @return A list of sorted files.
+     * 
+     * @throws NullPointerException If <code>filename</code> is <code>null</code>.
+     * @throws FileNotFoundException If the bin file does not exist.
+     * @throws IOException If an IO error occurs, or if the bin file does not hold a
+     *   whole number of records.
+     */
+    public List<File> sort(String filename)
+    throws NullPointerException, FileNotFoundException, IOException {
+        return sort(filename, 0, -1);
+    }
+    
+    /**
+     * Sort a stretch of a bin file. The rest of the file is ignored, so a file that
+     * is still growing is sorted up to a known length, and a file that grew after it
+     * was sorted can be sorted from where the last sort stopped. If
+     * <code>sortOffset</code> is not <code>0</code>, the sorted files are named
+     * <code>filename.rN</code>, where <code>N</code> is the first record sorted,
+     * so they do not replace the sorted files of the earlier stretch.
+     * 
+     * @param filename Bin file name.
+     * @param sortOffset Byte offset of the first record to sort.
+     * @param sortLength Byte offset to sort up to, or -1 to sort to the end of the file.
+     * 
+     * @return A list of sorted files.
+     * 
+     * @throws NullPointerException If <code>filename</code> is <code>null</code>.
+     * @throws FileNotFoundException If the bin file does not exist.
+     * @throws IOException If an IO error occurs, if the file is shorter than
+     *   <code>sortLength</code>, or if <code>sortOffset</code> or <code>sortLength</code>
+     *   is not a whole number of records.
+     * 
+     * @see #sort(String)
+     */
+    public List<File> sort(String filename, long sortOffset, long sortLength)
+    throws NullPointerException, FileNotFoundException, IOException {
+        
+        if (filename == null)
+            throw new NullPointerException("Cannot sort bin file: null");
+        
+        sortedFileList.clear();
+        
+        if (! checkFile(filename))
+            throw new FileNotFoundException("Bin file does not exist: " + filename);
+        
+        try (FileInputStream in = new FileInputStream(filename)) {
+            FileChannel fc = in.getChannel();
+            long size = fc.size();
+            
+            if (sortLength >= 0) {
+                if (size < sortLength)
+                    throw new IOException("Bin file is shorter than the length to sort (" + sortLength + "): " + size);
+                
+                size = sortLength;
             }
             
-            ByteBuffer wrapped = ByteBuffer.wrap(data); // big-endian by default
-            int ul=data.length;
-            //System.out.println(filename+" length: "+ul);
-            data=null;
+            if (size % RECORD_SIZE != 0)
+                throw new IOException("Length to sort is not a multiple of the record size (" + RECORD_SIZE + "): " + size);
+            
+            if (sortOffset < 0 || sortOffset > size || sortOffset % RECORD_SIZE != 0)
+                throw new IOException("Offset to sort from is not a record in the length to sort (" + size + "): " + sortOffset);
+            
+            long recordsLeft = (size - sortOffset) / RECORD_SIZE;
+            int chunk = 0;
+            String sortName = (sortOffset == 0) ? filename : filename + ".r" + (sortOffset / RECORD_SIZE);
             
-            kc = new HashMap<Long, Integer>();
-            long kmer;
-            int count;
-            int length=0;
+            fc.position(sortOffset);
             
-            long am = (~0) << (kSize);
-            am = am << 1;
-            long cm = (long) (Math.pow(2, kSize-1)-1);
-            long bm = ~(am | cm);
-            //System.out.println("mask "+Long.toBinaryString(am)+" "+Long.toBinaryString(bm)+" "+Long.toBinaryString(cm));
-            //System.out.println(ul);
+            // Allocate once for all chunks of this file
+            int chunkSize = (int) Math.max(1, Math.min(recordsLeft, chunkRecordCount));
+            long[] kmer = new long[chunkSize];
+            int[] count = new int[chunkSize];
             
-            while(length<ul)
-            {
-                length=length+12;
-                kmer = wrapped.getLong(); // 1
-                //System.out.print(Long.toBinaryString(kmer)+"\t");
-                long ak = kmer & am;
-                long bk = (kmer & bm) >> (kSize - 1);
-                long ck = (kmer & cm) << 2;
-                kmer = ak | bk | ck;
-                count = wrapped.getInt();
-                //				if(count < lowerThreshold || count > upperThreshold)
-                //					continue;
-                //System.out.println("changed: "+Long.toBinaryString(kmer));
-                kc.put(kmer, count);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUF_RECORD_COUNT * RECORD_SIZE); // big-endian by default
+            buffer.flip();
+            
+            do {
+                int length = (int) Math.min(recordsLeft, chunkSize);
                 
-                //System.out.println(length);
-            }
-            //wrapped.clear();
-            wrapped.flip();
+                for (int index = 0; index < length; ++index)
+                {
+                    if (buffer.remaining() < RECORD_SIZE)
+                        fill(fc, buffer);
+                    
+                    kmer[index] = buffer.getLong();
+                    count[index] = buffer.getInt();
+                    //				if(count < lowerThreshold || count > upperThreshold)
+                    //					continue;
+                }
+                
+                recordsLeft -= length;
+                
+                //sort
+                length = sorter.sort(kmer, count, length);
+                
+                //writer: add the file first so a partial file is deleted on error
+                File sortFile = new File((chunk == 0) ? sortName + segmentFormat.getExtension() : sortName + "." + chunk + segmentFormat.getExtension());
+                sortedFileList.add(sortFile);
+                write(sortFile.getPath(), kmer, count, length);
+                
+                ++chunk;
+                
+            } while (recordsLeft > 0);
             
-            //sort
-            Map<Long, Integer> map = new TreeMap<Long, Integer>(kc);
-            //System.out.println("After Sorting:");
-            kc.clear();
+            if (chunk > 1)
+                System.out.println("sorted " + filename + " in " + chunk + " chunks");
             
-            //iterate map
-            Iterator<Long> keySetIterator = map.keySet().iterator();
-            while(keySetIterator.hasNext())
-            {
-                long key = keySetIterator.next();
-                wrapped.putLong(key);
-                wrapped.putInt(map.get(key));
-                //System.out.println("key: " + key + " value: " + map.get(key));
-            }
-            map.clear();
+        } catch (IOException ex) {
             
-            //writer
-            OutputStream output = null;
-            try {
-                output = new BufferedOutputStream(new FileOutputStream(filename+".sort"));
+            // Partial counts must not reach the merge
+            for (File sortFile : sortedFileList) {
                 try {
-                    //System.out.println("filezie: "+wrapped.array().length);
-                    //System.out.println("dump sort file: "+filename);
-                    output.write(wrapped.array());
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    sortFile.delete();
+                    
+                } catch (SecurityException delEx) {
+                    // Ignore - best effort delete
                 }
-            } catch (FileNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }      
-            wrapped.clear();
-            try {
-                output.close();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
             }
-            return;
+            
+            sortedFileList.clear();
+            
+            throw ex;
         }
-        else
-        {
-            System.out.println("file " + filename + "does not exists");
-            return;
+        
+        return getSortedFiles();
+    }
+    
+    /**
+     * Get the sorted files written by the last call to <code>read()</code> or
+     * <code>sort()</code>. If the bin file could not be sorted, this list is empty.
+     * 
+     * @return A list of sorted files.
+     */
+    public List<File> getSortedFiles() {
+        return new ArrayList<File>(sortedFileList);
+    }
+    
+    /**
+     * Compact the buffer and fill it from the bin file.
+     * 
+     * @param fc Bin file channel.
+     * @param buffer Buffer to fill. It is ready for reading when this method returns.
+     * 
+     * @throws IOException If an IO error occurs or the file ends before a whole record
+     *   is read.
+     */
+    private static void fill(FileChannel fc, ByteBuffer buffer)
+    throws IOException {
+        
+        buffer.compact();
+        
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer) < 0)
+                break;
         }
+        
+        buffer.flip();
+        
+        if (buffer.remaining() < RECORD_SIZE)
+            throw new EOFException("Bin file ended in the middle of a record");
+        
+        return;
+    }
+    
+    /**
+     * Write sorted records.
+     * 
+     * @param sortFilename Name of the file to write.
+     * @param kmer Sorted k-mers.
+     * @param count Counts where each count[n] is the count of kmer[n].
+     * @param length Number of records to write.
+     * 
+     * @throws IOException If an IO error occurs while writing.
+     */
+    private void write(String sortFilename, long[] kmer, int[] count, int length)
+    throws IOException {
+        
+        try (SegmentWriter writer = new SegmentWriter(new File(sortFilename), segmentFormat)) {
+            writer.write(kmer, count, length);
+        }
+        
+        return;
     }
     
     @Override
@@ -0,0 +1,39 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.sorter;
+
+/**
+ * Interface for sorters. Sorters receive records in the order they were read from
+ * a KAnalyze segment, rotate each k-mer with <code>KmerRotator</code>, and leave
+ * the records sorted by rotated k-mer. Counts of equal k-mers are summed.
+ */
+public interface KhetSorter {
+
+	/**
+	 * Sort records in place.
+	 * 
+	 * @param kmer K-mers in the order they were read. Sorted rotated k-mers when
+	 *   this method returns.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param length Number of records in <code>kmer</code> and <code>count</code>.
+	 * 
+	 * @return Number of records left in <code>kmer</code> and <code>count</code>.
+	 */
+	public int sort(long[] kmer, int[] count, int length);
+	
+}
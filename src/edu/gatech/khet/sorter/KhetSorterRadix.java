@@ -0,0 +1,399 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.sorter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts k-mer records with an LSD radix sort on primitive arrays. K-mers are
+ * never boxed, and the sort takes one scratch copy of the records.
+ * <p>
+ * With a fork-join pool, large inputs are first partitioned by the highest
+ * bits of the k-mer in parallel, and each partition is radix sorted on the
+ * remaining bits as its own task. Tasks of all files sorted on the same pool
+ * share its threads, so one large file uses all threads while many small
+ * files are sorted side by side.
+ */
+public class KhetSorterRadix implements KhetSorter {
+
+	/** Number of key bits sorted in one pass. */
+	public static final int DIGIT_BITS = 16;
+
+	/** Number of buckets in one pass. */
+	private static final int RADIX = 1 << DIGIT_BITS;
+
+	/** Mask of one digit. */
+	private static final int DIGIT_MASK = RADIX - 1;
+
+	/** Number of high key bits records are partitioned by in a parallel sort. */
+	public static final int PARTITION_BITS = 8;
+
+	/** Minimum number of records sorted in parallel. */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/** Number of histogram and scatter tasks per pool thread in a parallel sort. */
+	private static final int TASKS_PER_THREAD = 4;
+
+	/** Bucket array of each pool thread. */
+	private static final ThreadLocal<int[]> BUCKET = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[RADIX];
+		}
+	};
+
+	/** Rotates k-mers before sorting. */
+	private final KmerRotator rotator;
+
+	/** Number of bits in a k-mer. */
+	private final int keyBits;
+
+	/** Pool for parallel sorts, or <code>null</code> to sort on the calling thread. */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a new radix sorter.
+	 *
+	 * @param rotator K-mer rotator.
+	 *
+	 * @throws NullPointerException If <code>rotator</code> is <code>null</code>.
+	 */
+	public KhetSorterRadix(KmerRotator rotator)
+			throws NullPointerException {
+
+		this(rotator, null);
+
+		return;
+	}
+
+	/**
+	 * Create a new radix sorter.
+	 *
+	 * @param rotator K-mer rotator.
+	 * @param pool Pool for parallel sorts, or <code>null</code> to sort on the
+	 *   calling thread.
+	 *
+	 * @throws NullPointerException If <code>rotator</code> is <code>null</code>.
+	 */
+	public KhetSorterRadix(KmerRotator rotator, ForkJoinPool pool)
+			throws NullPointerException {
+
+		if (rotator == null)
+			throw new NullPointerException("Cannot create radix sorter with rotator: null");
+
+		this.rotator = rotator;
+		this.keyBits = rotator.kSize * 2;
+		this.pool = pool;
+
+		return;
+	}
+
+	@Override
+	public int sort(long[] kmer, int[] count, int length) {
+
+		for (int index = 0; index < length; ++index)
+			kmer[index] = rotator.rotate(kmer[index]);
+
+		return sortRotated(kmer, count, length);
+	}
+
+	/**
+	 * Sort records that are already rotated and sum counts of equal k-mers.
+	 *
+	 * @param kmer Rotated k-mers.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param length Number of records in <code>kmer</code> and <code>count</code>.
+	 *
+	 * @return Number of records left after equal k-mers are summed.
+	 */
+	public int sortRotated(long[] kmer, int[] count, int length) {
+
+		long[] dstKmer;
+		int[] dstCount;
+
+		if (length < 2)
+			return length;
+
+		dstKmer = new long[length];
+		dstCount = new int[length];
+
+		if (pool != null && length >= PARALLEL_THRESHOLD && keyBits > PARTITION_BITS) {
+			pool.invoke(new PartitionTask(kmer, count, dstKmer, dstCount, length));
+
+		} else if (radixPasses(kmer, count, dstKmer, dstCount, 0, length, keyBits, new int[RADIX])) {
+			System.arraycopy(dstKmer, 0, kmer, 0, length);
+			System.arraycopy(dstCount, 0, count, 0, length);
+		}
+
+		return sum(kmer, count, length);
+	}
+
+	/**
+	 * Radix sort a range of records by their low key bits.
+	 *
+	 * @param kmer K-mers to sort.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param scratchKmer Scratch k-mers at least as long as the range.
+	 * @param scratchCount Scratch counts at least as long as the range.
+	 * @param from First record of the range.
+	 * @param to First record after the range.
+	 * @param bits Number of low key bits to sort by.
+	 * @param bucket Bucket array of <code>RADIX</code> elements.
+	 *
+	 * @return <code>true</code> if the sorted range is in the scratch arrays, and
+	 *   <code>false</code> if it is in <code>kmer</code> and <code>count</code>.
+	 */
+	private static boolean radixPasses(long[] kmer, int[] count, long[] scratchKmer, int[] scratchCount, int from, int to, int bits, int[] bucket) {
+
+		long[] srcKmer = kmer;  // Records sorted by the digits processed so far
+		int[] srcCount = count;
+		long[] dstKmer = scratchKmer;  // Records sorted by one more digit
+		int[] dstCount = scratchCount;
+
+		long[] tmpKmer;
+		int[] tmpCount;
+
+		int digit;
+		int next;
+		int mask;
+
+		for (int shift = 0; shift < bits; shift += DIGIT_BITS) {
+
+			mask = (bits - shift < DIGIT_BITS) ? (1 << (bits - shift)) - 1 : DIGIT_MASK;
+
+			Arrays.fill(bucket, 0);
+
+			for (int index = from; index < to; ++index)
+				++bucket[(int) (srcKmer[index] >>> shift) & mask];
+
+			// Skip the pass if all records have the same digit
+			if (bucket[(int) (srcKmer[from] >>> shift) & mask] == to - from)
+				continue;
+
+			next = from;
+
+			for (digit = 0; digit <= mask; ++digit) {
+				int size = bucket[digit];
+				bucket[digit] = next;
+				next += size;
+			}
+
+			for (int index = from; index < to; ++index) {
+				next = bucket[(int) (srcKmer[index] >>> shift) & mask]++;
+
+				dstKmer[next] = srcKmer[index];
+				dstCount[next] = srcCount[index];
+			}
+
+			tmpKmer = srcKmer;
+			tmpCount = srcCount;
+			srcKmer = dstKmer;
+			srcCount = dstCount;
+			dstKmer = tmpKmer;
+			dstCount = tmpCount;
+		}
+
+		return srcKmer == scratchKmer;
+	}
+
+	/**
+	 * Sum equal k-mers of sorted records in place.
+	 *
+	 * @param kmer Sorted k-mers.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param length Number of records.
+	 *
+	 * @return Number of records left after equal k-mers are summed.
+	 */
+	private static int sum(long[] kmer, int[] count, int length) {
+
+		int next = 0;
+
+		for (int index = 1; index < length; ++index) {
+
+			if (kmer[index] == kmer[next]) {
+				count[next] += count[index];
+
+			} else {
+				++next;
+				kmer[next] = kmer[index];
+				count[next] = count[index];
+			}
+		}
+
+		return next + 1;
+	}
+
+	/**
+	 * Sorts records in parallel. Records are scattered into the scratch arrays by
+	 * their high <code>PARTITION_BITS</code> bits, and each partition is sorted on
+	 * the remaining bits by its own task. Sorted records end in the caller's arrays.
+	 */
+	private class PartitionTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/** K-mers to sort. */
+		private final long[] kmer;
+
+		/** Counts of <code>kmer</code>. */
+		private final int[] count;
+
+		/** Scratch k-mers. */
+		private final long[] scratchKmer;
+
+		/** Scratch counts. */
+		private final int[] scratchCount;
+
+		/** Number of records. */
+		private final int length;
+
+		/**
+		 * Create a new partition task.
+		 *
+		 * @param kmer K-mers to sort.
+		 * @param count Counts where each count[n] is the count of kmer[n].
+		 * @param scratchKmer Scratch k-mers.
+		 * @param scratchCount Scratch counts.
+		 * @param length Number of records.
+		 */
+		public PartitionTask(long[] kmer, int[] count, long[] scratchKmer, int[] scratchCount, int length) {
+			this.kmer = kmer;
+			this.count = count;
+			this.scratchKmer = scratchKmer;
+			this.scratchCount = scratchCount;
+			this.length = length;
+
+			return;
+		}
+
+		@Override
+		protected void compute() {
+
+			final int shift = keyBits - PARTITION_BITS;
+			final int partitions = 1 << PARTITION_BITS;
+			final int chunkCount = Math.max(1, Math.min(getPool().getParallelism() * TASKS_PER_THREAD, length / PARALLEL_THRESHOLD * TASKS_PER_THREAD));
+			final int[][] chunkBucket = new int[chunkCount][partitions];  // Histogram, then the next free index of each chunk
+			final int[] partitionStart = new int[partitions + 1];
+
+			List<ForkJoinTask<?>> taskList = new ArrayList<ForkJoinTask<?>>();
+			int next;
+
+			// Count partitions of each chunk
+			for (int chunk = 0; chunk < chunkCount; ++chunk) {
+				final int from = chunkStart(chunk, chunkCount);
+				final int to = chunkStart(chunk + 1, chunkCount);
+				final int[] bucket = chunkBucket[chunk];
+
+				taskList.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						for (int index = from; index < to; ++index)
+							++bucket[(int) (kmer[index] >>> shift)];
+					}
+				});
+			}
+
+			invokeAll(taskList);
+			taskList.clear();
+
+			// Each chunk writes its part of a partition after the parts of earlier chunks
+			next = 0;
+
+			for (int partition = 0; partition < partitions; ++partition) {
+				partitionStart[partition] = next;
+
+				for (int chunk = 0; chunk < chunkCount; ++chunk) {
+					int size = chunkBucket[chunk][partition];
+					chunkBucket[chunk][partition] = next;
+					next += size;
+				}
+			}
+
+			partitionStart[partitions] = next;
+
+			// Scatter chunks into partitions
+			for (int chunk = 0; chunk < chunkCount; ++chunk) {
+				final int from = chunkStart(chunk, chunkCount);
+				final int to = chunkStart(chunk + 1, chunkCount);
+				final int[] bucket = chunkBucket[chunk];
+
+				taskList.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						for (int index = from; index < to; ++index) {
+							int dst = bucket[(int) (kmer[index] >>> shift)]++;
+
+							scratchKmer[dst] = kmer[index];
+							scratchCount[dst] = count[index];
+						}
+					}
+				});
+			}
+
+			invokeAll(taskList);
+			taskList.clear();
+
+			// Sort partitions on the low bits
+			for (int partition = 0; partition < partitions; ++partition) {
+				final int from = partitionStart[partition];
+				final int to = partitionStart[partition + 1];
+
+				if (from == to)
+					continue;
+
+				taskList.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						if (! radixPasses(scratchKmer, scratchCount, kmer, count, from, to, shift, BUCKET.get())) {
+							System.arraycopy(scratchKmer, from, kmer, from, to - from);
+							System.arraycopy(scratchCount, from, count, from, to - from);
+						}
+					}
+				});
+			}
+
+			invokeAll(taskList);
+
+			return;
+		}
+
+		/**
+		 * Get the first record of a chunk.
+		 *
+		 * @param chunk Chunk index.
+		 * @param chunkCount Number of chunks.
+		 *
+		 * @return First record of <code>chunk</code>.
+		 */
+		private int chunkStart(int chunk, int chunkCount) {
+			return (int) ((long) length * chunk / chunkCount);
+		}
+	}
+}
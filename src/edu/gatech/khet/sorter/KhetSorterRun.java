@@ -0,0 +1,409 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.sorter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Sorts k-mer records that KAnalyze already wrote in sorted order. KAnalyze sorts
+ * a segment by (left flank, middle base, right flank), so after rotation each
+ * left flank block is four sorted runs, one per middle base. This sorter merges
+ * the runs of each block in one linear pass. If the records are not in KAnalyze
+ * order, it falls back to <code>KhetSorterRadix</code>.
+ * <p>
+ * Blocks are independent, so with a fork-join pool, large inputs are split at
+ * block boundaries and the ranges are merged by parallel tasks.
+ */
+public class KhetSorterRun implements KhetSorter {
+
+	/** Initial size of the block merge buffer. */
+	private static final int DEFAULT_BLOCK_SIZE = 64;
+
+	/** Number of ranges per pool thread in a parallel sort. */
+	private static final int TASKS_PER_THREAD = 4;
+
+	/** Rotates k-mers. */
+	private final KmerRotator rotator;
+
+	/** Sorter used when records are not in KAnalyze order. */
+	private final KhetSorterRadix fallback;
+
+	/** Merges blocks on the calling thread. */
+	private final BlockMerger merger;
+
+	/** Pool for parallel sorts, or <code>null</code> to sort on the calling thread. */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a new run sorter.
+	 *
+	 * @param rotator K-mer rotator.
+	 *
+	 * @throws NullPointerException If <code>rotator</code> is <code>null</code>.
+	 */
+	public KhetSorterRun(KmerRotator rotator)
+			throws NullPointerException {
+
+		this(rotator, null);
+
+		return;
+	}
+
+	/**
+	 * Create a new run sorter.
+	 *
+	 * @param rotator K-mer rotator.
+	 * @param pool Pool for parallel sorts, or <code>null</code> to sort on the
+	 *   calling thread. The radix fallback uses the same pool.
+	 *
+	 * @throws NullPointerException If <code>rotator</code> is <code>null</code>.
+	 */
+	public KhetSorterRun(KmerRotator rotator, ForkJoinPool pool)
+			throws NullPointerException {
+
+		if (rotator == null)
+			throw new NullPointerException("Cannot create run sorter with rotator: null");
+
+		this.rotator = rotator;
+		this.fallback = new KhetSorterRadix(rotator, pool);
+		this.pool = pool;
+		this.merger = new BlockMerger();
+
+		return;
+	}
+
+	@Override
+	public int sort(long[] kmer, int[] count, int length) {
+
+		int end;
+
+		if (pool != null && length >= KhetSorterRadix.PARALLEL_THRESHOLD)
+			return parallelSort(kmer, count, length);
+
+		end = merger.sortRange(kmer, count, 0, length);
+
+		if (end < length) {
+			rotate(kmer, end, length);
+			return fallBack(kmer, count, length);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Split records into ranges at block boundaries and merge the ranges on the pool.
+	 *
+	 * @param kmer K-mers in KAnalyze order.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param length Number of records.
+	 *
+	 * @return Number of records left after equal k-mers are summed.
+	 */
+	private int parallelSort(long[] kmer, int[] count, int length) {
+
+		int rangeCount = Math.min(pool.getParallelism() * TASKS_PER_THREAD, length / DEFAULT_BLOCK_SIZE);
+		List<Integer> splitList = new ArrayList<Integer>();
+		List<RangeTask> taskList = new ArrayList<RangeTask>();
+		boolean ordered = true;
+		int split;
+
+		// Split at the first block boundary after an even share of records. Ranges
+		// cannot check the order across their ends, so it is checked here.
+		splitList.add(0);
+
+		for (int range = 1; range < rangeCount; ++range) {
+			split = Math.max((int) ((long) length * range / rangeCount), splitList.get(splitList.size() - 1) + 1);
+
+			while (split < length && rotator.leftFlank(kmer[split]) == rotator.leftFlank(kmer[split - 1]))
+				++split;
+
+			if (split >= length)
+				break;
+
+			if (kmer[split] <= kmer[split - 1])
+				ordered = false;
+
+			splitList.add(split);
+		}
+
+		splitList.add(length);
+
+		if (! ordered) {
+			rotate(kmer, 0, length);
+			return fallBack(kmer, count, length);
+		}
+
+		for (int range = 0; range < splitList.size() - 1; ++range)
+			taskList.add(new RangeTask(kmer, count, splitList.get(range), splitList.get(range + 1)));
+
+		for (RangeTask task : taskList)
+			pool.execute(task);
+
+		for (RangeTask task : taskList) {
+			if (task.join() < task.to)
+				ordered = false;
+		}
+
+		if (ordered)
+			return length;
+
+		// Rotate the records each range left unrotated and sort everything
+		for (RangeTask task : taskList)
+			rotate(kmer, task.join(), task.to);
+
+		return fallBack(kmer, count, length);
+	}
+
+	/**
+	 * Rotate the records a merge left unrotated.
+	 *
+	 * @param kmer K-mers.
+	 * @param from First record to rotate.
+	 * @param to First record after the records to rotate.
+	 */
+	private void rotate(long[] kmer, int from, int to) {
+
+		for (int index = from; index < to; ++index)
+			kmer[index] = rotator.rotate(kmer[index]);
+
+		return;
+	}
+
+	/**
+	 * Sort with the radix sorter after a record out of KAnalyze order was found.
+	 *
+	 * @param kmer Rotated k-mers.
+	 * @param count Counts where each count[n] is the count of kmer[n].
+	 * @param length Number of records.
+	 *
+	 * @return Number of records left after equal k-mers are summed.
+	 */
+	private int fallBack(long[] kmer, int[] count, int length) {
+
+		System.out.println("Records are not in KAnalyze order, sorting with radix sort");
+
+		return fallback.sortRotated(kmer, count, length);
+	}
+
+	/**
+	 * Merges the middle base runs of left flank blocks. Holds the buffers of one
+	 * thread, so each range task of a parallel sort has its own merger.
+	 */
+	private class BlockMerger {
+
+		/** Merged k-mers of the current block. */
+		private long[] blockKmer;
+
+		/** Merged counts of the current block. */
+		private int[] blockCount;
+
+		/** Next record of each middle base run. */
+		private final int[] runIndex;
+
+		/** End of each middle base run. */
+		private final int[] runEnd;
+
+		/** Rotated k-mer at <code>runIndex</code> of each run. */
+		private final long[] head;
+
+		/**
+		 * Create a new block merger.
+		 */
+		public BlockMerger() {
+
+			blockKmer = new long[DEFAULT_BLOCK_SIZE];
+			blockCount = new int[DEFAULT_BLOCK_SIZE];
+
+			runIndex = new int[4];
+			runEnd = new int[4];
+			head = new long[4];
+
+			return;
+		}
+
+		/**
+		 * Merge the blocks of a range of records. The range must start at a block
+		 * boundary and end at a block boundary or at the last record.
+		 *
+		 * @param kmer K-mers in KAnalyze order.
+		 * @param count Counts where each count[n] is the count of kmer[n].
+		 * @param from First record of the range.
+		 * @param to First record after the range.
+		 *
+		 * @return <code>to</code> if all blocks were merged, or the first record that
+		 *   is not rotated if a record out of KAnalyze order was found.
+		 */
+		public int sortRange(long[] kmer, int[] count, int from, int to) {
+
+			int start = from;  // First record of the current block
+			int end;           // First record after the current block
+			long flank;
+
+			while (start < to) {
+
+				flank = rotator.leftFlank(kmer[start]);
+				end = start + 1;
+
+				// Find the end of the block and check KAnalyze order
+				while (end < to && rotator.leftFlank(kmer[end]) == flank) {
+
+					if (kmer[end] <= kmer[end - 1])
+						return start;
+
+					++end;
+				}
+
+				if (end < to && kmer[end] <= kmer[end - 1])
+					return start;
+
+				mergeBlock(kmer, count, start, end);
+
+				start = end;
+			}
+
+			return to;
+		}
+
+		/**
+		 * Merge the middle base runs of one left flank block in place.
+		 *
+		 * @param kmer K-mers in KAnalyze order. Records in the block are rotated when
+		 *   this method returns.
+		 * @param count Counts where each count[n] is the count of kmer[n].
+		 * @param start First record of the block.
+		 * @param end First record after the block.
+		 */
+		private void mergeBlock(long[] kmer, int[] count, int start, int end) {
+
+			int size = end - start;
+			int run;
+			int out;
+
+			if (size == 1) {
+				kmer[start] = rotator.rotate(kmer[start]);
+				return;
+			}
+
+			// Find runs. Missing bases get empty runs.
+			run = 0;
+
+			for (int base = 0; base < 4; ++base)
+				runEnd[base] = 0;
+
+			for (int index = start; index < end; ++index) {
+				int base = rotator.middleBase(kmer[index]);
+
+				while (run <= base) {
+					runIndex[run] = index;
+					++run;
+				}
+
+				runEnd[base] = index + 1;
+			}
+
+			while (run < 4) {
+				runIndex[run] = end;
+				++run;
+			}
+
+			for (run = 0; run < 4; ++run) {
+				if (runEnd[run] < runIndex[run])
+					runEnd[run] = runIndex[run];
+
+				if (runIndex[run] < runEnd[run])
+					head[run] = rotator.rotate(kmer[runIndex[run]]);
+				else
+					head[run] = Long.MAX_VALUE;
+			}
+
+			if (blockKmer.length < size) {
+				blockKmer = new long[Math.max(size, blockKmer.length * 2)];
+				blockCount = new int[blockKmer.length];
+			}
+
+			// Merge runs
+			for (out = 0; out < size; ++out) {
+
+				run = 0;
+
+				for (int next = 1; next < 4; ++next)
+					if (head[next] < head[run])
+						run = next;
+
+				blockKmer[out] = head[run];
+				blockCount[out] = count[runIndex[run]];
+
+				if (++runIndex[run] < runEnd[run])
+					head[run] = rotator.rotate(kmer[runIndex[run]]);
+				else
+					head[run] = Long.MAX_VALUE;
+			}
+
+			System.arraycopy(blockKmer, 0, kmer, start, size);
+			System.arraycopy(blockCount, 0, count, start, size);
+
+			return;
+		}
+	}
+
+	/**
+	 * Merges the blocks of one range. Each task has its own block merger so that the
+	 * block buffers are not shared.
+	 */
+	private class RangeTask extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		/** K-mers in KAnalyze order. */
+		private final long[] kmer;
+
+		/** Counts of <code>kmer</code>. */
+		private final int[] count;
+
+		/** First record of the range. */
+		public final int from;
+
+		/** First record after the range. */
+		public final int to;
+
+		/**
+		 * Create a new range task.
+		 *
+		 * @param kmer K-mers in KAnalyze order.
+		 * @param count Counts where each count[n] is the count of kmer[n].
+		 * @param from First record of the range.
+		 * @param to First record after the range.
+		 */
+		public RangeTask(long[] kmer, int[] count, int from, int to) {
+			this.kmer = kmer;
+			this.count = count;
+			this.from = from;
+			this.to = to;
+
+			return;
+		}
+
+		@Override
+		protected Integer compute() {
+			return new BlockMerger().sortRange(kmer, count, from, to);
+		}
+	}
+}
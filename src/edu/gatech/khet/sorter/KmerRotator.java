@@ -0,0 +1,110 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.sorter;
+
+import edu.gatech.kanalyze.util.KmerUtil;
+
+/**
+ * Moves the middle base of a k-mer to the lowest two bits. KAnalyze orders k-mers
+ * by (left flank, middle base, right flank). After rotation, k-mers order by
+ * (left flank, right flank, middle base), so all alleles of a flank are adjacent.
+ */
+public class KmerRotator {
+
+	/** K-mer size. */
+	public final int kSize;
+
+	/** Mask of the left flank. */
+	private final long am;
+
+	/** Mask of the middle base. */
+	private final long bm;
+
+	/** Mask of the right flank. */
+	private final long cm;
+
+	/**
+	 * Create a new rotator.
+	 *
+	 * @param kSize K-mer size.
+	 *
+	 * @throws IllegalArgumentException If <code>kSize</code> is not a valid k-mer size.
+	 */
+	public KmerRotator(int kSize)
+			throws IllegalArgumentException {
+
+		if (! KmerUtil.isValidSize(kSize))
+			throw new IllegalArgumentException("Cannot create k-mer rotator: K-mer size is not valid: " + kSize);
+
+		this.kSize = kSize;
+
+		long am = (~0) << (kSize);
+		am = am << 1;
+
+		this.am = am;
+		this.cm = (long) (Math.pow(2, kSize - 1) - 1);
+		this.bm = ~(this.am | this.cm);
+
+		return;
+	}
+
+	/**
+	 * Rotate a k-mer read from a KAnalyze segment.
+	 *
+	 * @param kmer K-mer in KAnalyze order.
+	 *
+	 * @return Rotated k-mer.
+	 */
+	public long rotate(long kmer) {
+		return (kmer & am) | ((kmer & bm) >> (kSize - 1)) | ((kmer & cm) << 2);
+	}
+
+	/**
+	 * Undo <code>rotate()</code>.
+	 *
+	 * @param kmer Rotated k-mer.
+	 *
+	 * @return K-mer in KAnalyze order.
+	 */
+	public long unrotate(long kmer) {
+		return (kmer & am) | ((kmer & 0x3L) << (kSize - 1)) | ((kmer >> 2) & cm);
+	}
+
+	/**
+	 * Get the left flank bits of a k-mer. The left flank is at the same position
+	 * before and after rotation.
+	 *
+	 * @param kmer K-mer.
+	 *
+	 * @return <code>kmer</code> with all bits except the left flank cleared.
+	 */
+	public long leftFlank(long kmer) {
+		return kmer & am;
+	}
+
+	/**
+	 * Get the middle base of a k-mer in KAnalyze order.
+	 *
+	 * @param kmer K-mer in KAnalyze order.
+	 *
+	 * @return Middle base (0 to 3).
+	 */
+	public int middleBase(long kmer) {
+		return (int) ((kmer & bm) >> (kSize - 1));
+	}
+}
@@ -0,0 +1,85 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.sorter;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Algorithm used to sort KAnalyze segments.
+ */
+public enum SortMode {
+	
+	/** Merge the middle base runs KAnalyze wrote, fall back to radix sort if the segment is not in KAnalyze order. */
+	RUN,
+	
+	/** Always radix sort. */
+	RADIX;
+	
+	/**
+	 * Get the sort mode by name.
+	 * 
+	 * @param modeName Name of the sort mode.
+	 * 
+	 * @return The sort mode if found, and <code>null</code> if
+	 *   not found or if <code>modeName</code> is <code>null</code>.
+	 */
+	public static SortMode getMode(String modeName) {
+		
+		if (modeName == null || modeName.isEmpty())
+			return null;
+		
+		modeName = modeName.toUpperCase();
+		
+		for (SortMode mode : SortMode.values())
+			if (mode.toString().equals(modeName))
+				return mode;
+		
+		return null;
+	}
+	
+	/**
+	 * Create a sorter for this mode.
+	 * 
+	 * @param rotator K-mer rotator.
+	 * 
+	 * @return A new sorter.
+	 */
+	public KhetSorter newSorter(KmerRotator rotator) {
+		return newSorter(rotator, null);
+	}
+	
+	/**
+	 * Create a sorter for this mode that splits large sorts across a pool.
+	 * 
+	 * @param rotator K-mer rotator.
+	 * @param pool Pool for parallel sorts, or <code>null</code> to sort on the
+	 *   calling thread.
+	 * 
+	 * @return A new sorter.
+	 */
+	public KhetSorter newSorter(KmerRotator rotator, ForkJoinPool pool) {
+		
+		switch (this) {
+		case RADIX:
+			return new KhetSorterRadix(rotator, pool);
+			
+		default:
+			return new KhetSorterRun(rotator, pool);
+		}
+	}
+}
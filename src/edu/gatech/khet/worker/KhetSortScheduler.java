@@ -0,0 +1,205 @@
+package edu.gatech.khet.worker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import edu.gatech.khet.reader.KhetReaderBin;
+
+/**
+ * Schedules bin files for the sort workers. Ready files are taken largest first,
+ * so a large file found late does not start after the small ones and stretch the
+ * stage. Workers block until a file is ready or the scheduler is finished.
+ * <p>
+ * KAnalyze writes segments in place and does not rename or otherwise mark a
+ * finished segment, and several KAnalyze threads write segments at once, so the
+ * only certain signal is the end of KAnalyze. While it runs, a file is ready when
+ * its length is a whole number of records and did not change between two checks.
+ * If KAnalyze stops writing a segment for longer than the check interval, a
+ * partial file can still be taken. The length of each file is recorded when it
+ * is taken and sorted exactly, and <code>finish()</code> compares it to the final
+ * length. If a file grew after it was taken, the rest of the file is scheduled
+ * again. Its earlier sorted files are kept, since they may already be compacted,
+ * and the counts of both stretches are summed when the sorted files are merged.
+ */
+public class KhetSortScheduler {
+
+	/** Files ready to sort, largest first. */
+	private final PriorityBlockingQueue<BinFile> readyQueue;
+
+	/** Files KAnalyze may still be writing and their length at the last check. */
+	private final Map<File, Long> pendingMap;
+
+	/** Files taken while KAnalyze was running. Checked when the scheduler is finished. */
+	private final List<BinFile> earlyList;
+
+	/** Set when no more files are added. */
+	private boolean finished;
+
+	/** Marks the end of the ready queue. It is smaller than any file, so it is taken last. */
+	private static final BinFile END = new BinFile(null, 0, -1);
+
+	/**
+	 * Create a new scheduler.
+	 */
+	public KhetSortScheduler() {
+
+		readyQueue = new PriorityBlockingQueue<BinFile>();
+		pendingMap = new HashMap<File, Long>();
+		earlyList = new ArrayList<BinFile>();
+		finished = false;
+
+		return;
+	}
+
+	/**
+	 * Add a bin file found by the listener. It is sorted after its length stops changing.
+	 *
+	 * @param file Bin file.
+	 *
+	 * @throws NullPointerException If <code>file</code> is <code>null</code>.
+	 * @throws IllegalStateException If the scheduler is finished.
+	 */
+	public synchronized void add(File file)
+			throws NullPointerException, IllegalStateException {
+
+		if (file == null)
+			throw new NullPointerException("Cannot schedule bin file: null");
+
+		if (finished)
+			throw new IllegalStateException("Cannot schedule bin file after the scheduler is finished: " + file.getName());
+
+		if (! pendingMap.containsKey(file))
+			pendingMap.put(file, -1L);
+
+		return;
+	}
+
+	/**
+	 * Move files whose length did not change since the last check to the ready queue.
+	 */
+	public synchronized void check() {
+
+		Iterator<Map.Entry<File, Long>> iter = pendingMap.entrySet().iterator();
+
+		while (iter.hasNext()) {
+			Map.Entry<File, Long> entry = iter.next();
+			long length = entry.getKey().length();
+
+			if (length > 0 && length % KhetReaderBin.RECORD_SIZE == 0 && length == entry.getValue()) {
+				BinFile binFile = new BinFile(entry.getKey(), 0, length);
+
+				readyQueue.put(binFile);
+				earlyList.add(binFile);
+				iter.remove();
+
+			} else {
+				entry.setValue(length);
+			}
+		}
+
+		return;
+	}
+
+	/**
+	 * Signal that KAnalyze is done and no more files are added. All pending files
+	 * are ready, and workers stop after the ready queue is empty. Files taken while
+	 * KAnalyze was running are checked against their final length, and the records
+	 * written after they were taken are scheduled.
+	 */
+	public synchronized void finish() {
+
+		if (finished)
+			return;
+
+		for (File file : pendingMap.keySet())
+			readyQueue.put(new BinFile(file, 0, file.length()));
+
+		pendingMap.clear();
+
+		for (BinFile binFile : earlyList) {
+			long length = binFile.file.length();
+
+			if (length != binFile.length) {
+				System.out.println("Bin file grew after it was sorted: " + binFile.file.getName() + " (" + binFile.length + " of " + length + " bytes), sorting the rest");
+				readyQueue.put(new BinFile(binFile.file, binFile.length, length));
+			}
+		}
+
+		earlyList.clear();
+
+		finished = true;
+		readyQueue.put(END);
+
+		return;
+	}
+
+	/**
+	 * Wait for the next file to sort. Sort only the bytes from <code>offset</code> to
+	 * <code>length</code>, which is what the scheduler checks.
+	 *
+	 * @return The largest ready file, or <code>null</code> if the scheduler is
+	 *   finished and all files were taken.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public BinFile take()
+			throws InterruptedException {
+
+		BinFile binFile = readyQueue.take();
+
+		// Leave the end marker for the other workers
+		if (binFile == END) {
+			readyQueue.put(END);
+			return null;
+		}
+
+		return binFile;
+	}
+
+	/**
+	 * A stretch of a bin file, ordered largest first.
+	 */
+	public static class BinFile implements Comparable<BinFile> {
+
+		/** Bin file. */
+		public final File file;
+
+		/** Byte offset of the first record to sort. */
+		public final long offset;
+
+		/** Length of the file in bytes. Records up to this offset are sorted. */
+		public final long length;
+
+		/**
+		 * Create a new bin file.
+		 *
+		 * @param file Bin file.
+		 * @param offset Byte offset of the first record to sort.
+		 * @param length Length of the file in bytes.
+		 */
+		public BinFile(File file, long offset, long length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+
+			return;
+		}
+
+		@Override
+		public int compareTo(BinFile other) {
+
+			if (length - offset != other.length - other.offset)
+				return (length - offset > other.length - other.offset) ? -1 : 1;
+
+			if (file == null || other.file == null)
+				return (file == null) ? ((other.file == null) ? 0 : 1) : -1;
+
+			return file.getName().compareTo(other.file.getName());
+		}
+	}
+}
@@ -24,12 +24,6 @@ public class KhetWorkerCall implements KhetWorker{
 	public void work(String command) {	
 		KhetCaller kc = new KhetCaller(command);
 		kc.call();
-		try {
-			Thread.sleep(200);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
 	}
 
 	@Override
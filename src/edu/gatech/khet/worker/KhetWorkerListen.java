@@ -4,20 +4,27 @@ import java.io.File;
 import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import edu.gatech.khet.listener.KhetListener;
 
 public class KhetWorkerListen implements KhetWorker{
-	
+
+	/** Time between directory scans. */
+	public static final long SCAN_MILLIS = 1000;
+
 	private String command;
-	private LinkedBlockingQueue<String> lbq;
-	
-	
-	public KhetWorkerListen(String com, LinkedBlockingQueue<String> lbq)
+	private KhetSortScheduler scheduler;
+	private KhetListener listener;
+	private Timer timer;
+
+
+	public KhetWorkerListen(String com, KhetSortScheduler scheduler)
 	throws NullPointerException, IllegalArgumentException {
+		if (scheduler == null)
+			throw new NullPointerException("Cannot create listener with scheduler: null");
+
 		command = com;
-		this.lbq = lbq;
+		this.scheduler = scheduler;
 		return;
 	}
 
@@ -36,24 +43,49 @@ public class KhetWorkerListen implements KhetWorker{
 	}
 
 	@Override
-	public void work(String command) {
+	public synchronized void work(String command) {
 		// TODO Auto-generated method stub
-	    TimerTask task = new KhetListener(".", command ) {
+	    listener = new KhetListener(".", command ) {
 	        protected void onChange( File file, String action ) {
 	          // here we code the action on a change
-	          try {
-				lbq.put(file.getName());
-			} catch (InterruptedException ex) {
-				// TODO Auto-generated catch block
-				ex.printStackTrace();
-			}
+	          if (action.equals("add"))
+	            scheduler.add(new File(file.getName()));
 	          System.out.println( "File "+ file.getName() +": " + action );
 	        }
 	      };
 
-	      Timer timer = new Timer();
-	      timer.schedule( task , new Date(), 1000 );
+	      // Scan the directory, then hand files that stopped growing to the scheduler
+	      TimerTask task = new TimerTask() {
+	        public void run() {
+	          listener.run();
+	          scheduler.check();
+	        }
+	      };
+
+	      timer = new Timer("khet_listen_timer", true);
+	      timer.schedule( task , new Date(), SCAN_MILLIS );
+	}
+
+	/**
+	 * Signal that KAnalyze is done. The directory is scanned once more on the timer
+	 * thread, all files are handed to the scheduler, and the timer is stopped.
+	 */
+	public synchronized void finish() {
+
+		if (timer == null) {
+			scheduler.finish();
+			return;
+		}
+
+		timer.schedule(new TimerTask() {
+			public void run() {
+				listener.run();
+				scheduler.finish();
+				timer.cancel();
+			}
+		}, 0);
+
+		return;
 	}
-	
 
 }
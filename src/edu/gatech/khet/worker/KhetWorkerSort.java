@@ -1,32 +1,42 @@
 package edu.gatech.khet.worker;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
 import edu.gatech.khet.reader.KhetReaderBin;
+import edu.gatech.khet.sorter.SortMode;
 
 public class KhetWorkerSort implements KhetWorker {
 	
 	private String command;
-	private LinkedBlockingQueue<String> lbq;
-	//private static Boolean kf;
-	private KhetWorkerCall rc;
+	private KhetSortScheduler scheduler;
+	/** Set if a bin file could not be sorted. Read after the thread ends. */
+	private volatile boolean failed = false;
 	private int kSize;
 	private int numberofthread;
 	private int upperThreshold;
+	private SortMode sortMode;
+	private SegmentFormat segmentFormat;
+	private long sortMemory;
+	private ForkJoinPool sortPool;
 	private LinkedBlockingQueue<SegmentFile> segmentQueue = new LinkedBlockingQueue<SegmentFile>();
 	
-	public KhetWorkerSort(String com, KhetWorkerCall rc, LinkedBlockingQueue<String> lbq, LinkedBlockingQueue<SegmentFile> segmentQueue, int kSize, int numberofthread, int upperThreshold)
+	public KhetWorkerSort(String com, KhetSortScheduler scheduler, LinkedBlockingQueue<SegmentFile> segmentQueue, int kSize, int numberofthread, int upperThreshold, SortMode sortMode, SegmentFormat segmentFormat, long sortMemory, ForkJoinPool sortPool)
 	throws NullPointerException, IllegalArgumentException {
 		this.command = com;
-		//this.kf = rc;
-		this.rc = rc;
-		this.lbq = lbq;
+		this.scheduler = scheduler;
 		this.kSize = kSize;
 		this.numberofthread = numberofthread;
 		this.upperThreshold = upperThreshold;
+		this.sortMode = sortMode;
+		this.segmentFormat = segmentFormat;
+		this.sortMemory = sortMemory;
+		this.sortPool = sortPool;
 		this.segmentQueue = segmentQueue;
 		return;
 	}
@@ -48,28 +58,42 @@ public class KhetWorkerSort implements KhetWorker {
 	public void work(String command) {
 		// TODO Auto-generated method stub
 		KhetReaderBin rb;
-		while(!rc.getFlag() || !lbq.isEmpty()){
-		  //removes the item
+		KhetSortScheduler.BinFile binFile;
+		String binfilename = null;
+		while(true){
+		  //removes the largest ready file, null after kanalyze is done and all files were taken
 			try{
-				String binfilename =lbq.poll(10, TimeUnit.SECONDS);
-				Thread.sleep(1000);
-				if(binfilename==null)
-					continue;
-				rb = new KhetReaderBin(binfilename,kSize,upperThreshold);
-				rb.read(binfilename);
-//				for(int i=0;i<100;i++)
-//					System.out.print(data[0]+" ");
-//				System.out.println("\n "+data.length);
-				System.out.println(binfilename+" removed.");
-				File fb = new File(binfilename+".sort");
-				SegmentFile sf = new SegmentFile(fb);
-				segmentQueue.put(sf);
-				//Thread.sleep(1000);
-			}catch(InterruptedException ex){
+				binFile = scheduler.take();
+				if(binFile==null)
+					break;
+				binfilename = binFile.file.getPath();
+				rb = new KhetReaderBin(binfilename,kSize,upperThreshold,sortMode,segmentFormat,sortMemory,sortPool);
+				List<File> sortedFiles = rb.sort(binfilename, binFile.offset, binFile.length);
+				System.out.println(binfilename+" sorted.");
+				for (File fb : sortedFiles) {
+					SegmentFile sf = new SegmentFile(fb, false, segmentFormat);
+					segmentQueue.put(sf);
+				}
+			}catch(IOException ex){
+				System.out.println("IO error sorting bin file: " + binfilename + ": " + ex.getMessage());
 				ex.printStackTrace();
+				failed = true;
+			}catch(InterruptedException ex){
+				// Stop, files that were not taken are not sorted
+				System.out.println("thread "+numberofthread+": sort interrupted.");
+				failed = true;
+				break;
 			}
-			System.out.println(rc.getFlag());
 		}
 	}
 
+	/**
+	 * Determine if a bin file could not be sorted. Call after the thread ended.
+	 * 
+	 * @return <code>true</code> if a bin file could not be sorted.
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
 }
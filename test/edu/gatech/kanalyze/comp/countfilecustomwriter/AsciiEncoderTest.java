@@ -0,0 +1,161 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks <code>AsciiEncoder</code> against <code>String.format</code>.
+ */
+public class AsciiEncoderTest {
+
+	/** Values at digit boundaries and limits. */
+	private static final long[] EDGE_VALUES = {
+		0, 1, 9, 10, 11, 99, 100, 101, 999, 1000, 9999, 10000,
+		Integer.MAX_VALUE, Integer.MAX_VALUE + 1L, 0xFFFFFFFFL,
+		999999999999999999L, 1000000000000000000L, Long.MAX_VALUE,
+		-1, -9, -10, -100, Integer.MIN_VALUE, Long.MIN_VALUE + 1
+	};
+
+	/** Widths to pad to. */
+	private static final int[] WIDTHS = {1, 2, 5, 8, 16, 20, 24};
+
+	@Test
+	public void putDecimalMatchesFormat() {
+
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		Random random = new Random(1);
+
+		for (long value : EDGE_VALUES) {
+			checkDecimal(buf, value);
+
+			for (int width : WIDTHS)
+				checkDecimal(buf, value, width);
+		}
+
+		for (int trial = 0; trial < 100000; ++trial) {
+			long value = random.nextLong() >> random.nextInt(64);
+
+			if (value == Long.MIN_VALUE)
+				continue;
+
+			checkDecimal(buf, value);
+			checkDecimal(buf, value, WIDTHS[random.nextInt(WIDTHS.length)]);
+		}
+
+		return;
+	}
+
+	@Test
+	public void putHexMatchesFormat() {
+
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		Random random = new Random(2);
+
+		for (long value : EDGE_VALUES)
+			for (int width : WIDTHS)
+				checkHex(buf, value, width);
+
+		checkHex(buf, Long.MIN_VALUE, 1);
+
+		for (int trial = 0; trial < 100000; ++trial)
+			checkHex(buf, random.nextLong() >>> random.nextInt(64), WIDTHS[random.nextInt(WIDTHS.length)]);
+
+		return;
+	}
+
+	@Test
+	public void lengthsMatchFormat() {
+
+		for (long value : EDGE_VALUES) {
+			assertEquals(Long.toHexString(value), Long.toHexString(value).length(), AsciiEncoder.hexLength(value));
+
+			if (value >= 0)
+				assertEquals(Long.toString(value), Long.toString(value).length(), AsciiEncoder.decimalLength(value));
+		}
+
+		return;
+	}
+
+	/**
+	 * Check a number written in decimal without padding.
+	 *
+	 * @param buf Buffer to write to.
+	 * @param value Number.
+	 */
+	private static void checkDecimal(ByteBuffer buf, long value) {
+
+		buf.clear();
+		AsciiEncoder.putDecimal(buf, value);
+
+		assertEquals(Long.toString(value), getString(buf));
+
+		return;
+	}
+
+	/**
+	 * Check a number written in decimal padded with zeros.
+	 *
+	 * @param buf Buffer to write to.
+	 * @param value Number.
+	 * @param width Minimum number of characters.
+	 */
+	private static void checkDecimal(ByteBuffer buf, long value, int width) {
+
+		buf.clear();
+		AsciiEncoder.putDecimal(buf, value, width);
+
+		assertEquals(String.format("%0" + width + "d", value), getString(buf));
+
+		return;
+	}
+
+	/**
+	 * Check a number written in hex padded with zeros.
+	 *
+	 * @param buf Buffer to write to.
+	 * @param value Number.
+	 * @param width Minimum number of digits.
+	 */
+	private static void checkHex(ByteBuffer buf, long value, int width) {
+
+		buf.clear();
+		AsciiEncoder.putHex(buf, value, width);
+
+		assertEquals(String.format("%0" + width + "X", value), getString(buf));
+
+		return;
+	}
+
+	/**
+	 * Get the characters written to a buffer.
+	 *
+	 * @param buf Buffer.
+	 *
+	 * @return Characters from the start of the buffer to its position.
+	 */
+	private static String getString(ByteBuffer buf) {
+		return new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,195 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes data through <code>BgzfChannel</code> and inflates it with
+ * <code>GZIPInputStream</code>.
+ */
+public class BgzfChannelTest {
+
+	/** Pool blocks are deflated on. */
+	private static ExecutorService deflatePool;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void startPool() {
+
+		deflatePool = Executors.newFixedThreadPool(4);
+
+		return;
+	}
+
+	@AfterClass
+	public static void stopPool() {
+
+		deflatePool.shutdownNow();
+
+		return;
+	}
+
+	@Test
+	public void randomData()
+			throws IOException {
+
+		Random random = new Random(1);
+		int[] sizes = {0, 1, BgzfChannel.BLOCK_DATA_SIZE - 1, BgzfChannel.BLOCK_DATA_SIZE, BgzfChannel.BLOCK_DATA_SIZE + 1, BgzfChannel.BLOCK_DATA_SIZE * 5 + 123};
+
+		for (int size : sizes) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+
+			checkRoundTrip(data, 6, 4, random);
+		}
+
+		return;
+	}
+
+	@Test
+	public void compressibleData()
+			throws IOException {
+
+		Random random = new Random(2);
+		byte[] data = new byte[BgzfChannel.BLOCK_DATA_SIZE * 20 + 7];
+
+		for (int index = 0; index < data.length; ++index)
+			data[index] = (byte) "ACGT\t0123456789\n".charAt(random.nextInt(16));
+
+		for (int level = 0; level <= 9; level += 3)
+			checkRoundTrip(data, level, 1 + level, random);
+
+		return;
+	}
+
+	/**
+	 * Write data in chunks of random size, check the block layout, and compare
+	 * the inflated file to the data.
+	 *
+	 * @param data Data to write.
+	 * @param level Compression level.
+	 * @param maxPending Maximum number of blocks deflating at once.
+	 * @param random Random source for chunk sizes.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private void checkRoundTrip(byte[] data, int level, int maxPending, Random random)
+			throws IOException {
+
+		File file = folder.newFile();
+		BgzfChannel channel = new BgzfChannel(new FileOutputStream(file).getChannel(), deflatePool, level, maxPending, null);
+		int offset = 0;
+
+		while (offset < data.length) {
+			int length = Math.min(data.length - offset, random.nextInt(3 * BgzfChannel.BLOCK_DATA_SIZE / 2) + 1);
+			ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+
+			while (src.hasRemaining())
+				channel.write(src);
+
+			offset += length;
+		}
+
+		channel.close();
+
+		checkBlocks(file, data.length);
+
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		InputStream in = new GZIPInputStream(new FileInputStream(file));
+
+		try {
+			byte[] buf = new byte[8192];
+			int length;
+
+			while ((length = in.read(buf)) > 0)
+				inflated.write(buf, 0, length);
+
+		} finally {
+			in.close();
+		}
+
+		assertArrayEquals(data, inflated.toByteArray());
+
+		return;
+	}
+
+	/**
+	 * Walk the BGZF blocks of a file. Each block size field must lead to the next
+	 * block, each block must hold at most <code>BLOCK_DATA_SIZE</code> bytes, and
+	 * the file must end with an empty block.
+	 *
+	 * @param file File.
+	 * @param dataLength Number of uncompressed bytes written.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private static void checkBlocks(File file, long dataLength)
+			throws IOException {
+
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		long total = 0;
+		int lastSize = -1;
+
+		while (buf.hasRemaining()) {
+			int start = buf.position();
+
+			assertEquals(0x8b1f, buf.getShort(start) & 0xFFFF);
+			assertEquals('B', buf.get(start + 12));
+			assertEquals('C', buf.get(start + 13));
+
+			int blockSize = (buf.getShort(start + 16) & 0xFFFF) + 1;
+			assertTrue(blockSize <= BgzfChannel.MAX_BLOCK_SIZE);
+
+			lastSize = buf.getInt(start + blockSize - 4);
+			assertTrue(lastSize <= BgzfChannel.BLOCK_DATA_SIZE);
+
+			total += lastSize;
+			buf.position(start + blockSize);
+		}
+
+		assertEquals(0, lastSize);
+		assertEquals(dataLength, total);
+
+		return;
+	}
+}
@@ -0,0 +1,263 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.kanalyze.comp.countfilecustomwriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.gatech.kanalyze.util.KmerBatch;
+
+/**
+ * Writes flank groups with <code>KHBFormatWriter</code> and reads them back with
+ * <code>KHBFormatReader</code>.
+ */
+public class KHBFormatTest {
+
+	/** K-mer size. */
+	private static final int K_SIZE = 31;
+
+	/** Small blocks so the groups span many blocks. */
+	private static final int BLOCK_SIZE = KHBFormatWriter.BLOCK_HEADER_SIZE + KHBFormatWriter.MAX_GROUP_SIZE * 2;
+
+	/** Buffer holding a few blocks. */
+	private static final int BUF_SIZE = KHBFormatWriter.HEADER_SIZE + BLOCK_SIZE * 4;
+
+	/** Number of groups to write. */
+	private static final int GROUP_COUNT = 20000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readWritten()
+			throws IOException {
+
+		TreeMap<Long, int[]> groupMap = makeGroups(new Random(1), GROUP_COUNT);
+		File file = write(groupMap, new Random(2));
+
+		KHBFormatReader reader = new KHBFormatReader(file);
+
+		try {
+			assertEquals(K_SIZE, reader.getKSize());
+			assertEquals(groupMap.size(), reader.getGroupCount());
+			assertTrue(reader.getBlockCount() > 1);
+
+			for (Map.Entry<Long, int[]> entry : groupMap.entrySet()) {
+				assertTrue(reader.next());
+				checkGroup(reader, entry);
+			}
+
+			assertFalse(reader.next());
+
+		} finally {
+			reader.close();
+		}
+
+		return;
+	}
+
+	@Test
+	public void seek()
+			throws IOException {
+
+		TreeMap<Long, int[]> groupMap = makeGroups(new Random(3), GROUP_COUNT);
+		File file = write(groupMap, new Random(4));
+		Random random = new Random(5);
+
+		List<Long> flankList = new ArrayList<Long>();
+		flankList.add(0L);
+		flankList.add(groupMap.firstKey());
+		flankList.add(groupMap.lastKey());
+		flankList.add(groupMap.lastKey() + 1);
+
+		for (int index = 0; index < 500; ++index) {
+			long flank = (random.nextLong() >>> 1) % (groupMap.lastKey() + 2);
+
+			flankList.add(flank);
+			flankList.add(groupMap.ceilingKey(flank) == null ? flank : groupMap.ceilingKey(flank));
+		}
+
+		KHBFormatReader reader = new KHBFormatReader(file);
+
+		try {
+			for (long flank : flankList) {
+				reader.seek(flank);
+
+				// Read a few groups after the seek
+				Map.Entry<Long, int[]> entry = groupMap.ceilingEntry(flank);
+
+				for (int index = 0; index < 3 && entry != null; ++index) {
+					assertTrue("seek " + flank, reader.next());
+					checkGroup(reader, entry);
+
+					entry = groupMap.higherEntry(entry.getKey());
+				}
+
+				if (entry == null)
+					assertFalse("seek " + flank, reader.next());
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		return;
+	}
+
+	@Test
+	public void empty()
+			throws IOException {
+
+		File file = write(new TreeMap<Long, int[]>(), new Random(6));
+
+		KHBFormatReader reader = new KHBFormatReader(file);
+
+		try {
+			assertEquals(0, reader.getGroupCount());
+			assertFalse(reader.next());
+
+			reader.seek(100);
+			assertFalse(reader.next());
+
+		} finally {
+			reader.close();
+		}
+
+		return;
+	}
+
+	/**
+	 * Make random flank groups. Gaps between flanks are small or large, and counts
+	 * cover every varint length, including counts above <code>Integer.MAX_VALUE</code>.
+	 *
+	 * @param random Random source.
+	 * @param groupCount Number of groups.
+	 *
+	 * @return A map of flanks to the count of each middle base (<code>0</code> if not present).
+	 */
+	private static TreeMap<Long, int[]> makeGroups(Random random, int groupCount) {
+
+		TreeMap<Long, int[]> groupMap = new TreeMap<Long, int[]>();
+		long flank = random.nextInt(100);
+
+		for (int index = 0; index < groupCount; ++index) {
+			int[] count = new int[4];
+
+			while (count[0] == 0 && count[1] == 0 && count[2] == 0 && count[3] == 0)
+				for (int base = 0; base < 4; ++base)
+					if (random.nextBoolean())
+						count[base] = (random.nextInt(8) == 0) ? random.nextInt() | 1 : random.nextInt(1 << random.nextInt(31)) + 1;
+
+			groupMap.put(flank, count);
+
+			flank += (random.nextInt(10) == 0) ? (random.nextLong() >>> 24) : random.nextInt(1 << random.nextInt(20)) + 1;
+		}
+
+		return groupMap;
+	}
+
+	/**
+	 * Write groups in batches of random size.
+	 *
+	 * @param groupMap Groups to write.
+	 * @param random Random source.
+	 *
+	 * @return Written file.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private File write(TreeMap<Long, int[]> groupMap, Random random)
+			throws IOException {
+
+		File file = folder.newFile();
+		FileOutputStream out = new FileOutputStream(file);
+		FileChannel fc = out.getChannel();
+
+		try {
+			KHBFormatWriter writer = new KHBFormatWriter(fc, K_SIZE, BUF_SIZE, BLOCK_SIZE);
+			KmerBatch batch = new KmerBatch(7);
+			int batchSize = random.nextInt(batch.capacity()) + 1;
+
+			for (Map.Entry<Long, int[]> entry : groupMap.entrySet()) {
+				for (int base = 0; base < 4; ++base) {
+					if (entry.getValue()[base] == 0)
+						continue;
+
+					batch.add((entry.getKey() << 2) | base, entry.getValue()[base]);
+
+					if (batch.length == batchSize) {
+						writer.write(batch);
+						batch.length = 0;
+						batchSize = random.nextInt(batch.capacity()) + 1;
+					}
+				}
+			}
+
+			writer.write(batch);
+			writer.finish();
+
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+
+	/**
+	 * Check the current group of a reader.
+	 *
+	 * @param reader Reader.
+	 * @param entry Expected flank and counts.
+	 */
+	private static void checkGroup(KHBFormatReader reader, Map.Entry<Long, int[]> entry) {
+
+		long flank = entry.getKey();
+		int[] count = entry.getValue();
+		int mask = 0;
+
+		assertEquals(flank, reader.getFlank());
+
+		for (int base = 0; base < 4; ++base) {
+			if (count[base] != 0)
+				mask |= 1 << base;
+
+			assertEquals(count[base], reader.getCount(base));
+			assertEquals((flank << 2) | base, reader.getKmer(base));
+		}
+
+		assertEquals(mask, reader.getAlleleMask());
+		assertEquals(Integer.bitCount(mask), reader.getAlleleCount());
+
+		return;
+	}
+}
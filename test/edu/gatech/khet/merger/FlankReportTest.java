@@ -0,0 +1,76 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.gatech.kanalyze.util.KmerBatch;
+
+/**
+ * Checks that the flank report lists only groups with more than two alleles, in the
+ * SEQ layout.
+ */
+public class FlankReportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reportsMultiAllelicGroups() throws IOException {
+
+		File file = folder.newFile("report.txt");
+		FlankReport report = new FlankReport(file, 5);
+		KmerBatch batch = new KmerBatch(16);
+
+		// Rotated 5-mers: left flank (2 bases), right flank (2 bases), middle base
+		long acgt = (0x0L << 6) | (0x1L << 4) | (0x2L << 2) | 0x3L; // AC GT
+
+		batch.add((acgt << 2) | 0, 4);  // AC GT: A, C, T
+		batch.add((acgt << 2) | 1, 3);
+		batch.add((acgt << 2) | 3, 1);
+
+		batch.add(((acgt + 1) << 2) | 0, 5);  // AC TA: A, G
+		batch.add(((acgt + 1) << 2) | 2, 5);
+
+		batch.add((0xFFL << 2) | 0, 1);  // TT TT: A, C, G, T
+		batch.add((0xFFL << 2) | 1, 2);
+		batch.add((0xFFL << 2) | 2, 3);
+		batch.add((0xFFL << 2) | 3, 4);
+
+		report.write(batch);
+		report.close();
+
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+
+		assertEquals(Arrays.asList("AC\tGT\tA/4\tC/3\tT/1", "TT\tTT\tA/1\tC/2\tG/3\tT/4"), lines);
+		assertEquals(2, report.getGroupCount());
+
+		return;
+	}
+}
@@ -0,0 +1,217 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.SegmentWriter;
+
+/**
+ * Merges segments in levels with <code>MergePlanner</code>.
+ */
+public class MergePlannerTest {
+
+	/** K-mer size. */
+	private static final int K_SIZE = 31;
+
+	/** Number of segments to merge. */
+	private static final int SEGMENT_COUNT = 9;
+
+	/** Number of records in each segment. */
+	private static final int RECORD_COUNT = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reduce()
+			throws IOException {
+
+		for (SegmentFormat runFormat : new SegmentFormat[] {SegmentFormat.SORT, SegmentFormat.PACK}) {
+			File dir = folder.newFolder(runFormat.name());
+			TreeMap<Long, Integer> expectMap = new TreeMap<Long, Integer>();
+			List<SegmentFile> segFileList = writeSegments(dir, new Random(1), expectMap);
+
+			MergePlanner planner = new MergePlanner(K_SIZE, 100, 2, Long.MAX_VALUE, 2, null, false, runFormat);
+			List<SegmentFile> runList = planner.reduce(segFileList);
+
+			assertEquals(2, runList.size());
+
+			// Runs hold every record, and counts of the same k-mer are summed
+			TreeMap<Long, Integer> readMap = new TreeMap<Long, Integer>();
+
+			for (SegmentFile runFile : runList) {
+				SegmentContainer container = SegmentContainer.open(runFile, 100, K_SIZE, null, false);
+
+				while (container.load())
+					for (int index = 0; index < container.length; ++index)
+						addCount(readMap, container.kmer[index], container.count[index]);
+
+				container.close();
+			}
+
+			assertEquals(expectMap, readMap);
+
+			// Inputs without the auto-delete flag are kept, and runs of earlier levels are removed
+			for (SegmentFile segFile : segFileList)
+				assertTrue(segFile.file.exists());
+
+			assertEquals(runList.size(), listRuns(dir).length);
+		}
+
+		return;
+	}
+
+	@Test
+	public void removeRunsOnError()
+			throws IOException {
+
+		File dir = folder.getRoot();
+		List<SegmentFile> segFileList = writeSegments(dir, new Random(2), new TreeMap<Long, Integer>());
+
+		// A segment that is not a PACK segment fails its merge
+		File badFile = new File(dir, "bad.pack");
+		FileOutputStream out = new FileOutputStream(badFile);
+
+		try {
+			out.write(new byte[100]);
+
+		} finally {
+			out.close();
+		}
+
+		segFileList.add(new SegmentFile(badFile, false, SegmentFormat.PACK));
+
+		MergePlanner planner = new MergePlanner(K_SIZE, 100, 2, Long.MAX_VALUE, 2, null, false, SegmentFormat.SORT);
+
+		try {
+			planner.reduce(segFileList);
+			fail("Merge did not fail");
+
+		} catch (IOException ex) {
+			// Expected
+		}
+
+		assertArrayEquals(new File[0], listRuns(dir));
+
+		for (SegmentFile segFile : segFileList)
+			assertTrue(segFile.file.exists());
+
+		return;
+	}
+
+	/**
+	 * Write sorted segments with overlapping k-mers.
+	 *
+	 * @param dir Directory to write segments to.
+	 * @param random Random source.
+	 * @param expectMap Summed count of each k-mer is added to this map.
+	 *
+	 * @return Segment files. Their auto-delete flag is not set.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private static List<SegmentFile> writeSegments(File dir, Random random, TreeMap<Long, Integer> expectMap)
+			throws IOException {
+
+		List<SegmentFile> segFileList = new ArrayList<SegmentFile>();
+
+		for (int segment = 0; segment < SEGMENT_COUNT; ++segment) {
+			TreeMap<Long, Integer> segMap = new TreeMap<Long, Integer>();
+
+			while (segMap.size() < RECORD_COUNT)
+				segMap.put((long) random.nextInt(RECORD_COUNT * SEGMENT_COUNT), random.nextInt(1000) + 1);
+
+			long[] kmer = new long[segMap.size()];
+			int[] count = new int[segMap.size()];
+			int length = 0;
+
+			for (Long key : segMap.keySet()) {
+				kmer[length] = key;
+				count[length] = segMap.get(key);
+				addCount(expectMap, kmer[length], count[length]);
+				++length;
+			}
+
+			File file = new File(dir, "segment_" + segment + ".sort");
+			SegmentWriter writer = new SegmentWriter(file, SegmentFormat.SORT);
+
+			try {
+				writer.write(kmer, count, length);
+
+			} finally {
+				writer.close();
+			}
+
+			segFileList.add(new SegmentFile(file, false, SegmentFormat.SORT));
+		}
+
+		return segFileList;
+	}
+
+	/**
+	 * Add a count to a map of k-mer counts.
+	 *
+	 * @param countMap Map of k-mer counts.
+	 * @param kmer K-mer.
+	 * @param count Count to add.
+	 */
+	private static void addCount(TreeMap<Long, Integer> countMap, long kmer, int count) {
+
+		Integer oldCount = countMap.get(kmer);
+
+		countMap.put(kmer, (oldCount == null) ? count : oldCount + count);
+
+		return;
+	}
+
+	/**
+	 * List run files in a directory.
+	 *
+	 * @param dir Directory.
+	 *
+	 * @return Run files.
+	 */
+	private static File[] listRuns(File dir) {
+
+		List<File> runList = new ArrayList<File>();
+
+		for (File file : dir.listFiles())
+			if (file.getName().startsWith("merge_"))
+				runList.add(file);
+
+		return runList.toArray(new File[runList.size()]);
+	}
+}
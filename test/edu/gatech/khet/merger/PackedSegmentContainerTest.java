@@ -0,0 +1,292 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.merger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.gatech.khet.SegmentFile;
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.SegmentWriter;
+
+/**
+ * Writes <code>PACK</code> segments with <code>SegmentWriter</code> and reads them
+ * back with <code>PackedSegmentContainer</code>.
+ */
+public class PackedSegmentContainerTest {
+
+	/** K-mer size. */
+	private static final int K_SIZE = 31;
+
+	/** Small blocks so the records span many blocks. */
+	private static final int BLOCK_RECORDS = 100;
+
+	/** Number of records to write. */
+	private static final int RECORD_COUNT = 25000;
+
+	/** Pool blocks are read ahead on. */
+	private static ExecutorService ioPool;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void startPool() {
+
+		ioPool = Executors.newFixedThreadPool(2);
+
+		return;
+	}
+
+	@AfterClass
+	public static void stopPool() {
+
+		ioPool.shutdownNow();
+
+		return;
+	}
+
+	@Test
+	public void readWritten()
+			throws IOException {
+
+		Random random = new Random(1);
+		long[] kmer = makeKmers(random, RECORD_COUNT);
+		int[] count = makeCounts(random, RECORD_COUNT);
+		SegmentFile segFile = write(kmer, count, random);
+
+		checkRange(segFile, null, kmer, count, 0, kmer.length);
+		checkRange(segFile, ioPool, kmer, count, 0, kmer.length);
+
+		return;
+	}
+
+	@Test
+	public void readEmpty()
+			throws IOException {
+
+		Random random = new Random(2);
+		SegmentFile segFile = write(new long[0], new int[0], random);
+
+		checkRange(segFile, null, new long[0], new int[0], 0, 0);
+		checkRange(segFile, null, new long[0], new int[0], 100, Long.MAX_VALUE);
+
+		return;
+	}
+
+	@Test
+	public void readRange()
+			throws IOException {
+
+		Random random = new Random(3);
+		long[] kmer = makeKmers(random, RECORD_COUNT);
+		int[] count = makeCounts(random, RECORD_COUNT);
+		SegmentFile segFile = write(kmer, count, random);
+
+		// Whole file and boundaries on the first, last, and block edge k-mers
+		checkRange(segFile, null, kmer, count, 0, Long.MAX_VALUE);
+		checkRange(segFile, null, kmer, count, kmer[0], kmer[kmer.length - 1]);
+		checkRange(segFile, null, kmer, count, kmer[0] + 1, kmer[kmer.length - 1] + 1);
+		checkRange(segFile, null, kmer, count, kmer[BLOCK_RECORDS], kmer[BLOCK_RECORDS * 2]);
+		checkRange(segFile, null, kmer, count, kmer[BLOCK_RECORDS - 1], kmer[BLOCK_RECORDS * 2 + 1]);
+		checkRange(segFile, null, kmer, count, kmer[kmer.length - 1], Long.MAX_VALUE);
+		checkRange(segFile, null, kmer, count, kmer[kmer.length - 1] + 1, Long.MAX_VALUE);
+
+		// Empty ranges
+		checkRange(segFile, null, kmer, count, 0, kmer[0]);
+		checkRange(segFile, null, kmer, count, kmer[500], kmer[500]);
+		checkRange(segFile, null, kmer, count, kmer[500] + 1, kmer[501]);
+
+		// Random ranges between k-mers and on k-mers
+		for (int trial = 0; trial < 100; ++trial) {
+			long fromKmer;
+			long toKmer;
+
+			if (random.nextBoolean()) {
+				int fromIndex = random.nextInt(kmer.length);
+
+				fromKmer = kmer[fromIndex];
+				toKmer = kmer[Math.min(kmer.length - 1, fromIndex + random.nextInt(BLOCK_RECORDS * 5))];
+
+			} else {
+				fromKmer = random.nextLong() & ((1L << (K_SIZE * 2)) - 1);
+				toKmer = fromKmer + (random.nextLong() & ((1L << (K_SIZE * 2 - 6)) - 1));
+			}
+
+			checkRange(segFile, (trial % 2 == 0) ? null : ioPool, kmer, count, fromKmer, toKmer);
+		}
+
+		return;
+	}
+
+	/**
+	 * Make sorted, unique k-mers with small and large gaps.
+	 *
+	 * @param random Random source.
+	 * @param recordCount Number of k-mers.
+	 *
+	 * @return An array of k-mers.
+	 */
+	private static long[] makeKmers(Random random, int recordCount) {
+
+		long[] kmer = new long[recordCount];
+		long nextKmer = random.nextInt(16);
+
+		for (int index = 0; index < recordCount; ++index) {
+			kmer[index] = nextKmer;
+			nextKmer += (random.nextInt(20) == 0) ? (random.nextLong() >>> 20) : random.nextInt(1 << random.nextInt(24)) + 1;
+		}
+
+		return kmer;
+	}
+
+	/**
+	 * Make counts of every packed length.
+	 *
+	 * @param random Random source.
+	 * @param recordCount Number of counts.
+	 *
+	 * @return An array of counts.
+	 */
+	private static int[] makeCounts(Random random, int recordCount) {
+
+		int[] count = new int[recordCount];
+
+		for (int index = 0; index < recordCount; ++index)
+			count[index] = (random.nextInt(50) == 0) ? Integer.MAX_VALUE - random.nextInt(10) : random.nextInt(1 << random.nextInt(31)) + 1;
+
+		return count;
+	}
+
+	/**
+	 * Write records to a <code>PACK</code> segment in several calls of random length.
+	 *
+	 * @param kmer Sorted k-mers.
+	 * @param count Counts.
+	 * @param random Random source.
+	 *
+	 * @return Written segment file.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private SegmentFile write(long[] kmer, int[] count, Random random)
+			throws IOException {
+
+		File file = folder.newFile();
+		SegmentWriter writer = new SegmentWriter(file, SegmentFormat.PACK, BLOCK_RECORDS);
+		int offset = 0;
+
+		try {
+			while (offset < kmer.length) {
+				int length = Math.min(kmer.length - offset, random.nextInt(BLOCK_RECORDS * 3) + 1);
+
+				writer.write(Arrays.copyOfRange(kmer, offset, offset + length), Arrays.copyOfRange(count, offset, offset + length), length);
+				offset += length;
+			}
+
+		} finally {
+			writer.close();
+		}
+
+		assertEquals(kmer.length, writer.getRecordCount());
+
+		return new SegmentFile(file, false, SegmentFormat.PACK);
+	}
+
+	/**
+	 * Read a range of a segment and compare it to the records in the range.
+	 *
+	 * @param segFile Segment file.
+	 * @param pool Pool to read ahead on, or <code>null</code>.
+	 * @param kmer All k-mers in the segment.
+	 * @param count All counts in the segment.
+	 * @param fromKmer Lowest k-mer in the range (inclusive).
+	 * @param toKmer Highest k-mer in the range (exclusive), or <code>Long.MAX_VALUE</code>
+	 *   for the end of the file.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private static void checkRange(SegmentFile segFile, ExecutorService pool, long[] kmer, int[] count, long fromKmer, long toKmer)
+			throws IOException {
+
+		int fromIndex = lowerBound(kmer, fromKmer);
+		int toIndex = (toKmer == Long.MAX_VALUE) ? kmer.length : Math.max(fromIndex, lowerBound(kmer, toKmer));
+
+		long[] readKmer = new long[kmer.length];
+		int[] readCount = new int[kmer.length];
+		int readLength = 0;
+
+		SegmentContainer container = SegmentContainer.open(segFile, BLOCK_RECORDS, K_SIZE, pool, false, fromKmer, toKmer);
+
+		try {
+			while (container.load()) {
+				System.arraycopy(container.kmer, 0, readKmer, readLength, container.length);
+				System.arraycopy(container.count, 0, readCount, readLength, container.length);
+				readLength += container.length;
+			}
+
+		} finally {
+			container.close();
+		}
+
+		String range = "range " + fromKmer + " to " + toKmer;
+
+		assertArrayEquals(range, Arrays.copyOfRange(kmer, fromIndex, toIndex), Arrays.copyOf(readKmer, readLength));
+		assertArrayEquals(range, Arrays.copyOfRange(count, fromIndex, toIndex), Arrays.copyOf(readCount, readLength));
+
+		return;
+	}
+
+	/**
+	 * Find the first k-mer greater than or equal to a k-mer.
+	 *
+	 * @param kmer Sorted k-mers.
+	 * @param key K-mer to find.
+	 *
+	 * @return Index of the first k-mer not less than <code>key</code>.
+	 */
+	private static int lowerBound(long[] kmer, long key) {
+
+		int low = 0;
+		int high = kmer.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (kmer[mid] < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+}
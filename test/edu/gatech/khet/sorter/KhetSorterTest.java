@@ -0,0 +1,234 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.sorter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the radix and run sorters agree with a reference sort, on the calling
+ * thread and on a pool, and that the run sorter falls back on records out of
+ * KAnalyze order.
+ */
+public class KhetSorterTest {
+
+	/** K-mer size. */
+	private static final int K_SIZE = 31;
+
+	/** Number of records. Large enough for the parallel paths. */
+	private static final int LENGTH = KhetSorterRadix.PARALLEL_THRESHOLD * 3;
+
+	/** Number of left flanks. Small, so blocks have several records. */
+	private static final int FLANK_COUNT = 10000;
+
+	/** Pool for parallel sorts. */
+	private static ForkJoinPool pool;
+
+	/** Rotates k-mers. */
+	private final KmerRotator rotator = new KmerRotator(K_SIZE);
+
+	@BeforeClass
+	public static void createPool() {
+		pool = new ForkJoinPool(4);
+
+		return;
+	}
+
+	@AfterClass
+	public static void shutdownPool() {
+		pool.shutdown();
+
+		return;
+	}
+
+	@Test
+	public void radixSortsUnorderedRecords() {
+
+		long[] kmer = randomKmers(new Random(1), LENGTH, true);
+
+		checkSorter(new KhetSorterRadix(rotator), kmer);
+		checkSorter(new KhetSorterRadix(rotator, pool), kmer);
+
+		return;
+	}
+
+	@Test
+	public void runSortsKAnalyzeOrder() {
+
+		long[] kmer = kanalyzeOrder(randomKmers(new Random(2), LENGTH, false));
+
+		checkSorter(new KhetSorterRun(rotator), kmer);
+		checkSorter(new KhetSorterRun(rotator, pool), kmer);
+
+		return;
+	}
+
+	@Test
+	public void runFallsBackInsideRange() {
+
+		long[] kmer = kanalyzeOrder(randomKmers(new Random(3), LENGTH, false));
+
+		// Swap two records near the end, inside the last range of a parallel sort
+		swap(kmer, LENGTH - 10, LENGTH - 100);
+
+		checkSorter(new KhetSorterRun(rotator), kmer);
+		checkSorter(new KhetSorterRun(rotator, pool), kmer);
+
+		return;
+	}
+
+	@Test
+	public void runFallsBackAcrossRanges() {
+
+		long[] kmer = kanalyzeOrder(randomKmers(new Random(4), LENGTH, false));
+
+		// Reverse the records so every range split is out of order
+		for (int index = 0; index < LENGTH / 2; ++index)
+			swap(kmer, index, LENGTH - 1 - index);
+
+		checkSorter(new KhetSorterRun(rotator), kmer);
+		checkSorter(new KhetSorterRun(rotator, pool), kmer);
+
+		return;
+	}
+
+	@Test
+	public void runSortsDuplicates() {
+
+		long[] kmer = kanalyzeOrder(randomKmers(new Random(5), LENGTH, false));
+
+		// Chunks of a bin file never repeat a k-mer, but the sorter must not lose counts if one does
+		kmer[LENGTH / 2] = kmer[LENGTH / 2 + 1];
+
+		checkSorter(new KhetSorterRun(rotator), kmer);
+		checkSorter(new KhetSorterRun(rotator, pool), kmer);
+
+		return;
+	}
+
+	/**
+	 * Sort a copy of records and compare them to a reference sort.
+	 *
+	 * @param sorter Sorter to check.
+	 * @param kmer K-mers in input order. Not changed.
+	 */
+	private void checkSorter(KhetSorter sorter, long[] kmer) {
+
+		TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+		long[] sortKmer = Arrays.copyOf(kmer, kmer.length);
+		int[] sortCount = new int[kmer.length];
+		long[] expectedKmer;
+		int[] expectedCount;
+		int length;
+		int index;
+
+		for (index = 0; index < kmer.length; ++index) {
+			sortCount[index] = (int) (kmer[index] % 1000) + 1;
+
+			Integer count = expected.get(rotator.rotate(kmer[index]));
+			expected.put(rotator.rotate(kmer[index]), ((count == null) ? 0 : count) + sortCount[index]);
+		}
+
+		expectedKmer = new long[expected.size()];
+		expectedCount = new int[expected.size()];
+		index = 0;
+
+		for (Long key : expected.keySet()) {
+			expectedKmer[index] = key;
+			expectedCount[index] = expected.get(key);
+			++index;
+		}
+
+		length = sorter.sort(sortKmer, sortCount, sortKmer.length);
+
+		assertEquals(expectedKmer.length, length);
+		assertArrayEquals(expectedKmer, Arrays.copyOf(sortKmer, length));
+		assertArrayEquals(expectedCount, Arrays.copyOf(sortCount, length));
+
+		return;
+	}
+
+	/**
+	 * Create random k-mers with few left flanks.
+	 *
+	 * @param random Random source.
+	 * @param length Number of k-mers.
+	 * @param duplicates Set to allow equal k-mers.
+	 *
+	 * @return K-mers in random order.
+	 */
+	private long[] randomKmers(Random random, int length, boolean duplicates) {
+
+		long[] kmer = new long[length];
+		Set<Long> kmerSet = new HashSet<Long>();
+		int index = 0;
+
+		while (index < length) {
+			long next = ((long) random.nextInt(FLANK_COUNT) << (K_SIZE + 1)) | (random.nextLong() & ((1L << (K_SIZE + 1)) - 1));
+
+			if (duplicates && index > 0 && random.nextInt(10) == 0)
+				next = kmer[random.nextInt(index)];
+
+			else if (! kmerSet.add(next))
+				continue;
+
+			kmer[index++] = next;
+		}
+
+		return kmer;
+	}
+
+	/**
+	 * Sort k-mers the way KAnalyze writes them to a segment.
+	 *
+	 * @param kmer K-mers.
+	 *
+	 * @return <code>kmer</code> sorted in place.
+	 */
+	private static long[] kanalyzeOrder(long[] kmer) {
+		Arrays.sort(kmer);
+
+		return kmer;
+	}
+
+	/**
+	 * Swap two k-mers.
+	 *
+	 * @param kmer K-mers.
+	 * @param a Index of the first k-mer.
+	 * @param b Index of the second k-mer.
+	 */
+	private static void swap(long[] kmer, int a, int b) {
+		long tmp = kmer[a];
+		kmer[a] = kmer[b];
+		kmer[b] = tmp;
+
+		return;
+	}
+}
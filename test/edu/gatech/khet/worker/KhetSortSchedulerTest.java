@@ -0,0 +1,212 @@
+// Copyright (c) 2014 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package edu.gatech.khet.worker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.gatech.khet.SegmentFormat;
+import edu.gatech.khet.reader.KhetReaderBin;
+import edu.gatech.khet.sorter.SortMode;
+
+/**
+ * Checks that a bin file that grew after it was sorted has the rest of its
+ * records scheduled and sorted.
+ */
+public class KhetSortSchedulerTest {
+
+	/** K-mer size. */
+	private static final int K_SIZE = 31;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sortGrownFile()
+			throws IOException, InterruptedException {
+
+		File binFile = folder.newFile("segment_1.bin");
+		KhetSortScheduler scheduler = new KhetSortScheduler();
+
+		append(binFile, 0, 100);
+
+		// Taken early after two checks with the same length
+		scheduler.add(binFile);
+		scheduler.check();
+		scheduler.check();
+
+		KhetSortScheduler.BinFile early = scheduler.take();
+
+		assertEquals(binFile, early.file);
+		assertEquals(0, early.offset);
+		assertEquals(100 * KhetReaderBin.RECORD_SIZE, early.length);
+
+		List<File> sortedFiles = new ArrayList<File>(sort(early));
+
+		// KAnalyze writes more records, then ends
+		append(binFile, 100, 40);
+		scheduler.finish();
+
+		KhetSortScheduler.BinFile rest = scheduler.take();
+
+		assertEquals(binFile, rest.file);
+		assertEquals(100 * KhetReaderBin.RECORD_SIZE, rest.offset);
+		assertEquals(140 * KhetReaderBin.RECORD_SIZE, rest.length);
+		assertNull(scheduler.take());
+
+		sortedFiles.addAll(sort(rest));
+
+		// Both stretches together hold every record once
+		assertEquals(2, sortedFiles.size());
+		assertArrayEquals(counts(0, 140), readCounts(sortedFiles));
+
+		return;
+	}
+
+	@Test
+	public void largestFirst()
+			throws IOException, InterruptedException {
+
+		File small = folder.newFile("segment_1.bin");
+		File large = folder.newFile("segment_2.bin");
+		KhetSortScheduler scheduler = new KhetSortScheduler();
+
+		append(small, 0, 10);
+		append(large, 0, 20);
+
+		scheduler.add(small);
+		scheduler.add(large);
+		scheduler.finish();
+
+		assertEquals(large, scheduler.take().file);
+		assertEquals(small, scheduler.take().file);
+		assertNull(scheduler.take());
+
+		return;
+	}
+
+	/**
+	 * Sort a scheduled stretch of a bin file.
+	 *
+	 * @param binFile Scheduled stretch.
+	 *
+	 * @return Sorted files.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private static List<File> sort(KhetSortScheduler.BinFile binFile)
+			throws IOException {
+
+		KhetReaderBin reader = new KhetReaderBin(binFile.file.getPath(), K_SIZE, Integer.MAX_VALUE, SortMode.RADIX, SegmentFormat.SORT, 1L << 20);
+
+		return reader.sort(binFile.file.getPath(), binFile.offset, binFile.length);
+	}
+
+	/**
+	 * Append records to a bin file. Record <code>n</code> has count <code>n + 1</code>.
+	 *
+	 * @param file Bin file.
+	 * @param first Number of the first record.
+	 * @param recordCount Number of records to append.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private static void append(File file, int first, int recordCount)
+			throws IOException {
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+
+		try {
+			for (int index = first; index < first + recordCount; ++index) {
+				out.writeLong(index * 7919L);
+				out.writeInt(index + 1);
+			}
+
+		} finally {
+			out.close();
+		}
+
+		return;
+	}
+
+	/**
+	 * Get the counts of records in a range.
+	 *
+	 * @param first Number of the first record.
+	 * @param recordCount Number of records.
+	 *
+	 * @return Counts in ascending order.
+	 */
+	private static int[] counts(int first, int recordCount) {
+
+		int[] count = new int[recordCount];
+
+		for (int index = 0; index < recordCount; ++index)
+			count[index] = first + index + 1;
+
+		return count;
+	}
+
+	/**
+	 * Read the counts of sorted files.
+	 *
+	 * @param sortedFiles Sorted files.
+	 *
+	 * @return Counts in ascending order.
+	 *
+	 * @throws IOException If an IO error occurs.
+	 */
+	private static int[] readCounts(List<File> sortedFiles)
+			throws IOException {
+
+		List<Integer> countList = new ArrayList<Integer>();
+
+		for (File sortedFile : sortedFiles) {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(sortedFile.toPath()));
+
+			while (buf.hasRemaining()) {
+				buf.getLong();
+				countList.add(buf.getInt());
+			}
+		}
+
+		int[] count = new int[countList.size()];
+
+		for (int index = 0; index < count.length; ++index)
+			count[index] = countList.get(index);
+
+		Arrays.sort(count);
+
+		return count;
+	}
+}